@@ -0,0 +1,129 @@
+package com.github.a2va.media;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the gap between two players chained with setNextMediaPlayer.
+ * Each file holds a constant level, the captured output must go from one
+ * level to the other without any silent frame in between.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GaplessPlaybackTest {
+    private static final int DURATION_MS = 400;
+    private static final float FIRST_LEVEL = 0.25f;
+    private static final float SECOND_LEVEL = 0.5f;
+    // Below this the output is considered silent
+    private static final float SILENCE = 0.02f;
+    // Allowed distance from a level, the resampler rings around the transition
+    private static final float LEVEL_TOLERANCE = 0.02f;
+
+    private File mFirstFile;
+    private File mSecondFile;
+    private MediaPlayer mFirstPlayer;
+    private MediaPlayer mSecondPlayer;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mFirstFile = WavWriter.writeLevel(new File(context.getCacheDir(), "gapless_first.wav"), DURATION_MS, FIRST_LEVEL);
+        mSecondFile = WavWriter.writeLevel(new File(context.getCacheDir(), "gapless_second.wav"), DURATION_MS, SECOND_LEVEL);
+        mFirstPlayer = new MediaPlayer();
+        mSecondPlayer = new MediaPlayer();
+    }
+
+    @After
+    public void tearDown() {
+        mFirstPlayer.release();
+        mSecondPlayer.release();
+        mFirstFile.delete();
+        mSecondFile.delete();
+    }
+
+    @Test
+    public void nextPlayerStartsWithoutGap() throws Exception {
+        mFirstPlayer.setDataSource(mFirstFile.getPath());
+        mFirstPlayer.prepare();
+        mSecondPlayer.setDataSource(mSecondFile.getPath());
+        mSecondPlayer.prepare();
+
+        final CountDownLatch startedAsNext = new CountDownLatch(1);
+        mSecondPlayer.setOnInfoListener((mp, what, extra) -> {
+            if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+                startedAsNext.countDown();
+            }
+            return false;
+        });
+        final CountDownLatch secondCompleted = new CountDownLatch(1);
+        mSecondPlayer.setOnCompletionListener(mp -> secondCompleted.countDown());
+
+        // Both files and some silence around them
+        int outputSampleRate = (int) mFirstPlayer.getMetrics()
+                .getLong(MediaPlayer.MetricsConstants.OUTPUT_SAMPLE_RATE, WavWriter.SAMPLE_RATE);
+        mFirstPlayer.setOutputCapture(outputSampleRate * DURATION_MS * 4 / 1000);
+
+        mFirstPlayer.setNextMediaPlayer(mSecondPlayer);
+        mFirstPlayer.start();
+
+        assertTrue("The second player was not started by the first one",
+                startedAsNext.await(5, TimeUnit.SECONDS));
+        assertTrue(secondCompleted.await(5, TimeUnit.SECONDS));
+
+        long gapFrames = mSecondPlayer.getMetrics().getLong(MediaPlayer.MetricsConstants.GAPLESS_GAP_FRAMES, -1);
+        assertEquals("Silent frames between the two players", 0, gapFrames);
+
+        float[] output = mFirstPlayer.getCapturedOutput();
+        int frameCount = output.length / WavWriter.CHANNEL_COUNT;
+        int firstAudible = -1;
+        int lastAudible = -1;
+        for (int i = 0; i < frameCount; i++) {
+            if (Math.abs(output[i * WavWriter.CHANNEL_COUNT]) > SILENCE) {
+                if (firstAudible < 0) {
+                    firstAudible = i;
+                }
+                lastAudible = i;
+            }
+        }
+        assertTrue("Nothing was played", firstAudible >= 0);
+
+        int lastFirstLevel = -1;
+        int firstSecondLevel = -1;
+        int firstLevelFrames = 0;
+        int secondLevelFrames = 0;
+        for (int i = firstAudible; i <= lastAudible; i++) {
+            float sample = output[i * WavWriter.CHANNEL_COUNT];
+            assertTrue("Silent frame " + (i - firstAudible) + " between the two players",
+                    Math.abs(sample) > SILENCE);
+            if (Math.abs(sample - FIRST_LEVEL) < LEVEL_TOLERANCE) {
+                firstLevelFrames++;
+                lastFirstLevel = i;
+            } else if (Math.abs(sample - SECOND_LEVEL) < LEVEL_TOLERANCE) {
+                secondLevelFrames++;
+                if (firstSecondLevel < 0) {
+                    firstSecondLevel = i;
+                }
+            }
+        }
+        assertTrue("The second file played before the end of the first one", lastFirstLevel < firstSecondLevel);
+
+        // Only the few frames around the transition are in neither level
+        int expectedFrames = outputSampleRate * DURATION_MS / 1000;
+        int maxMissingFrames = expectedFrames / 20;
+        assertEquals("Frames of the first file", expectedFrames, firstLevelFrames, maxMissingFrames);
+        assertEquals("Frames of the second file", expectedFrames, secondLevelFrames, maxMissingFrames);
+    }
+}
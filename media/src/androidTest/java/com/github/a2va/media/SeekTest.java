@@ -0,0 +1,160 @@
+package com.github.a2va.media;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that seeks complete, and that superseded seeks are coalesced,
+ * when the player is not playing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SeekTest {
+    // The landed position is the first frame at the target
+    private static final long POSITION_TOLERANCE_MS = 50;
+    // A sync seek lands on the packet holding the target
+    private static final long SYNC_TOLERANCE_MS = 200;
+
+    private File mFile;
+    private MediaPlayer mPlayer;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mFile = WavWriter.writeTone(new File(context.getCacheDir(), "seek_tone.wav"), 3000, 440);
+        mPlayer = new MediaPlayer();
+    }
+
+    @After
+    public void tearDown() {
+        mPlayer.release();
+        mFile.delete();
+    }
+
+    @Test
+    public void seekCompletesWhilePrepared() throws Exception {
+        mPlayer.setDataSource(mFile.getPath());
+        mPlayer.prepare();
+
+        assertLanded(1000, seekAndWait(1000));
+        assertLanded(1000, mPlayer.getCurrentPosition());
+    }
+
+    @Test
+    public void seekCompletesWhilePaused() throws Exception {
+        mPlayer.setDataSource(mFile.getPath());
+        mPlayer.prepare();
+        mPlayer.start();
+        mPlayer.pause();
+
+        assertLanded(2000, seekAndWait(2000));
+        assertFalse(mPlayer.isPlaying());
+    }
+
+    @Test
+    public void seekCompletesAfterPlaybackCompleted() throws Exception {
+        mPlayer.setDataSource(mFile.getPath());
+        mPlayer.prepare();
+        final CountDownLatch completed = new CountDownLatch(1);
+        mPlayer.setOnCompletionListener(mp -> completed.countDown());
+        mPlayer.seekTo(2800);
+        mPlayer.start();
+        assertTrue("The playback did not complete", completed.await(5, TimeUnit.SECONDS));
+
+        assertLanded(500, seekAndWait(500));
+    }
+
+    @Test
+    public void syncSeekLandsNearTarget() throws Exception {
+        mPlayer.setDataSource(mFile.getPath());
+        mPlayer.prepare();
+
+        // Every PCM packet is a sync point, the playback starts at most one packet away
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] landed = {-1};
+        mPlayer.seekTo(1000, MediaPlayer.SEEK_PREVIOUS_SYNC, (mp, positionMs) -> {
+            landed[0] = positionMs;
+            done.countDown();
+        });
+        assertTrue("The sync seek never completed", done.await(5, TimeUnit.SECONDS));
+        assertTrue("Landed at " + landed[0] + " ms, after the target", landed[0] <= 1000);
+        assertTrue("Landed at " + landed[0] + " ms, far before the target", landed[0] >= 1000 - SYNC_TOLERANCE_MS);
+    }
+
+    @Test
+    public void supersededSeeksCompleteWhilePrepared() throws Exception {
+        mPlayer.setDataSource(mFile.getPath());
+        mPlayer.prepare();
+        assertSupersededSeeksLandOnLast();
+    }
+
+    @Test
+    public void supersededSeeksCompleteWhilePaused() throws Exception {
+        mPlayer.setDataSource(mFile.getPath());
+        mPlayer.prepare();
+        mPlayer.start();
+        mPlayer.pause();
+        assertSupersededSeeksLandOnLast();
+    }
+
+    /**
+     * Issue a burst of seeks, every listener is called with the position of the last one.
+     */
+    private void assertSupersededSeeksLandOnLast() throws InterruptedException {
+        final long[] targets = {500, 1500, 2500};
+        final CountDownLatch results = new CountDownLatch(targets.length);
+        final List<Long> positions = new ArrayList<>();
+        for (long target : targets) {
+            mPlayer.seekTo(target, MediaPlayer.SEEK_CLOSEST, (mp, positionMs) -> {
+                synchronized (positions) {
+                    positions.add(positionMs);
+                }
+                results.countDown();
+            });
+        }
+
+        assertTrue("A superseded seek was never reported", results.await(5, TimeUnit.SECONDS));
+        synchronized (positions) {
+            for (long position : positions) {
+                assertLanded(targets[targets.length - 1], position);
+            }
+        }
+        assertLanded(targets[targets.length - 1], mPlayer.getCurrentPosition());
+    }
+
+    /**
+     * Seek and wait for the result listener.
+     *
+     * @return landed position in milliseconds
+     */
+    private long seekAndWait(long msec) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] landed = {-1};
+        mPlayer.seekTo(msec, MediaPlayer.SEEK_CLOSEST, (mp, positionMs) -> {
+            landed[0] = positionMs;
+            done.countDown();
+        });
+        assertTrue("The seek to " + msec + " ms never completed", done.await(5, TimeUnit.SECONDS));
+        return landed[0];
+    }
+
+    private static void assertLanded(long targetMs, long positionMs) {
+        assertTrue("Landed at " + positionMs + " ms instead of " + targetMs + " ms",
+                Math.abs(positionMs - targetMs) <= POSITION_TOLERANCE_MS);
+    }
+}
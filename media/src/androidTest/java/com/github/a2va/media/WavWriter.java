@@ -0,0 +1,67 @@
+package com.github.a2va.media;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes the 16 bits stereo WAV files played by the instrumented tests.
+ */
+final class WavWriter {
+    static final int SAMPLE_RATE = 44100;
+    static final int CHANNEL_COUNT = 2;
+
+    private WavWriter() {
+    }
+
+    /**
+     * Write a file with a sine tone.
+     */
+    static File writeTone(File file, int durationMs, double frequency) throws IOException {
+        int frames = SAMPLE_RATE * durationMs / 1000;
+        ByteBuffer buffer = allocate(frames);
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE) * Short.MAX_VALUE / 2);
+            for (int c = 0; c < CHANNEL_COUNT; c++) {
+                buffer.putShort(sample);
+            }
+        }
+        return write(file, buffer);
+    }
+
+    /**
+     * Write a file with a constant level.
+     */
+    static File writeLevel(File file, int durationMs, float level) throws IOException {
+        int frames = SAMPLE_RATE * durationMs / 1000;
+        ByteBuffer buffer = allocate(frames);
+        short sample = (short) (level * Short.MAX_VALUE);
+        for (int i = 0; i < frames * CHANNEL_COUNT; i++) {
+            buffer.putShort(sample);
+        }
+        return write(file, buffer);
+    }
+
+    /**
+     * Allocate the file content and write the header, the samples follow.
+     */
+    private static ByteBuffer allocate(int frames) {
+        int dataSize = frames * CHANNEL_COUNT * 2;
+        ByteBuffer buffer = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes()).putInt(36 + dataSize).put("WAVE".getBytes());
+        buffer.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) CHANNEL_COUNT)
+                .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * CHANNEL_COUNT * 2)
+                .putShort((short) (CHANNEL_COUNT * 2)).putShort((short) 16);
+        buffer.put("data".getBytes()).putInt(dataSize);
+        return buffer;
+    }
+
+    private static File write(File file, ByteBuffer buffer) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(buffer.array());
+        }
+        return file;
+    }
+}
@@ -15,6 +15,8 @@
  */
 
 #include <string>
+#include <cstring>
+#include <algorithm>
 #include <jni.h>
 #include <unistd.h>
 
@@ -22,6 +24,7 @@ extern "C" {
 #include <libavutil/rational.h>
 #include <libavutil/hwcontext.h>
 #include <libavutil/buffer.h>
+#include <libavutil/time.h>
 }
 
 #include "FFmpegDecoder.h"
@@ -131,18 +134,30 @@ void FFmpegDecoder::prepare() {
 	//mFmt_ctx->skip_initial_bytes = mOffset;
   }*/
 
+  // Prepared again after stop(), the previous decode thread still uses the contexts
+  if (mFmt_ctx != nullptr) {
+	release();
+  }
+
   /**
    * Open input.
    * */
+  // A seek left from the previous data source would interrupt the reads
+  mSeekTargetUs.store(kNoSeek, std::memory_order_release);
+  mFmt_ctx = avformat_alloc_context();
+  if (mFmt_ctx == nullptr) {
+	throw FFmpegErrorAlloc("Could not alloc format context");
+  }
+  // Lets a new seek or a reset interrupt blocking reads
+  mFmt_ctx->interrupt_callback.callback = &FFmpegDecoder::interruptDecoder;
+  mFmt_ctx->interrupt_callback.opaque = this;
+
   ret = avformat_open_input(&mFmt_ctx, mUrl.c_str(), NULL, NULL);
   if (ret < 0) {
 	LOGE("Could not open file:%s, %s", mUrl.c_str(), av_err2str(ret));
 	// TODO Call release method in MediaPlayer (try/catch)
-	if (mFmt_ctx == nullptr) {
-	  throw FFmpegErrorAlloc("Could not alloc format context");
-	} else {
-	  throwFFmpegError("Could not open file", ret);
-	}
+	// NOTE: The context is freed on failure
+	throwFFmpegError("Could not open file", ret);
   }
 
   /**
@@ -165,6 +180,7 @@ void FFmpegDecoder::prepare() {
   } else {
 	mStream = mFmt_ctx->streams[streamIndex];
   }
+  mDuration.resolve(mUrl, mFmt_ctx, mStream);
 
   /**
   * Alloc codec context.
@@ -218,29 +234,114 @@ void FFmpegDecoder::prepare() {
 	throwFFmpegError("Could not open codec", ret);
   }
 
+  mSampleRate = mCodec_ctx->sample_rate;
+
+  /**
+   * Load the seek index saved by a previous play of the same file.
+   * */
+  mSeekIndexInterval = av_rescale_q(kSeekIndexIntervalMs * 1000, AV_TIME_BASE_Q, mStream->time_base);
+  mSeekIndex.clear();
+  mSeekIndex.setInterval(mSeekIndexInterval);
+  mSeekIndexKey = SeekIndex::getFileKey(mUrl);
+  mSeekIndexContiguous = true;
+  if (!mSeekIndexCacheDir.empty() && mSeekIndexKey != 0 && mSeekIndex.load(getSeekIndexPath(), mSeekIndexKey)) {
+	LOGD("Seek index loaded, %zu points", mSeekIndex.size());
+  }
+
   /**
-   * Alloc swr and setup.
+   * Skip swr when the source can be copied to the fifo directly.
    * */
+  mPassthrough = Passthrough::getFormat(mCodec_ctx->sample_fmt,
+										mCodec_ctx->channels,
+										mCodec_ctx->sample_rate,
+										mOutputSampleRate);
+  if (mPassthrough == PassthroughFormat::None) {
+	initResampler(mCodec_ctx->sample_fmt,
+				  mCodec_ctx->channels,
+				  mCodec_ctx->channel_layout,
+				  mCodec_ctx->sample_rate);
+  } else {
+	LOGD("Passthrough enabled, swr is not used");
+  }
+
+  int frameSize = mCodec_ctx->frame_size > 0 ? mCodec_ctx->frame_size : kDefaultFrameSize;
+
+  if (mDemuxThreadEnabled) {
+	mPacketDurationUs = av_rescale(frameSize, AV_TIME_BASE, mStream->codecpar->sample_rate);
+	uint32_t packetQueueCapacity = getPacketQueueCapacity();
+	mPacketQueue.allocate(packetQueueCapacity);
+	mBufferAllocationCount.fetch_add(packetQueueCapacity, std::memory_order_relaxed);
+	mPacketQueue.setBudget(mReadAheadDurationUs, mReadAheadBytes);
+  }
+
+  // With a read-ahead budget, most of the buffering is done before decoding
+  bool hasReadAhead = mReadAheadDurationUs > 0 || mReadAheadBytes > 0;
+  uint32_t fifoCapacity = hasReadAhead ? kReadAheadBufferSize : kBufferSize;
+  if (mFifoDurationMs > 0) {
+	// The fifo must hold at least two decoded frames, otherwise they are truncated
+	auto minCapacity = av_rescale_rnd(2 * frameSize, mOutputSampleRate, mSampleRate, AV_ROUND_UP);
+	fifoCapacity = static_cast<uint32_t>(std::max(av_rescale(mFifoDurationMs, mOutputSampleRate, 1000), minCapacity));
+  }
+
+  // Burst decoding needs a fifo large enough for the high watermark
+  mBurstHighWatermark = static_cast<int32_t>(av_rescale(mBurstHighWatermarkMs, mOutputSampleRate, 1000));
+  mBurstLowWatermark = std::min(static_cast<int32_t>(av_rescale(mBurstLowWatermarkMs, mOutputSampleRate, 1000)),
+								mBurstHighWatermark);
+  fifoCapacity = std::max(fifoCapacity, static_cast<uint32_t>(mBurstHighWatermark));
+  mRefilling = true;
+  // The played history is kept in the same ring, behind the read position
+  mHistoryFrames = static_cast<uint32_t>(av_rescale(mHistoryDurationMs, mOutputSampleRate, 1000));
+  fifoCapacity += mHistoryFrames;
+  mSegmentValid = false;
+  mEndOfStream.store(false, std::memory_order_release);
+  mLoopBaseCounter.store(kNoLoopBase, std::memory_order_release);
+  mReadSeekCounter.store(kNoReadSeek, std::memory_order_release);
+
+  if (mFifoBuffer->getBufferCapacityInFrames() != fifoCapacity) {
+	mFifoBuffer = std::make_unique<oboe::FifoBuffer>(kChannelCount * sizeof(float), fifoCapacity);
+	mBufferAllocationCount.fetch_add(1, std::memory_order_relaxed);
+	mDiscardUntil.store(0, std::memory_order_release);
+  } else {
+	// Drop what is left from the previous data source
+	mDiscardUntil.store(mFifoBuffer->getWriteCounter(), std::memory_order_release);
+  }
+  mSkipUntilPts = AV_NOPTS_VALUE;
+  mSeekCompletePending = false;
+  mFirstFrameBufferAllocationCount.store(kNoAllocationCount, std::memory_order_relaxed);
+
+  launchDecodeThread();
+}
+
+/**
+ * Alloc swr and setup.
+ *
+ * @param format input sample format
+ * @param channels input channel count
+ * @param channelLayout input channel layout
+ * @param sampleRate input sample rate
+ * */
+void FFmpegDecoder::initResampler(int format, int channels, uint64_t channelLayout, int sampleRate) {
+  if (mSwr) {
+	swr_free(&mSwr);
+  }
+
   mSwr = swr_alloc();
   if (mSwr == nullptr) {
 	throw FFmpegErrorAlloc("Could not alloc resample context");
   }
 
   int32_t outChannelLayout = (1 << mChannelCount) - 1;
-  // TODO Use sample rate from ffmpeg and not hardcode
-  mSampleRate = mCodec_ctx->sample_rate;
 
-  av_opt_set_int(mSwr, "in_channel_count", mStream->codecpar->channels, 0);
+  av_opt_set_int(mSwr, "in_channel_count", channels, 0);
   av_opt_set_int(mSwr, "out_channel_count", kChannelCount, 0);
-  av_opt_set_int(mSwr, "in_channel_layout", mStream->codecpar->channel_layout, 0);
+  av_opt_set_int(mSwr, "in_channel_layout", channelLayout, 0);
   av_opt_set_int(mSwr, "out_channel_layout", outChannelLayout, 0);
-  av_opt_set_int(mSwr, "in_sample_rate", mStream->codecpar->sample_rate, 0);
-  av_opt_set_int(mSwr, "out_sample_rate", kSampleRate, 0);
-  av_opt_set_int(mSwr, "in_sample_fmt", mStream->codecpar->format, 0);
+  av_opt_set_int(mSwr, "in_sample_rate", sampleRate, 0);
+  av_opt_set_int(mSwr, "out_sample_rate", mOutputSampleRate, 0);
+  av_opt_set_int(mSwr, "in_sample_fmt", format, 0);
   av_opt_set_sample_fmt(mSwr, "out_sample_fmt", AV_SAMPLE_FMT_FLT  , 0);
-  av_opt_set_int(mSwr, "force_resampling", 1, 0);
 
-  ret = swr_init(mSwr);
+  int ret = swr_init(mSwr);
   if (ret < 0) {
 	LOGE("Error init SwrContext");
 	throwFFmpegError("Error init SwrContext", ret);
@@ -250,17 +351,18 @@ void FFmpegDecoder::prepare() {
 	LOGE("swr_is_initialized is false\n");
 	throw FFmpegError("swr_is_initialized is false");
   }
-
-  launchDecodeThread();
 }
 
 /**
  * Start/Resume the decoding.
  * */
 void FFmpegDecoder::start() {
-  // Set play to true and notify the decoding thread
+  if (!mIsPlaying) {
+	mPlayStartUs = av_gettime_relative();
+  }
+  // Set play to true and wake up the decoding thread
   mIsPlaying = true;
-  mCVPlaying.notify_one();
+  mWakeup.signal();
 }
 
 /**
@@ -274,6 +376,9 @@ void FFmpegDecoder::stop() {
  * Pause the decoding.
  * */
 void FFmpegDecoder::pause() {
+  if (mIsPlaying) {
+	mPlayingTimeUs += av_gettime_relative() - mPlayStartUs;
+  }
   mIsPlaying = false;
 }
 
@@ -285,32 +390,449 @@ bool FFmpegDecoder::isPlaying() {
 }
 
 /**
- * Seek in the file.
+ * Seek in the file. The seek is done by the decode thread, which lands
+ * on the exact sample of the target. Only the last pending seek is kept.
  *
- * @param time in milliseconds
+ * @param msecs time in milliseconds
  * */
-void FFmpegDecoder::seekTo(int msecs) {
-  // TODO Mutex to wait the tread ?
-  // FIXME Seek is to long
-  pause();
+bool FFmpegDecoder::seekTo(int64_t msecs, SeekMode mode) {
+  int64_t targetUs = msecs * 1000;
+  // Once the decode thread ended, the codec is drained and only a real seek restarts it
+  if (mDecodeThreadRunning.load() && seekInBuffer(targetUs)) {
+	mInstantSeekCount.fetch_add(1, std::memory_order_relaxed);
+	return true;
+  }
+
+  mSeekRequestTimeUs.store(av_gettime_relative(), std::memory_order_relaxed);
+  mSeekMode.store(mode, std::memory_order_relaxed);
+  // Sequentially consistent with continueAfterEnd(), one of both sees the other
+  mSeekTargetUs.store(targetUs);
+
+  // Report the target position until the decoder reaches it
+  if (mStream != nullptr) {
+	mCurrentPosition.store(av_rescale_q(targetUs, AV_TIME_BASE_Q, mStream->time_base) + getStartPts(),
+						   std::memory_order_release);
+	// Ended with the file, or with an error, the seek is done by a new decode thread
+	if (!mDecodeThreadRunning.exchange(true)) {
+	  launchDecodeThread();
+	}
+  }
+  mWakeup.signal();
+  return false;
+}
+
+/**
+ * Serve a seek from the decoded audio, if the target is in the played history
+ * or in the fifo. The reader moves its position on its next read.
+ *
+ * @param targetUs target in microseconds
+ * @return false if the target is outside of the decoded audio
+ * */
+bool FFmpegDecoder::seekInBuffer(int64_t targetUs) {
+  // A seek taken by the decode thread invalidates the segment before it takes the target,
+  // loaded in the reverse order the segment is seen invalid until the seek lands
+  if (mSeekTargetUs.load() != kNoSeek || !mSegmentValid.load()) {
+	return false;
+  }
+  // Once looped, the fifo is no longer contiguous from the segment start
+  if (mLoopBaseCounter.load(std::memory_order_acquire) != kNoLoopBase) {
+	return false;
+  }
+
+  int64_t offset = av_rescale(targetUs - mSegmentStartUs.load(std::memory_order_relaxed),
+							  mOutputSampleRate, AV_TIME_BASE);
+  if (offset < 0) {
+	return false;
+  }
+  uint64_t counter = mSegmentStartCounter.load(std::memory_order_relaxed) + offset;
+
+  // The reader may play a few more frames before it moves, keep a margin in the history
+  uint64_t readCounter = mFifoBuffer->getReadCounter();
+  uint64_t margin = static_cast<uint64_t>(mOutputSampleRate / 10);
+  uint64_t oldest = readCounter - std::min<uint64_t>(readCounter, mHistoryFrames > margin ? mHistoryFrames - margin : 0);
+  if (counter < oldest || counter >= mFifoBuffer->getWriteCounter()) {
+	return false;
+  }
+
+  mReadSeekTargetUs.store(targetUs, std::memory_order_relaxed);
+  mReadSeekCounter.store(counter, std::memory_order_release);
+  return true;
+}
+
+void FFmpegDecoder::startScrubbing() {
+  mScrubber.start(mUrl, mStream->index, mOutputSampleRate,
+				  static_cast<int64_t>(getCurrentPosition()) * 1000);
+}
+
+int64_t FFmpegDecoder::stopScrubbing() {
+  mScrubber.stop();
+  return mScrubber.getPositionUs() / 1000;
+}
+
+/**
+ * Apply an instant seek on the reader side. If the target left the decoded
+ * audio in the meantime, it is given to the decode thread instead.
+ * */
+void FFmpegDecoder::applyReadSeek() {
+  uint64_t counter = mReadSeekCounter.exchange(kNoReadSeek, std::memory_order_acq_rel);
+  if (counter == kNoReadSeek) {
+	return;
+  }
+
+  uint64_t readCounter = mFifoBuffer->getReadCounter();
+  uint64_t oldest = std::max(mSegmentStartCounter.load(std::memory_order_relaxed),
+							 readCounter - std::min<uint64_t>(readCounter, mHistoryFrames));
+  if (mSegmentValid.load(std::memory_order_acquire)
+	  && counter >= oldest && counter <= mFifoBuffer->getWriteCounter()) {
+	mFifoBuffer->setReadCounter(counter);
+  } else {
+	mSeekTargetUs.store(mReadSeekTargetUs.load(std::memory_order_relaxed), std::memory_order_release);
+	mWakeup.signal();
+  }
+}
+
+/**
+ * Seek on the decode thread: go to the keyframe preceding the target,
+ * flush the codec, swr and the fifo, then the decoded samples before
+ * the target are discarded by drainFrames().
+ *
+ * @param packet packet of the decode loop, dropped
+ * @return result of avformat_seek_file
+ * */
+int FFmpegDecoder::performSeek(AVPacket *packet) {
+  // The decoded audio is stale from now on, seekInBuffer() must not serve a seek from it
+  // while this one is in flight, it would be discarded with the fifo
+  mSegmentValid.store(false);
+  int64_t targetUs = mSeekTargetUs.exchange(kNoSeek);
+  SeekMode mode = mSeekMode.load(std::memory_order_relaxed);
+  mSeekStartUs = mSeekRequestTimeUs.load(std::memory_order_relaxed);
+
+  // The demux thread uses the same format context
+  pauseDemuxThread();
+  av_packet_unref(packet);
+
+  int64_t target = av_rescale_q(targetUs, AV_TIME_BASE_Q, mStream->time_base) + getStartPts();
+  mNextFramePts = AV_NOPTS_VALUE;
+  mSeekIndexContiguous = false;
+  int ret = 0;
+  // The index only holds the sync points before the target
+  bool afterTarget = mode == SeekMode::NextSync || mode == SeekMode::ClosestSync;
+  if (afterTarget || !seekByIndex(target)) {
+	// With max_ts at the target, the demuxer lands on the nearest keyframe before it
+	ret = avformat_seek_file(mFmt_ctx, mStream->index, mode == SeekMode::NextSync ? target : INT64_MIN,
+							 target, afterTarget ? INT64_MAX : target, 0);
+	if (ret < 0 && afterTarget) {
+	  // No sync point after the target, near the end of the file
+	  ret = avformat_seek_file(mFmt_ctx, mStream->index, INT64_MIN, target, target, 0);
+	}
+	if (ret < 0) {
+	  LOGE("seekTo error:%s", av_err2str(ret));
+	}
+  }
+
+  avcodec_flush_buffers(mCodec_ctx);
+  if (mSwr != nullptr) {
+	// Drop the samples delayed in swr
+	swr_init(mSwr);
+  }
+
+  // Drop the decoded audio still waiting in the fifo, done by the reader
+  mReadSeekCounter.store(kNoReadSeek, std::memory_order_release);
+  mDiscardUntil.store(mFifoBuffer->getWriteCounter(), std::memory_order_release);
+  // The sync modes play from the sync point, without decoding up to the target
+  mSkipUntilPts = mode == SeekMode::Closest ? target : AV_NOPTS_VALUE;
+  // Reported if the target is never decoded, the end of file is the closest position
+  int64_t durationUs = mDuration.getDurationUs();
+  mSeekLandingUs = durationUs != AV_NOPTS_VALUE ? std::min(targetUs, durationUs) : targetUs;
+  mSeekCompletePending = true;
+  mEndOfStream.store(false, std::memory_order_release);
+  mLoopBaseCounter.store(kNoLoopBase, std::memory_order_release);
+
+  resumeDemuxThread();
+  return ret;
+}
+
+/**
+ * Go back to the loop start on the decode thread. Unlike a seek, the fifo
+ * is kept: the end of the loop is still played and the loop start is
+ * written right after it, the samples before the start are discarded by drainFrames().
+ *
+ * @param packet packet of the decode loop, dropped
+ * */
+void FFmpegDecoder::performLoop(AVPacket *packet) {
+  pauseDemuxThread();
+  av_packet_unref(packet);
+
+  int64_t startUs = mLoopStartUs.load(std::memory_order_relaxed);
+  int64_t target = av_rescale_q(startUs, AV_TIME_BASE_Q, mStream->time_base) + getStartPts();
+  mNextFramePts = AV_NOPTS_VALUE;
+  mSeekIndexContiguous = false;
+  if (!seekByIndex(target)) {
+	int ret = avformat_seek_file(mFmt_ctx, mStream->index, INT64_MIN, target, target, 0);
+	if (ret < 0) {
+	  LOGE("Loop seek error:%s", av_err2str(ret));
+	}
+  }
+
+  avcodec_flush_buffers(mCodec_ctx);
+  if (mSwr != nullptr) {
+	// The delayed samples were flushed to the fifo by drainFrames()
+	swr_init(mSwr);
+  }
+  mSkipUntilPts = target;
+  mEndOfStream.store(false, std::memory_order_release);
+
+  // The positions of the looped audio are computed from the loop length, measured on the second loop
+  uint64_t writeCounter = mFifoBuffer->getWriteCounter();
+  uint64_t base = mLoopBaseCounter.load(std::memory_order_relaxed);
+  if (base == kNoLoopBase || mLoopRegionChanged.exchange(false, std::memory_order_acq_rel)) {
+	mLoopFrames.store(0, std::memory_order_relaxed);
+	mLoopBaseUs.store(startUs, std::memory_order_relaxed);
+	mLoopBaseCounter.store(writeCounter, std::memory_order_release);
+  } else if (mLoopFrames.load(std::memory_order_relaxed) == 0) {
+	mLoopFrames.store(writeCounter - base, std::memory_order_release);
+  }
+  mLoopCount.fetch_add(1, std::memory_order_relaxed);
+
+  resumeDemuxThread();
+}
+
+/**
+ * Called once the first audio at the seek target is in the fifo, or when it can't be reached.
+ * The seek is only reported if no other seek was requested in the meantime.
+ *
+ * @param positionUs position where the playback landed, in microseconds
+ * */
+void FFmpegDecoder::finishSeek(int64_t positionUs) {
+  if (!mSeekCompletePending) {
+	return;
+  }
+  mSeekCompletePending = false;
+  mSeekLatencyUs.store(av_gettime_relative() - mSeekStartUs, std::memory_order_relaxed);
 
-  int64_t seek = av_rescale(
-	  msecs/1000,
-	  mStream->time_base.den,
-	  mStream->time_base.num
-  );
+  if (mSeekTargetUs.load(std::memory_order_acquire) == kNoSeek && mSeekCallback != nullptr) {
+	mSeekCallback->onSeekComplete(positionUs / 1000);
+  }
+}
+
+/**
+ * Interrupt callback of the decoder context, stops blocking reads and seeks
+ * when a new seek is requested or the decoder is reset.
+ *
+ * @param opaque decoder
+ * @return 1 to interrupt
+ * */
+int FFmpegDecoder::interruptDecoder(void *opaque) {
+  auto *decoder = static_cast<FFmpegDecoder *>(opaque);
+  return decoder->mReset || decoder->mSeekTargetUs.load(std::memory_order_acquire) != kNoSeek ? 1 : 0;
+}
 
- // avcodec_flush_buffers(mCodec_ctx);
-// AVSEEK_FLAG_ANY
-// AVSEEK_FLAG_FRAME
-// AVSEEK_FLAG_BACKWARD
- int ret = avformat_seek_file(mFmt_ctx,mStream->index,INT64_MIN,seek,INT64_MAX,AVSEEK_FLAG_FRAME);
-  if( ret < 0 ) {
-    LOGE("seekTo error:%s", av_err2str(ret));
+/**
+ * Seek by byte offset to the seek index point before the target.
+ * The index is only used when it is known to cover the target.
+ *
+ * @param target target pts, in stream time base
+ * @return false if the index can't be used
+ * */
+bool FFmpegDecoder::seekByIndex(int64_t target) {
+  if (mFmt_ctx->iformat != nullptr && (mFmt_ctx->iformat->flags & AVFMT_NO_BYTE_SEEK)) {
+	return false;
+  }
+
+  SeekIndex::Entry entry{};
+  if (!mSeekIndex.lookup(target, entry)) {
+	return false;
+  }
+  // Past the last point of a partial index, the point may be far from the target
+  if (!mSeekIndex.isComplete() && target - entry.pts > 2 * mSeekIndexInterval) {
+	return false;
   }
 
-  // TODO Clear the fifo ?
-  start();
+  int ret = avformat_seek_file(mFmt_ctx, -1, entry.pos, entry.pos, entry.pos, AVSEEK_FLAG_BYTE);
+  if (ret < 0) {
+	LOGE("seekTo by index error:%s", av_err2str(ret));
+	return false;
+  }
+  // Raw formats may not set the pts after a byte seek
+  mNextFramePts = entry.pts;
+  return true;
+}
+
+/**
+ * Get the number of samples of the frame before the seek target.
+ *
+ * @param frame decoded frame
+ * @return number of samples to skip
+ * */
+int32_t FFmpegDecoder::getSkipSamples(AVFrame *frame) {
+  if (mSkipUntilPts == AV_NOPTS_VALUE) {
+	return 0;
+  }
+
+  int64_t pts = frame->best_effort_timestamp != AV_NOPTS_VALUE ? frame->best_effort_timestamp : frame->pts;
+  if (pts == AV_NOPTS_VALUE) {
+	pts = mNextFramePts;
+  }
+  if (pts == AV_NOPTS_VALUE || pts >= mSkipUntilPts) {
+	// Target reached, or no way to know
+	mSkipUntilPts = AV_NOPTS_VALUE;
+	mNextFramePts = AV_NOPTS_VALUE;
+	return 0;
+  }
+
+  int64_t skip = av_rescale_q(mSkipUntilPts - pts, mStream->time_base, AVRational{1, frame->sample_rate});
+  if (skip < frame->nb_samples) {
+	mSkipUntilPts = AV_NOPTS_VALUE;
+	mNextFramePts = AV_NOPTS_VALUE;
+  } else {
+	mNextFramePts = pts + av_rescale_q(frame->nb_samples, AVRational{1, frame->sample_rate}, mStream->time_base);
+  }
+  return static_cast<int32_t>(std::min<int64_t>(skip, frame->nb_samples));
+}
+
+/**
+ * Get the number of samples of the frame before the loop end.
+ *
+ * @param frame decoded frame
+ * @return number of samples to keep, nb_samples if the loop end isn't in the frame
+ * */
+int32_t FFmpegDecoder::getLoopKeepSamples(AVFrame *frame) {
+  int64_t endUs = mLoopEndUs.load(std::memory_order_relaxed);
+  if (endUs == kNoLoopEnd || !mLooping.load(std::memory_order_acquire)) {
+	return frame->nb_samples;
+  }
+
+  int64_t pts = frame->best_effort_timestamp != AV_NOPTS_VALUE ? frame->best_effort_timestamp : frame->pts;
+  if (pts == AV_NOPTS_VALUE) {
+	return frame->nb_samples;
+  }
+
+  int64_t end = av_rescale_q(endUs, AV_TIME_BASE_Q, mStream->time_base) + getStartPts();
+  int64_t keep = av_rescale_q(end - pts, mStream->time_base, AVRational{1, frame->sample_rate});
+  return static_cast<int32_t>(std::max<int64_t>(std::min<int64_t>(keep, frame->nb_samples), 0));
+}
+
+/**
+ * Scan the whole file on a background thread to build the seek index.
+ * Must call after prepare().
+ * */
+void FFmpegDecoder::buildSeekIndex() {
+  if (mStream == nullptr || mIndexerThread.joinable() || mSeekIndex.isComplete()) {
+	return;
+  }
+  mStopIndexer = false;
+  mIndexerThread = std::thread(&FFmpegDecoder::indexSeekPoints, this, mUrl, mStream->index);
+  thread::setName(mIndexerThread, "FFmpegIndexer");
+}
+
+/**
+ * Indexer loop, read every packet of the file with its own context,
+ * without decoding, and record the keyframe points.
+ *
+ * @param url file to index
+ * @param streamIndex index of the audio stream
+ * */
+void FFmpegDecoder::indexSeekPoints(std::string url, int streamIndex) {
+  LOGD("INDEXER START");
+  AVFormatContext *fmt_ctx = avformat_alloc_context();
+  if (fmt_ctx == nullptr) {
+	return;
+  }
+  fmt_ctx->interrupt_callback.callback = &FFmpegDecoder::interruptIndexer;
+  fmt_ctx->interrupt_callback.opaque = this;
+
+  // The context is freed on failure
+  int ret = avformat_open_input(&fmt_ctx, url.c_str(), nullptr, nullptr);
+  if (ret < 0) {
+	LOGE("Indexer could not open file:%s, %s", url.c_str(), av_err2str(ret));
+	return;
+  }
+
+  SeekIndex index;
+  index.setInterval(mSeekIndexInterval);
+  AVPacket *packet = av_packet_alloc();
+
+  ret = avformat_find_stream_info(fmt_ctx, nullptr);
+  while (ret >= 0 && !mStopIndexer) {
+	ret = av_read_frame(fmt_ctx, packet);
+	if (ret < 0) {
+	  break;
+	}
+	if (packet->stream_index == streamIndex && (packet->flags & AV_PKT_FLAG_KEY)
+		&& packet->pos >= 0 && packet->pts != AV_NOPTS_VALUE) {
+	  index.record(packet->pts, packet->pos);
+	}
+	av_packet_unref(packet);
+  }
+
+  av_packet_free(&packet);
+  avformat_close_input(&fmt_ctx);
+
+  if (ret == AVERROR_EOF && !mStopIndexer) {
+	index.setComplete(true);
+	mSeekIndex.replace(index);
+	if (!mSeekIndexCacheDir.empty() && mSeekIndexKey != 0) {
+	  mSeekIndex.save(getSeekIndexPath(), mSeekIndexKey);
+	}
+	LOGD("Seek index built, %zu points", mSeekIndex.size());
+  }
+  LOGD("INDEXER END");
+}
+
+/**
+ * Interrupt callback of the indexer context, stops blocking reads on release.
+ *
+ * @param opaque decoder
+ * @return 1 to interrupt
+ * */
+int FFmpegDecoder::interruptIndexer(void *opaque) {
+  return static_cast<FFmpegDecoder *>(opaque)->mStopIndexer ? 1 : 0;
+}
+
+/**
+ * Stop the indexer thread.
+ * */
+void FFmpegDecoder::stopIndexer() {
+  if (mIndexerThread.joinable()) {
+	mStopIndexer = true;
+	mIndexerThread.join();
+  }
+}
+
+/**
+ * Get the sidecar file of the seek index, named after the file identity.
+ *
+ * @return sidecar file path
+ * */
+std::string FFmpegDecoder::getSeekIndexPath() {
+  return string_format("%s/%016llx.seekindex",
+					   mSeekIndexCacheDir.c_str(),
+					   static_cast<unsigned long long>(mSeekIndexKey));
+}
+
+/**
+ * Get the pts of the beginning of the stream.
+ *
+ * @return start pts, in stream time base
+ * */
+int64_t FFmpegDecoder::getStartPts() {
+  return mStream->start_time != AV_NOPTS_VALUE ? mStream->start_time : 0;
+}
+
+/**
+ * Get the average wakeup rate of the decode thread while playing.
+ *
+ * @return wakeups per second, multiplied by 1000
+ * */
+int64_t FFmpegDecoder::getWakeupRateMilliHz() {
+  int64_t playingTimeUs = mPlayingTimeUs;
+  if (mIsPlaying) {
+	playingTimeUs += av_gettime_relative() - mPlayStartUs;
+  }
+  if (playingTimeUs <= 0) {
+	return 0;
+  }
+  return av_rescale(static_cast<int64_t>(getWakeupCount()), 1000 * AV_TIME_BASE, playingTimeUs);
 }
 
 /**
@@ -322,18 +844,68 @@ int FFmpegDecoder::getCurrentPosition() {
   if (mStream == nullptr) {
 	return -1;
   }
+  if (mScrubber.isActive()) {
+	return static_cast<int>(mScrubber.getPositionUs() / 1000);
+  }
+  // Playback position, from the frames read in the current segment
+  if (mSegmentValid.load(std::memory_order_acquire)
+	  && mSeekTargetUs.load(std::memory_order_acquire) == kNoSeek) {
+	uint64_t counter = mReadSeekCounter.load(std::memory_order_acquire);
+	if (counter == kNoReadSeek) {
+	  counter = mFifoBuffer->getReadCounter();
+	}
+	// Looped audio, the position repeats every loop length
+	uint64_t loopBase = mLoopBaseCounter.load(std::memory_order_acquire);
+	if (loopBase != kNoLoopBase && counter >= loopBase) {
+	  uint64_t offset = counter - loopBase;
+	  uint64_t loopFrames = mLoopFrames.load(std::memory_order_acquire);
+	  if (loopFrames > 0) {
+		offset %= loopFrames;
+	  }
+	  int64_t positionUs = mLoopBaseUs.load(std::memory_order_relaxed)
+		  + av_rescale(static_cast<int64_t>(offset), AV_TIME_BASE, mOutputSampleRate);
+	  return static_cast<int>(positionUs / 1000);
+	}
+	uint64_t segmentStart = mSegmentStartCounter.load(std::memory_order_relaxed);
+	if (counter >= segmentStart) {
+	  int64_t positionUs = mSegmentStartUs.load(std::memory_order_relaxed)
+		  + av_rescale(static_cast<int64_t>(counter - segmentStart), AV_TIME_BASE, mOutputSampleRate);
+	  return static_cast<int>(positionUs / 1000);
+	}
+  }
+
   // Retrieve the current position in milliseconds
   int64_t currentPosition = mCurrentPosition.load(std::memory_order_acquire);
   if(currentPosition == AV_NOPTS_VALUE) {
 	return -1;
   }
 
+  currentPosition -= getStartPts();
   currentPosition *= 1000;
   currentPosition = currentPosition * mStream->time_base.num / mStream->time_base.den;
 
   return currentPosition;
 }
 
+/**
+ * Get the duration left to play. Once the end of file is decoded,
+ * the fifo holds exactly what is left.
+ *
+ * @return remaining duration in microseconds, -1 if unknown
+ * */
+int64_t FFmpegDecoder::getRemainingUs() {
+  if (mEndOfStream.load(std::memory_order_acquire)) {
+	return av_rescale(getFullFramesAvailable(), AV_TIME_BASE, mOutputSampleRate);
+  }
+
+  int64_t durationUs = mDuration.getDurationUs();
+  int position = getCurrentPosition();
+  if (durationUs == AV_NOPTS_VALUE || position < 0) {
+	return -1;
+  }
+  return std::max<int64_t>(durationUs - static_cast<int64_t>(position) * 1000, 0);
+}
+
 /**
  * Get the duration in milliseconds.
  *
@@ -343,19 +915,29 @@ int FFmpegDecoder::getDuration() {
   if (mStream == nullptr) {
 	return -1;
   }
-  // Stream duration is relative to stream time base
-  int64_t duration = mStream->duration;
-  duration *=1000;
-  //duration = duration/AV_TIME_BASE;
-  duration = duration * mStream->time_base.num / mStream->time_base.den;
-  return duration;
+  int64_t durationUs = mDuration.getDurationUs();
+  if (durationUs == AV_NOPTS_VALUE) {
+	return -1;
+  }
+  // Rounded to the nearest millisecond
+  return static_cast<int>(std::min<int64_t>((durationUs + 500) / 1000, INT32_MAX));
 }
 
 /**
- * Release the decoder.
+ * Release the decoder. The worker threads are stopped first, they use the contexts freed here.
  * */
 void FFmpegDecoder::release() {
 
+  stopDecodeThread();
+  stopIndexer();
+  mScrubber.stop();
+  mDuration.reset();
+  if (!mSeekIndexCacheDir.empty() && mSeekIndexKey != 0) {
+	mSeekIndex.save(getSeekIndexPath(), mSeekIndexKey);
+  }
+  mSeekIndex.clear();
+  mSeekIndexKey = 0;
+
   if (mCodec_ctx) {
 	// av_buffer_unref((void *)&(mCodec_ctx->hwaccel_context));
 	avcodec_free_context(&mCodec_ctx);
@@ -366,6 +948,8 @@ void FFmpegDecoder::release() {
 	swr_free(&mSwr);
   }
 
+  mPacketQueue.release();
+
   if (mFmt_ctx) {
 	// NOTE: This also frees mStream
 	avformat_free_context(mFmt_ctx);
@@ -374,6 +958,7 @@ void FFmpegDecoder::release() {
 
   mStream = nullptr;
   mCodec = nullptr;
+  mReset = false;
 }
 
 /**
@@ -381,14 +966,10 @@ void FFmpegDecoder::release() {
  * */
 void FFmpegDecoder::reset() {
 
-  start();
-  mReset = true;
   // Wait the decode loop is finished
-  std::unique_lock<std::mutex> lk(mMutex);
-  mCVReset.wait(lk, [&] {return mStopWaitReset;});
-  // TODO Remove data in fifo
-  avcodec_flush_buffers(mCodec_ctx);
-
+  stopDecodeThread();
+  pause();
+  // The fifo is kept, the next prepare() drops what is left in it
 
   // Reset data source
   mOffset = 0;
@@ -398,19 +979,57 @@ void FFmpegDecoder::reset() {
 
   // Release ffmpeg context
   release();
-
-  mReset = false;
-  lk.unlock();
 }
 
 void FFmpegDecoder::launchDecodeThread() {
   /*
   * Start thread.
   * */
-  std::thread decodeThread(&FFmpegDecoder::decode, this);
-  thread::setScheduling(decodeThread,SCHED_RR,50);
-  thread::setName(decodeThread, "FFmpegDecoder");
-  decodeThread.detach();
+  if (mDecodeThread.joinable()) {
+	// The previous thread ended with the file, it may still be in its completion callback
+	if (mDecodeThread.get_id() == std::this_thread::get_id()) {
+	  mDecodeThread.detach();
+	} else {
+	  mDecodeThread.join();
+	}
+  }
+  mDecodeThreadRunning.store(true);
+  mDecodeThread = std::thread(&FFmpegDecoder::decode, this);
+  thread::setScheduling(mDecodeThread,SCHED_RR,50);
+  thread::setName(mDecodeThread, "FFmpegDecoder");
+}
+
+/**
+ * Called by the decode thread once its loop is over. A seek requested in the
+ * meantime keeps the thread running, otherwise the next seekTo() launches a new one.
+ *
+ * @return true if the decode loop must handle a pending seek
+ * */
+bool FFmpegDecoder::continueAfterEnd() {
+  mDecodeThreadRunning.store(false);
+  if (mReset || mSeekTargetUs.load() == kNoSeek) {
+	return false;
+  }
+  // Both this thread and seekTo() may have seen the seek, the first to set the flag handles it
+  return !mDecodeThreadRunning.exchange(true);
+}
+
+/**
+ * Stop the decode thread and wait for it, the demux thread is stopped by it.
+ * mReset stays set until the decoder is released.
+ * */
+void FFmpegDecoder::stopDecodeThread() {
+  if (!mDecodeThread.joinable()) {
+	return;
+  }
+  mReset = true;
+  mWakeup.signal();
+  if (mDecodeThread.get_id() == std::this_thread::get_id()) {
+	// Called from the completion callback, the decode loop is already over
+	mDecodeThread.detach();
+  } else {
+	mDecodeThread.join();
+  }
 }
 
 void FFmpegDecoder::decode() {
@@ -419,121 +1038,563 @@ void FFmpegDecoder::decode() {
 
   AVPacket *avPacket = av_packet_alloc(); // Stores compressed audio data
   AVFrame *decodedFrame = av_frame_alloc(); // Stores raw audio data
-  AVFrame *tempFrame = av_frame_alloc();
+  mBufferAllocationCount.fetch_add(2, std::memory_order_relaxed);
+
+  startDemuxThread();
 
-  // While there is more data to read, read it into the avPacket
+  DecodeState state = DecodeState::ReadPacket;
   while (true) {
-	result = av_read_frame(mFmt_ctx, avPacket);
-	if (result < 0) {
-	  break;
-	}
 
 	// If reset started stop decoding loop
-	if(mReset) {
+	if (mReset) {
+	  mDecodeThreadRunning.store(false);
 	  break;
 	}
 
-	if (avPacket->stream_index == mStream->index && avPacket->size > 0) {
+	if (state == DecodeState::Finished) {
+	  if (!continueAfterEnd()) {
+		break;
+	  }
+	  // A seek arrived while the loop was ending, it is handled below
+	  result = 0;
+	}
+
+	if (mSeekTargetUs.load(std::memory_order_acquire) != kNoSeek) {
+	  performSeek(avPacket);
+	  state = DecodeState::ReadPacket;
+	  continue;
+	}
 
-	  // Pass our compressed data into the codec
-	  result = avcodec_send_packet(mCodec_ctx, avPacket);
-	  if (result != 0) {
-		LOGE("avcodec_send_packet error: %s", av_err2str(result));
-		if (mErrorCallback != nullptr) {
-		  mErrorCallback->onFFmpegError("avcodec_send_packet error", result);
+	switch (state) {
+	  case DecodeState::ReadPacket:
+		result = readPacket(avPacket);
+		if (result == AVERROR_EOF) {
+		  state = DecodeState::Flush;
+		} else if (result == AVERROR_EXIT) {
+		  // Read interrupted by a seek or a reset, handled at the top of the loop
+		  av_packet_unref(avPacket);
+		} else if (result < 0) {
+		  LOGE("Read packet error: %s", av_err2str(result));
+		  state = DecodeState::Finished;
+		} else if (avPacket->stream_index == mStream->index && avPacket->size > 0) {
+		  state = DecodeState::SendPacket;
+		} else {
+		  av_packet_unref(avPacket);
 		}
 		break;
-	  }
 
-	  // Retrieve our raw data from the codec
-	  result = avcodec_receive_frame(mCodec_ctx, decodedFrame);
-	  if (result == AVERROR(EAGAIN)) {
-		// The codec needs more data before it can decode
-		LOGI("avcodec_receive_frame returned EAGAIN");
+	  case DecodeState::SendPacket:
+		// Pass our compressed data into the codec
+		result = avcodec_send_packet(mCodec_ctx, avPacket);
+		if (result == AVERROR(EAGAIN)) {
+		  // The codec is full, drain it and send the same packet again
+		  state = DecodeState::Drain;
+		  break;
+		}
+
 		av_packet_unref(avPacket);
-		continue;
-	  } else if (result != 0) {
-		LOGE("avcodec_receive_frame error: %s", av_err2str(result));
-		if (mErrorCallback != nullptr) {
-		  mErrorCallback->onFFmpegError("avcodec_receive_frame error", result);
+		mPacketCount.fetch_add(1, std::memory_order_relaxed);
+		if (result != 0) {
+		  LOGE("avcodec_send_packet error: %s", av_err2str(result));
+		  if (mErrorCallback != nullptr) {
+			mErrorCallback->onFFmpegError("avcodec_send_packet error", result);
+		  }
+		  state = DecodeState::Finished;
+		  break;
 		}
+		state = DecodeState::Drain;
 		break;
-	  }
 
-#if HW_ACCEL
-	  // Get frame from hardware acceleration
-	  if (decodedFrame->format == mHW_pix_fmt) {
-		/* retrieve data from GPU to CPU */
-		if ((result = av_hwframe_transfer_data(decodedFrame, tempFrame, 0)) < 0) {
-		  LOGE("Error transferring the data to system memory\n");
-		  return;
+	  case DecodeState::Flush:
+		// Enter draining mode, the codec will output the remaining frames then EOF
+		avcodec_send_packet(mCodec_ctx, nullptr);
+		state = DecodeState::Drain;
+		break;
+
+	  case DecodeState::Drain:
+		result = drainFrames(decodedFrame);
+		if (result == AVERROR(EAGAIN)) {
+		  // A packet still in avPacket was refused by the codec
+		  state = avPacket->size > 0 ? DecodeState::SendPacket : DecodeState::ReadPacket;
+		} else if (result == AVERROR_EXIT) {
+		  // Interrupted by a seek or a reset, handled at the top of the loop
+		  state = DecodeState::ReadPacket;
+		} else if (result == kLoopEnd) {
+		  performLoop(avPacket);
+		  state = DecodeState::ReadPacket;
+		} else if (result == AVERROR_EOF) {
+		  if (mSeekIndexContiguous) {
+			// The whole file was read in order, every point was recorded
+			mSeekIndex.setComplete(true);
+		  }
+		  if (mLooping.load(std::memory_order_acquire)) {
+			performLoop(avPacket);
+			state = DecodeState::ReadPacket;
+		  } else {
+			mEndOfStream.store(true, std::memory_order_release);
+			state = DecodeState::EndOfStream;
+		  }
+		} else {
+		  LOGE("avcodec_receive_frame error: %s", av_err2str(result));
+		  if (mErrorCallback != nullptr) {
+			mErrorCallback->onFFmpegError("avcodec_receive_frame error", result);
+		  }
+		  state = DecodeState::Finished;
 		}
-	  } else {
-		tempFrame = decodedFrame;
-	  }
-#else
-	  tempFrame = decodedFrame;
-#endif
+		break;
 
+	  case DecodeState::EndOfStream:
+		// Completion is reported once the last frame is played, a seek still restarts the decoding
+		if (mLooping.load(std::memory_order_acquire)) {
+		  // Looping enabled before the end was played
+		  performLoop(avPacket);
+		  state = DecodeState::ReadPacket;
+		} else if (mFifoBuffer->getReadCounter() >= mFifoBuffer->getWriteCounter()) {
+		  state = DecodeState::Finished;
+		} else {
+		  mWakeup.wait();
+		}
+		break;
 
-	  /**
-	   * Resampling.
-	   * */
+	  case DecodeState::Finished:
+		break;
+	}
+  }
 
-	  auto dst_nb_samples = (int32_t) av_rescale_rnd(
-		  swr_get_delay(mSwr, decodedFrame->sample_rate) + decodedFrame->nb_samples,
-		  kSampleRate,
-		  decodedFrame->sample_rate,
-		  AV_ROUND_UP);
+  stopDemuxThread();
+  // The target is past the end of file, or decoding failed
+  finishSeek(mSeekLandingUs);
 
-	  short *buffer1;
-	  av_samples_alloc(
-		  (uint8_t **) &buffer1,
-		  nullptr,
-		  kSampleRate,
-		  dst_nb_samples,
-		  AV_SAMPLE_FMT_FLT,
-		  0);
-	  int frame_count = swr_convert(
-		  mSwr,
-		  (uint8_t **) &buffer1,
-		  dst_nb_samples,
-		  (const uint8_t **) decodedFrame->data,
-		  decodedFrame->nb_samples);
+  av_frame_free(&decodedFrame);
+  av_packet_free(&avPacket);
+  LOGD("DECODE END");
 
+  bool completed = result == AVERROR_EOF && mReset == false;
 
+  // End of file reached, call completion callback
+  // Done last, the callback may launch a new decode thread
+  if (completed && mCompletionCallback != nullptr) {
+	mCompletionCallback->onCompletion();
+  }
+}
+
+/**
+ * Start the demux thread if it is enabled.
+ * */
+void FFmpegDecoder::startDemuxThread() {
+  if (mDemuxThreadEnabled && mPacketQueue.getCapacity() > 0) {
+	mPacketQueue.reset();
+	mDemuxThread = std::thread(&FFmpegDecoder::demux, this);
+	thread::setName(mDemuxThread, "FFmpegDemuxer");
+  }
+}
+
+/**
+ * Stop the demux thread, it may wait for a free slot in the queue.
+ * */
+void FFmpegDecoder::stopDemuxThread() {
+  if (mDemuxThread.joinable()) {
+	mPacketQueue.abort();
+	mDemuxThread.join();
+  }
+}
 
-	  // Wait the play flag are true and there is enough place in fifo
-	  std::unique_lock<std::mutex> lk(mMutex);
-	  // TODO Implement clock
-	  mCVPlaying.wait(lk, [&] { return mIsPlaying && (frame_count <= getWriteFramesAvailable()); });
+/**
+ * Park the demux thread, the decode thread can then seek the format context.
+ * */
+void FFmpegDecoder::pauseDemuxThread() {
+  if (mDemuxThread.joinable()) {
+	mPacketQueue.pauseProducer();
+  }
+}
 
-	  // Store current pts
-	  mCurrentPosition.store(decodedFrame->pts, std::memory_order_release);
+/**
+ * Drop the packets read before the seek and let the demux thread read from the new position.
+ * */
+void FFmpegDecoder::resumeDemuxThread() {
+  if (mDemuxThread.joinable()) {
+	mPacketQueue.flush();
+  }
+}
 
+/**
+ * Demux loop, read the packets of the audio stream into the packet queue.
+ * The thread lives as long as the decode thread, it waits at the end of the
+ * file for a seek or a loop to flush the queue.
+ * */
+void FFmpegDecoder::demux() {
+  LOGD("DEMUX START");
 
-	  mFifoBuffer->write(buffer1, frame_count); // Write array to the fifo buffer
+  while (true) {
+	AVPacket *avPacket = mPacketQueue.waitWritable();
+	if (avPacket == nullptr) {
+	  // Queue aborted by the decode thread
+	  break;
+	}
 
-	  av_freep(&buffer1);
+	int result = av_read_frame(mFmt_ctx, avPacket);
+	if (result < 0) {
+	  // Also when interrupted by a reset, the decode thread then aborts the queue
+	  mPacketQueue.setEndOfStream(result);
+	  continue;
+	}
 
+	if (avPacket->stream_index == mStream->index && avPacket->size > 0) {
+	  int64_t durationUs = mPacketDurationUs;
+	  if (avPacket->duration > 0) {
+		durationUs = av_rescale_q(avPacket->duration, mStream->time_base, AV_TIME_BASE_Q);
+	  }
+	  mPacketQueue.push(durationUs);
+	} else {
 	  av_packet_unref(avPacket);
 	}
   }
 
-  // End of file reached, call completion callback
-  if (result == AVERROR_EOF && mCompletionCallback != nullptr && mReset == false) {
-	mCompletionCallback->onCompletion();
+  LOGD("DEMUX END");
+}
+
+/**
+ * Get the number of slots of the packet queue.
+ * Without a duration budget the queue is bounded by its number of slots,
+ * otherwise there is enough slots to hold the whole duration.
+ *
+ * @return packet queue capacity
+ * */
+uint32_t FFmpegDecoder::getPacketQueueCapacity() {
+  if (mReadAheadDurationUs <= 0) {
+	return mReadAheadBytes > 0 ? kMaxPacketQueueSize : kPacketQueueSize;
   }
 
+  int64_t capacity = av_rescale_rnd(mReadAheadDurationUs, 1, mPacketDurationUs, AV_ROUND_UP);
+  return static_cast<uint32_t>(std::clamp<int64_t>(capacity, kPacketQueueSize, kMaxPacketQueueSize));
+}
 
-  av_frame_free(&decodedFrame);
-  LOGD("DECODE END");
+/**
+ * Read the next packet, either directly from the file or from the demux thread.
+ *
+ * @param packet packet receiving the data
+ * @return 0 on success, AVERROR_EOF at the end of the file, or an error
+ * */
+int FFmpegDecoder::readPacket(AVPacket *packet) {
+  int result = mDemuxThread.joinable() ? mPacketQueue.pop(packet) : av_read_frame(mFmt_ctx, packet);
+
+  // Record the keyframe points, the index is only appended in increasing pts
+  if (result == 0 && packet->stream_index == mStream->index && (packet->flags & AV_PKT_FLAG_KEY)
+	  && packet->pos >= 0 && packet->pts != AV_NOPTS_VALUE) {
+	mSeekIndex.record(packet->pts, packet->pos);
+  }
+  return result;
+}
+
+/**
+ * Receive every frame available in the codec and resample them directly into
+ * the fifo. The frames are published as one batch once the codec is drained.
+ *
+ * @param decodedFrame frame used to receive data from the codec
+ * @return AVERROR(EAGAIN) when the codec needs a new packet,
+ * AVERROR_EOF when the codec is fully drained, kLoopEnd when the loop end is written,
+ * AVERROR_EXIT on reset, or an error
+ * */
+int FFmpegDecoder::drainFrames(AVFrame *decodedFrame) {
+  int result;
+  int32_t batchFrames = 0;
+  int64_t batchPts = AV_NOPTS_VALUE;
+  // Never batch more than what the fifo can take at once
+  auto maxBatchFrames = static_cast<int32_t>(getFifoCapacity() / 2);
+
+  while ((result = avcodec_receive_frame(mCodec_ctx, decodedFrame)) == 0) {
+
+	// The codec may change its output during the stream, swr is then needed
+	if (mPassthrough != PassthroughFormat::None
+		&& Passthrough::getFormat(decodedFrame->format,
+								  decodedFrame->channels,
+								  decodedFrame->sample_rate,
+								  mOutputSampleRate) != mPassthrough) {
+	  LOGD("Source format changed, passthrough disabled");
+	  mPassthrough = PassthroughFormat::None;
+	  try {
+		initResampler(decodedFrame->format,
+					  decodedFrame->channels,
+					  decodedFrame->channel_layout,
+					  decodedFrame->sample_rate);
+	  } catch (std::runtime_error &e) {
+		LOGE("%s", e.what());
+		return AVERROR(EINVAL);
+	  }
+	}
 
+	// After a seek, discard the samples before the target
+	int32_t skip = getSkipSamples(decodedFrame);
+	if (skip >= decodedFrame->nb_samples) {
+	  av_frame_unref(decodedFrame);
+	  continue;
+	}
+	// In a loop region, the samples after the loop end are cut
+	int32_t keep = getLoopKeepSamples(decodedFrame);
+	if (keep <= skip) {
+	  av_frame_unref(decodedFrame);
+	  result = kLoopEnd;
+	  break;
+	}
+	bool loopEnd = keep < decodedFrame->nb_samples;
+	decodedFrame->nb_samples = keep;
+	if (skip > 0 && mSwr != nullptr) {
+	  swr_drop_output(mSwr, (int) av_rescale(skip, mOutputSampleRate, decodedFrame->sample_rate));
+	}
 
-  // Notify reset method the decode loop is finished
-  std::lock_guard<std::mutex> lk(mMutex);
-  mStopWaitReset = true;
-  mCVReset.notify_one();
+	/**
+	 * Resampling.
+	 * */
+	int64_t delay = mSwr != nullptr ? swr_get_delay(mSwr, decodedFrame->sample_rate) : 0;
+	auto dst_nb_samples = (int32_t) av_rescale_rnd(
+		delay + decodedFrame->nb_samples,
+		mOutputSampleRate,
+		decodedFrame->sample_rate,
+		AV_ROUND_UP);
+
+	if (batchFrames > 0 && batchFrames + dst_nb_samples > maxBatchFrames) {
+	  commitToFifo(batchFrames, batchPts);
+	  batchFrames = 0;
+	}
+
+	if (!waitForFifoSpace(batchFrames + dst_nb_samples)) {
+	  av_frame_unref(decodedFrame);
+	  return AVERROR_EXIT;
+	}
+
+	int frame_count = convertToFifo(decodedFrame, skip, batchFrames, dst_nb_samples);
+	if (frame_count > 0) {
+	  if (batchFrames == 0) {
+		batchPts = decodedFrame->pts;
+		if (skip > 0 && batchPts != AV_NOPTS_VALUE) {
+		  batchPts += av_rescale_q(skip, AVRational{1, decodedFrame->sample_rate}, mStream->time_base);
+		}
+	  }
+	  batchFrames += frame_count;
+	  // The first frame at a seek target is committed at once, the seek completes with it
+	  if (mSeekCompletePending) {
+		commitToFifo(batchFrames, batchPts);
+		batchFrames = 0;
+	  }
+	}
+	av_frame_unref(decodedFrame);
+	if (loopEnd) {
+	  result = kLoopEnd;
+	  break;
+	}
+  }
+
+  // Get the samples delayed in swr
+  if ((result == AVERROR_EOF || result == kLoopEnd) && mSwr != nullptr) {
+	int32_t delayed = swr_get_out_samples(mSwr, 0);
+	if (delayed > 0 && waitForFifoSpace(batchFrames + delayed)) {
+	  batchFrames += convertToFifo(nullptr, 0, batchFrames, delayed);
+	}
+  }
+
+  if (batchFrames > 0) {
+	commitToFifo(batchFrames, batchPts);
+  }
+
+  return result;
+}
+
+/**
+ * Convert a frame in place into the empty part of the fifo, after the
+ * frames not committed yet. The data is not visible to the reader until commitToFifo().
+ *
+ * @param frame decoded frame, or nullptr to flush swr
+ * @param skip number of samples of the frame to skip, only used by passthrough,
+ * swr drops them itself
+ * @param offset number of frames written but not committed
+ * @param maxFrames maximum number of frames to write
+ * @return number of frames written
+ * */
+int32_t FFmpegDecoder::convertToFifo(AVFrame *frame, int32_t skip, int32_t offset, int32_t maxFrames) {
+  oboe::FifoRegions regions;
+  mFifoBuffer->getWriteRegions(offset, regions);
+
+  int32_t written = 0;
+  // The second region is only used when the fifo wraps around
+  for (int i = 0; i < 2 && written < maxFrames; i++) {
+	int32_t frames = std::min(regions.frames[i], maxFrames - written);
+	if (frames <= 0) {
+	  break;
+	}
+
+	auto *output = static_cast<float *>(regions.data[i]);
+	int frame_count;
+	if (mPassthrough != PassthroughFormat::None) {
+	  frames = std::min(frames, frame->nb_samples - skip - written);
+	  Passthrough::convert(mPassthrough, frame->extended_data, frame->channels, skip + written, frames, output);
+	  frame_count = frames;
+	} else if (frame == nullptr) {
+	  // Flush at end of file
+	  frame_count = swr_convert(mSwr, (uint8_t **) &output, frames, nullptr, 0);
+	} else {
+	  // swr keeps what doesn't fit in the first region, the next call only
+	  // takes it back (a null input would flush the resampler instead)
+	  frame_count = swr_convert(mSwr,
+								(uint8_t **) &output,
+								frames,
+								(const uint8_t **) frame->extended_data,
+								i == 0 ? frame->nb_samples : 0);
+	}
+
+	if (frame_count < 0) {
+	  LOGE("swr_convert error: %s", av_err2str(frame_count));
+	  break;
+	}
+	written += frame_count;
+	if (frame_count < frames) {
+	  break;
+	}
+  }
+  return written;
+}
+
+/**
+ * Wait for enough empty space in the fifo.
+ * The decode thread sleeps without lock, it is woken up by the reader once
+ * the fifo drops below the low watermark, or when the playback state changes.
+ *
+ * @param frameCount number of frames, including the ones not committed yet
+ * @return false if the decoder is reset or a seek is pending
+ * */
+bool FFmpegDecoder::waitForFifoSpace(int32_t frameCount) {
+  auto capacity = static_cast<int32_t>(getFifoCapacity());
+  // A single frame larger than the fifo is truncated instead of waiting forever
+  frameCount = std::min(frameCount, capacity);
+
+  if (mBurstHighWatermark > 0) {
+	mLowWatermark.store(mBurstLowWatermark, std::memory_order_relaxed);
+  } else {
+	// Don't wake up before frameCount fits, nor before half of the fifo is free
+	mLowWatermark.store(std::min(capacity / 2, capacity - frameCount), std::memory_order_relaxed);
+  }
+
+  auto interrupted = [&] {
+	return mReset || mSeekTargetUs.load(std::memory_order_acquire) != kNoSeek;
+  };
+  // While paused, the first frame at a seek target is still decoded for the seek to complete
+  auto writable = [&] {
+	return (mIsPlaying || mPrebuffering || mSeekCompletePending)
+		&& frameCount <= getWriteFramesAvailable() && canWriteBurst(frameCount);
+  };
+  while (!interrupted() && !writable()) {
+	mWakeup.wait();
+  }
+  return !interrupted();
+}
+
+/**
+ * With burst decoding, keep writing until the high watermark is reached,
+ * then wait for the fifo to drop below the low watermark before refilling.
+ *
+ * @param frameCount number of frames, including the ones not committed yet
+ * @return true if the frames can be written now
+ * */
+bool FFmpegDecoder::canWriteBurst(int32_t frameCount) {
+  if (mBurstHighWatermark <= 0) {
+	return true;
+  }
+
+  auto fullFrames = static_cast<int32_t>(getFullFramesAvailable());
+  if (mRefilling && fullFrames + frameCount <= mBurstHighWatermark) {
+	return true;
+  }
+  // High watermark reached, the next refill starts below the low watermark
+  mRefilling = fullFrames <= mBurstLowWatermark;
+  return mRefilling;
+}
+
+/**
+ * Publish the frames written in place to the reader.
+ *
+ * @param frameCount number of frames
+ * @param pts presentation timestamp of the frames
+ * */
+void FFmpegDecoder::commitToFifo(int32_t frameCount, int64_t pts) {
+  // Store current pts
+  mCurrentPosition.store(pts, std::memory_order_release);
+
+  // First write after a seek, start a new segment
+  if (!mSegmentValid.load(std::memory_order_relaxed) && pts != AV_NOPTS_VALUE) {
+	mSegmentStartCounter.store(mFifoBuffer->getWriteCounter(), std::memory_order_relaxed);
+	mSegmentStartUs.store(av_rescale_q(pts - getStartPts(), mStream->time_base, AV_TIME_BASE_Q),
+						  std::memory_order_relaxed);
+	mSegmentValid.store(true, std::memory_order_release);
+  }
+
+
+  mFifoBuffer->commitWrite(frameCount);
+  mFifoWriteCount.fetch_add(1, std::memory_order_relaxed);
+  // Everything allocated after this point is counted as steady state allocation
+  if (mFirstFrameBufferAllocationCount.load(std::memory_order_relaxed) == kNoAllocationCount) {
+	mFirstFrameBufferAllocationCount.store(getBufferAllocationCount(), std::memory_order_relaxed);
+  }
+  // The audio at the seek target is now readable
+  if (mSeekCompletePending) {
+	finishSeek(mSegmentValid.load(std::memory_order_acquire)
+				   ? mSegmentStartUs.load(std::memory_order_relaxed) : mSeekLandingUs);
+  }
+}
+
+/**
+ * Read frames in place from the fifo and copy them with the volume applied.
+ * The missing frames are filled with silence.
+ *
+ * @param destination interleaved output
+ * @param numFrames number of frames requested
+ * @param leftVolume left volume
+ * @param rightVolume right volume
+ * @return number of frames actually read
+ * */
+int32_t FFmpegDecoder::readFrames(float *destination, int32_t numFrames, float leftVolume, float rightVolume) {
+  if (mScrubber.isActive()) {
+	return mScrubber.readFrames(destination, numFrames, leftVolume, rightVolume);
+  }
+
+  // Drop the frames written before a seek
+  uint64_t discardUntil = mDiscardUntil.load(std::memory_order_acquire);
+  if (discardUntil > mFifoBuffer->getReadCounter()) {
+	mFifoBuffer->setReadCounter(discardUntil);
+  }
+  applyReadSeek();
+
+  oboe::FifoRegions regions;
+  int32_t available = mFifoBuffer->getReadRegions(regions);
+
+  int32_t framesRead = 0;
+  for (int i = 0; i < 2 && framesRead < numFrames; i++) {
+	int32_t frames = std::min(regions.frames[i], numFrames - framesRead);
+	if (frames <= 0) {
+	  break;
+	}
+
+	auto *input = static_cast<const float *>(regions.data[i]);
+	float *output = destination + framesRead * mChannelCount;
+	if (leftVolume == 1.0f && rightVolume == 1.0f) {
+	  memcpy(output, input, frames * mChannelCount * sizeof(float));
+	} else {
+	  for (int32_t j = 0; j < frames; j++) {
+		output[j * 2] = input[j * 2] * leftVolume;
+		output[j * 2 + 1] = input[j * 2 + 1] * rightVolume;
+	  }
+	}
+	framesRead += frames;
+  }
+  mFifoBuffer->commitRead(framesRead);
+
+  if (available - framesRead <= mLowWatermark.load(std::memory_order_relaxed)) {
+	mWakeup.signal();
+  }
+
+  if (framesRead < numFrames) {
+	memset(destination + framesRead * mChannelCount, 0,
+		   (numFrames - framesRead) * mChannelCount * sizeof(float));
+  }
+  return framesRead;
 }
 
 #if HW_ACCEL
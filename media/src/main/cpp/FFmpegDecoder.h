@@ -20,6 +20,7 @@
 #include <jni.h>
 #include <string>
 #include <memory>
+#include <algorithm>
 #include <stdint.h>
 
 #include <thread>
@@ -34,12 +35,25 @@ extern "C" {
 }
 
 #include "fifo/FifoBuffer.h"
+#include "buffer/PacketQueue.h"
+#include "convert/Passthrough.h"
+#include "sync/WakeupSignal.h"
+#include "seek/SeekIndex.h"
+#include "scrub/Scrubber.h"
+#include "duration/DurationService.h"
 #include "callback/FFmpegCallback.h"
 #include "utils.h"
 #include "constants.h"
 
 #define HW_ACCEL 0
 
+/**
+ * States of the decode loop.
+ * */
+enum class DecodeState: int32_t { ReadPacket=0, SendPacket, Flush, Drain, EndOfStream, Finished };
+// Same values as the seek modes of the java MediaPlayer
+enum class SeekMode: int32_t { PreviousSync=0, NextSync, ClosestSync, Closest };
+
 class FFmpegDecoder {
  public:
   /**
@@ -69,6 +83,65 @@ class FFmpegDecoder {
    * */
   void start();
 
+  /**
+   * Decode ahead while not playing, until the fifo is full. Used to pre-buffer the next
+   * player of a gapless chain.
+   *
+   * @param enabled true to fill the fifo while not playing
+   * */
+  void setPrebuffering(bool enabled) {
+	mPrebuffering = enabled;
+	mWakeup.signal();
+  }
+
+  /**
+   * Loop the playback inside the decode thread: at the end of file, or at the
+   * end of the loop region, the decoder goes back to the loop start and keeps
+   * filling the fifo. The completion callback is never called while looping.
+   *
+   * @param looping true to loop
+   * */
+  void setLooping(bool looping) {
+	mLooping.store(looping, std::memory_order_release);
+	mWakeup.signal();
+  }
+
+  bool isLooping() {
+	return mLooping.load(std::memory_order_acquire);
+  }
+
+  /**
+   * Set the region played in loop, used when looping is enabled.
+   * Both ends are sample accurate. Takes effect on the next loop.
+   *
+   * @param startUs loop start in microseconds
+   * @param endUs loop end in microseconds, -1 for the end of file
+   * */
+  void setLoopRegion(int64_t startUs, int64_t endUs) {
+	mLoopStartUs.store(std::max<int64_t>(startUs, 0), std::memory_order_relaxed);
+	mLoopEndUs.store(endUs > startUs ? endUs : kNoLoopEnd, std::memory_order_relaxed);
+	mLoopRegionChanged.store(true, std::memory_order_release);
+  }
+
+  /**
+   * Get the number of times the decoder went back to the loop start.
+   *
+   * @return loop count
+   * */
+  uint64_t getLoopCount() {
+	return mLoopCount.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * Check if the end of file is decoded and every frame was read. Lock-free.
+   *
+   * @return true when the last frame of the file was played
+   * */
+  bool isEndOfStream() {
+	return mEndOfStream.load(std::memory_order_acquire)
+		&& mFifoBuffer->getReadCounter() >= mFifoBuffer->getWriteCounter();
+  }
+
   /**
    * Stop the decoding.
    * */
@@ -85,11 +158,123 @@ class FFmpegDecoder {
   bool isPlaying();
 
   /**
-   * Seek in the file.
+   * Seek in the file. A target inside the audio already decoded, either the
+   * played history or the fifo, is served at once by moving the read position.
+   * Otherwise the seek is done by the decode thread, which lands on the exact
+   * sample of the target with SeekMode::Closest, or on the sync point found by
+   * the demuxer with the other modes. Only the last pending seek is kept, a seek
+   * superseded while the demuxer is seeking or reading is interrupted. The audio
+   * at the target is decoded even if not playing, the seek then completes at once.
+   * The decode thread is launched again if it ended with the file.
+   *
+   * @param msecs time in milliseconds
+   * @param mode where to land relative to the target
+   * @return true if the seek was served from the decoded audio, it is then already complete
+   * */
+  bool seekTo(int64_t msecs, SeekMode mode = SeekMode::Closest);
+
+  /**
+   * Set the duration of played audio kept for instant backward seeks.
+   * Must call before prepare().
+   *
+   * @param durationMs history duration in milliseconds, 0 to keep no history
+   * */
+  void setSeekHistoryDurationMs(int32_t durationMs) {
+	mHistoryDurationMs = durationMs;
+  }
+
+  /**
+   * Get the number of seeks served from the decoded audio.
+   *
+   * @return instant seek count
+   * */
+  uint64_t getInstantSeekCount() {
+	return mInstantSeekCount.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * Start the scrub mode at the current position, readFrames() then plays the scrub grains.
+   * Must call after prepare().
+   * */
+  void startScrubbing();
+
+  /**
+   * Stop the scrub mode, readFrames() plays the fifo again.
+   *
+   * @return last scrub position in milliseconds
+   * */
+  int64_t stopScrubbing();
+
+  /**
+   * Move the scrub cursor. Doesn't block.
+   *
+   * @param msecs position in milliseconds
+   * */
+  void scrubTo(int64_t msecs) {
+	mScrubber.scrubTo(msecs * 1000);
+  }
+
+  /**
+   * @return true in scrub mode
+   * */
+  bool isScrubbing() {
+	return mScrubber.isActive();
+  }
+
+  /**
+   * @return scrub grains served from the cache, and decoded
+   * */
+  uint64_t getScrubCacheHits() {
+	return mScrubber.getCacheHits();
+  }
+  uint64_t getScrubCacheMisses() {
+	return mScrubber.getCacheMisses();
+  }
+
+  /**
+   * Set the directory where seek indexes are persisted, the index of a local file
+   * is then loaded on prepare and saved on release. Must call before prepare().
    *
-   * @param time in milliseconds
+   * @param path cache directory, empty to not persist indexes
    * */
-  void seekTo(int msecs);
+  void setSeekIndexCacheDir(const std::string &path) {
+	mSeekIndexCacheDir = path;
+	mDuration.setCacheDir(path);
+  }
+
+  /**
+   * Scan the whole file on a background thread to build the seek index.
+   * Must call after prepare().
+   * */
+  void buildSeekIndex();
+
+  /**
+   * Get the number of points in the seek index.
+   *
+   * @return number of points
+   * */
+  size_t getSeekIndexSize() {
+	return mSeekIndex.size();
+  }
+
+  /**
+   * Get if the seek index covers the whole file.
+   *
+   * @return true if the index is complete
+   * */
+  bool isSeekIndexComplete() {
+	return mSeekIndex.isComplete();
+  }
+
+  /**
+   * Get the time between the last seek request and the first frame written
+   * to the fifo after it.
+   *
+   * @return latency in microseconds
+   * */
+  int64_t getSeekLatencyUs() {
+	return mSeekLatencyUs.load(std::memory_order_relaxed);
+  }
 
   /**
    * Get position in the file.
@@ -99,12 +284,29 @@ class FFmpegDecoder {
   int getCurrentPosition();
 
   /**
-   * Get the duration in milliseconds.
+   * Get the duration left to play. Exact once the end of file is decoded,
+   * computed from the duration before. Lock-free.
    *
-   * @return duration of the file in milliseconds
+   * @return remaining duration in microseconds, -1 if unknown
+   * */
+  int64_t getRemainingUs();
+
+  /**
+   * Get the duration in milliseconds, resolved once by prepare() and refined by the background scan.
+   *
+   * @return duration of the file in milliseconds, -1 if unknown
    * */
   int getDuration();
 
+  /**
+   * Get how the duration was obtained.
+   *
+   * @return accuracy of getDuration()
+   * */
+  DurationService::Accuracy getDurationAccuracy() {
+	return mDuration.getAccuracy();
+  }
+
   /**
    * Release the decoder.
    * */
@@ -132,33 +334,240 @@ class FFmpegDecoder {
   void setErrorCallback(ErrorCallback *errorCallback) { mErrorCallback = errorCallback; }
 
   /**
-   * Read framesToRead or, if not enough, then read as many as are available.
+   * Call when the last requested seek is done.
+   *
+   * @param seekCallback pointer to the callback
+   */
+  void setSeekCallback(SeekCallback *seekCallback) { mSeekCallback = seekCallback; }
+
+  /**
+   * Call when the exact duration is known, after a background scan.
+   *
+   * @param durationCallback pointer to the callback
+   */
+  void setDurationCallback(DurationCallback *durationCallback) { mDuration.setCallback(durationCallback); }
+
+  /**
+   * Read frames in place from the fifo, with the volume applied.
+   * Missing frames are filled with silence.
    *
-   * @param destination
-   * @param framesToRead number of frames requested
+   * @param destination interleaved output
+   * @param numFrames number of frames requested
+   * @param leftVolume left volume
+   * @param rightVolume right volume
    * @return number of frames actually read
    */
-  int32_t getFrame(void *destination, int32_t framesToRead) {
-    return mFifoBuffer->read(destination, framesToRead);
-  }
+  int32_t readFrames(float *destination, int32_t numFrames, float leftVolume, float rightVolume);
 
+  /**
+   * Launch the decode thread, after waiting for the previous one to end.
+   * */
   void launchDecodeThread();
 
+  /**
+   * Set the sample rate of the audio stream, the decoded audio is resampled to it.
+   * Must call before prepare().
+   *
+   * @param sampleRate output sample rate
+   * */
+  void setOutputSampleRate(int32_t sampleRate) {
+	mOutputSampleRate = sampleRate;
+  }
+
+  int32_t getOutputSampleRate() {
+	return mOutputSampleRate;
+  }
+
+  /**
+   * Read the file on a separate thread, connected to the decode thread by a packet queue.
+   * Must call before prepare().
+   *
+   * @param enabled true to use a demux thread
+   * */
+  void setDemuxThreadEnabled(bool enabled) {
+	mDemuxThreadEnabled = enabled;
+  }
+
+  /**
+   * Set the read-ahead budget of the packet queue, this enables the demux thread.
+   * Compressed packets are buffered until one of the limits is reached, and the
+   * decoded audio buffer is kept small. Must call before prepare().
+   *
+   * @param durationUs maximum duration of read-ahead in microseconds, 0 for no limit
+   * @param bytes maximum size of read-ahead in bytes, 0 for no limit
+   * */
+  void setReadAheadBudget(int64_t durationUs, int64_t bytes) {
+	mReadAheadDurationUs = durationUs;
+	mReadAheadBytes = bytes;
+	mDemuxThreadEnabled = mDemuxThreadEnabled || durationUs > 0 || bytes > 0;
+  }
+
+  /**
+   * Set the size of the fifo between the decoder and the output stream.
+   * Must call before prepare().
+   *
+   * @param durationMs fifo size in milliseconds, 0 for the default size
+   * */
+  void setFifoDurationMs(int32_t durationMs) {
+	mFifoDurationMs = durationMs;
+  }
+
+  /**
+   * Get the size of the fifo.
+   *
+   * @return capacity in frames
+   * */
+  uint32_t getFifoCapacity() {
+	return mFifoBuffer->getBufferCapacityInFrames() - mHistoryFrames;
+  }
+
+  /**
+   * Decode in bursts: fill the fifo up to the high watermark, then sleep until
+   * it drops below the low watermark. The fifo is enlarged to hold the high watermark.
+   * Must call before prepare().
+   *
+   * @param lowWatermarkMs low watermark in milliseconds
+   * @param highWatermarkMs high watermark in milliseconds, 0 to disable burst decoding
+   * */
+  void setBurstWatermarks(int32_t lowWatermarkMs, int32_t highWatermarkMs) {
+	mBurstLowWatermarkMs = lowWatermarkMs;
+	mBurstHighWatermarkMs = highWatermarkMs;
+  }
+
+  /**
+   * Get the duration of compressed packets waiting in the packet queue.
+   *
+   * @return duration in microseconds
+   * */
+  int64_t getReadAheadDurationUs() {
+	return mPacketQueue.getQueuedDurationUs();
+  }
+
+  /**
+   * Get the size of compressed packets waiting in the packet queue.
+   *
+   * @return size in bytes
+   * */
+  int64_t getReadAheadBytes() {
+	return mPacketQueue.getQueuedBytes();
+  }
+
+  /**
+   * Get the duration of decoded audio waiting in the fifo.
+   *
+   * @return duration in microseconds
+   * */
+  int64_t getBufferedDurationUs() {
+	return static_cast<int64_t>(getFullFramesAvailable()) * AV_TIME_BASE / mOutputSampleRate;
+  }
+
+  /**
+   * Get if the decoded audio is copied to the fifo without swr.
+   *
+   * @return true if passthrough is used
+   * */
+  bool isPassthrough() {
+	return mPassthrough != PassthroughFormat::None;
+  }
+
+  /**
+   * Get the number of packets waiting in the packet queue.
+   *
+   * @return queued packet count
+   * */
+  uint32_t getQueuedPacketCount() {
+	return mPacketQueue.size();
+  }
+
   uint32_t getFullFramesAvailable() {
     return mFifoBuffer->getFullFramesAvailable();
   }
 
+  /**
+   * Get the number of frames the decoder can write, the history behind
+   * the read position is never overwritten.
+   *
+   * @return writable frames
+   * */
   uint32_t getWriteFramesAvailable() {
-	return mFifoBuffer->getBufferCapacityInFrames() - mFifoBuffer->getFullFramesAvailable();
+	uint64_t limit = mFifoBuffer->getReadCounter() + getFifoCapacity();
+	uint64_t writeCounter = mFifoBuffer->getWriteCounter();
+	return limit > writeCounter ? static_cast<uint32_t>(limit - writeCounter) : 0;
   }
 
-  void notify() {
-    mCVPlaying.notify_one();
+  /**
+   * Get the number of times the decode thread was woken up after sleeping.
+   *
+   * @return wakeup count
+   * */
+  uint64_t getWakeupCount() {
+	return mWakeup.getWakeupCount();
+  }
+
+  /**
+   * Get the average wakeup rate of the decode thread while playing.
+   *
+   * @return wakeups per second, multiplied by 1000
+   * */
+  int64_t getWakeupRateMilliHz();
+
+  /**
+   * Get the number of futex wake syscalls made to wake up the decode thread.
+   *
+   * @return syscall count
+   * */
+  uint64_t getFutexWakeCount() {
+	return mWakeup.getFutexWakeCount();
+  }
+
+  /**
+   * Get the number of packets sent to the codec.
+   *
+   * @return packet count
+   * */
+  uint64_t getPacketCount() {
+	return mPacketCount.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * Get the number of writes to the fifo, frames decoded from one packet are written at once.
+   *
+   * @return fifo write count
+   * */
+  uint64_t getFifoWriteCount() {
+	return mFifoWriteCount.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * Get the number of buffers allocated by the decoder: the fifo, the packet
+   * queue slots and the packet and frame of each decode thread. The allocations
+   * FFmpeg does on its own, for the packet data, frame references or the
+   * resampler, are not counted.
+   *
+   * @return allocation count
+   * */
+  uint64_t getBufferAllocationCount() {
+	return mBufferAllocationCount.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * Get the number of buffers allocated by the decoder after the first frame
+   * was written to the fifo. The allocations done inside FFmpeg are not counted.
+   *
+   * @return allocation count after the first frame
+   * */
+  uint64_t getSteadyStateBufferAllocationCount() {
+	uint64_t firstFrameAllocations = mFirstFrameBufferAllocationCount.load(std::memory_order_relaxed);
+	if (firstFrameAllocations == kNoAllocationCount) {
+	  return 0;
+	}
+	return getBufferAllocationCount() - firstFrameAllocations;
   }
 
  private:
   uint8_t mChannelCount = kChannelCount;
   int mSampleRate;
+  int32_t mOutputSampleRate = kSampleRate;
   std::atomic<int64_t > mCurrentPosition{};
 
   /**
@@ -169,26 +578,128 @@ class FFmpegDecoder {
   AVStream *mStream = nullptr;
   AVCodec *mCodec = nullptr;
   SwrContext *mSwr = nullptr;
+  PassthroughFormat mPassthrough = PassthroughFormat::None;
   enum AVPixelFormat mHW_pix_fmt = AV_PIX_FMT_NONE;
 
   /**
    * Playing flag and buffer.
    * */
-  bool mIsPlaying = false;
+  std::atomic<bool> mIsPlaying{false};
+  std::atomic<bool> mPrebuffering{false};
+  std::atomic<bool> mEndOfStream{false}; // The last frame of the file is in the fifo
   std::unique_ptr<oboe::FifoBuffer> mFifoBuffer = std::make_unique<oboe::FifoBuffer>(kChannelCount * sizeof(float), kBufferSize);
 
+  /**
+   * Decode loop counters.
+   * */
+  std::atomic<uint64_t> mPacketCount{0};
+  std::atomic<uint64_t> mFifoWriteCount{0};
+  static constexpr uint64_t kNoAllocationCount = UINT64_MAX;
+  std::atomic<uint64_t> mBufferAllocationCount{0};
+  std::atomic<uint64_t> mFirstFrameBufferAllocationCount{kNoAllocationCount};
+
+  /**
+   * Demux thread and packet queue.
+   * */
+  bool mDemuxThreadEnabled = false;
+  PacketQueue mPacketQueue;
+  std::thread mDemuxThread;
+  int64_t mReadAheadDurationUs = 0;
+  int64_t mReadAheadBytes = 0;
+  int64_t mPacketDurationUs = 0; // Estimated duration of a packet, when the demuxer doesn't know it
+
+  int32_t mFifoDurationMs = 0; // 0 for the default size
+
+  /**
+   * Burst decoding, disabled when the high watermark is 0.
+   * */
+  int32_t mBurstLowWatermarkMs = 0;
+  int32_t mBurstHighWatermarkMs = 0;
+  int32_t mBurstLowWatermark = 0; // In frames
+  int32_t mBurstHighWatermark = 0; // In frames
+  bool mRefilling = true; // Only used by the decode thread
+
+  /**
+   * Time spent playing, to compute the wakeup rate.
+   * */
+  std::atomic<int64_t> mPlayingTimeUs{0};
+  std::atomic<int64_t> mPlayStartUs{0};
+
+  /**
+   * Seek, the request is handled by the decode thread.
+   * */
+  static constexpr int64_t kNoSeek = INT64_MIN;
+  std::atomic<int64_t> mSeekTargetUs{kNoSeek};
+  std::atomic<SeekMode> mSeekMode{SeekMode::Closest}; // Mode of the last seek, stored before its target
+  std::atomic<int64_t> mSeekRequestTimeUs{0};
+  std::atomic<int64_t> mSeekLatencyUs{0};
+  std::atomic<uint64_t> mDiscardUntil{0}; // The reader drops the fifo frames written before this counter
+  int64_t mSkipUntilPts = AV_NOPTS_VALUE; // Decoded samples before this pts are discarded
+  int64_t mSeekStartUs = 0;
+  bool mSeekCompletePending = false;
+  int64_t mSeekLandingUs = 0; // Position reported when the seek target can't be decoded
+  int64_t mNextFramePts = AV_NOPTS_VALUE; // Expected pts of the next frame, when the demuxer doesn't set it
+
+  /**
+   * Decoded audio segment, the fifo frames from mSegmentStartCounter are
+   * contiguous from mSegmentStartUs. Invalid until the first write after a seek.
+   * */
+  std::atomic<bool> mSegmentValid{false};
+  std::atomic<uint64_t> mSegmentStartCounter{0};
+  std::atomic<int64_t> mSegmentStartUs{0};
+
+  /**
+   * Looping. From mLoopBaseCounter, the fifo frames repeat the loop region every
+   * mLoopFrames frames, 0 until the second loop measures it.
+   * */
+  static constexpr int64_t kNoLoopEnd = -1;
+  static constexpr uint64_t kNoLoopBase = UINT64_MAX;
+  static constexpr int kLoopEnd = 1; // Returned by drainFrames() at the end of the loop region
+  std::atomic<bool> mLooping{false};
+  std::atomic<int64_t> mLoopStartUs{0};
+  std::atomic<int64_t> mLoopEndUs{kNoLoopEnd};
+  std::atomic<bool> mLoopRegionChanged{false};
+  std::atomic<uint64_t> mLoopBaseCounter{kNoLoopBase};
+  std::atomic<int64_t> mLoopBaseUs{0};
+  std::atomic<uint64_t> mLoopFrames{0};
+  std::atomic<uint64_t> mLoopCount{0};
+
+  /**
+   * Instant seek, applied by the reader.
+   * */
+  static constexpr uint64_t kNoReadSeek = UINT64_MAX;
+  std::atomic<uint64_t> mReadSeekCounter{kNoReadSeek};
+  std::atomic<int64_t> mReadSeekTargetUs{0};
+  std::atomic<uint64_t> mInstantSeekCount{0};
+  int32_t mHistoryDurationMs = 0;
+  uint32_t mHistoryFrames = 0; // Played frames kept in the fifo
+
+  /**
+   * Seek index, filled during playback or by the indexer thread.
+   * */
+  SeekIndex mSeekIndex;
+  Scrubber mScrubber;
+  DurationService mDuration;
+  std::string mSeekIndexCacheDir;
+  uint64_t mSeekIndexKey = 0; // 0 when the source isn't a local file
+  int64_t mSeekIndexInterval = 0; // In stream time base
+  bool mSeekIndexContiguous = true; // Playback went from the start without seeking
+  std::thread mIndexerThread;
+  std::atomic<bool> mStopIndexer{false};
+
   /**
    * Reset.
    * */
-  bool mReset = false;
-  bool mStopWaitReset = false;
+  std::atomic<bool> mReset{false};
+  std::thread mDecodeThread;
+  std::atomic<bool> mDecodeThreadRunning{false}; // False once the decode loop is over
 
   /*
    * Concurrency.
+   * The reader wakes up the decode thread once the fifo is below mLowWatermark frames.
    * */
-  std::condition_variable mCVPlaying;
-  std::condition_variable mCVReset;
-  std::mutex mMutex;
+  WakeupSignal mWakeup;
+  std::atomic<int32_t> mLowWatermark{0};
 
   /**
    * Input (Url, headers and file descriptor)
@@ -203,11 +714,41 @@ class FFmpegDecoder {
    * */
   CompletionCallback *mCompletionCallback = nullptr;
   ErrorCallback *mErrorCallback = nullptr;
+  SeekCallback *mSeekCallback = nullptr;
 
   /**
    * Private method.
    * */
+  void initResampler(int format, int channels, uint64_t channelLayout, int sampleRate);
   void decode();
+  void stopDecodeThread();
+  bool continueAfterEnd();
+  void demux();
+  void startDemuxThread();
+  void stopDemuxThread();
+  void pauseDemuxThread();
+  void resumeDemuxThread();
+  int performSeek(AVPacket *packet);
+  void performLoop(AVPacket *packet);
+  int32_t getLoopKeepSamples(AVFrame *frame);
+  bool seekInBuffer(int64_t targetUs);
+  void applyReadSeek();
+  void finishSeek(int64_t positionUs);
+  static int interruptDecoder(void *opaque);
+  int32_t getSkipSamples(AVFrame *frame);
+  int64_t getStartPts();
+  bool seekByIndex(int64_t target);
+  std::string getSeekIndexPath();
+  void indexSeekPoints(std::string url, int streamIndex);
+  void stopIndexer();
+  static int interruptIndexer(void *opaque);
+  int readPacket(AVPacket *packet);
+  uint32_t getPacketQueueCapacity();
+  int drainFrames(AVFrame *decodedFrame);
+  int32_t convertToFifo(AVFrame *frame, int32_t skip, int32_t offset, int32_t maxFrames);
+  bool waitForFifoSpace(int32_t frameCount);
+  bool canWriteBurst(int32_t frameCount);
+  void commitToFifo(int32_t frameCount, int64_t pts);
 #if HW_ACCEL
   enum AVPixelFormat get_hw_format(AVCodecContext *ctx,
                                    const enum AVPixelFormat *pix_fmts);
@@ -17,6 +17,7 @@
 #include <unistd.h>
 #include <sched.h>
 #include <exception>
+#include <algorithm>
 #include <oboe/AudioStreamBuilder.h>
 
 #include "MediaPlayer.h"
@@ -25,6 +26,7 @@
 #include "constants.h"
 
 std::vector<int> MediaPlayer::mCpuIds;
+std::mutex MediaPlayer::mPlayersLock;
 
 MediaPlayer::MediaPlayer(jobject thiz, jobject weak_thiz) {
 
@@ -102,17 +104,30 @@ void MediaPlayer::prepare() {
 	return; // Wrong state
   }
 
+  // Let the device choose the sample rate, the decoder resample to it
+  mOutputSampleRate = oboe::kUnspecified;
   oboe::Result result = openOboeStream();
   if (result != oboe::Result::OK) {
 	notify(MEDIA_ERROR,MEDIA_ERROR_UNKNOWN,0);
 	mState = State::ERROR;
 	return;
   }
+  mOutputSampleRate = mStream ? mStream->getSampleRate() : SharedOutput::getInstance().getSampleRate();
+  LOGD("Output sample rate %d", mOutputSampleRate);
 
+  bool lowLatency = mPerformanceProfile == PerformanceProfile::LowLatency;
   try {
+	mDecoder.setOutputSampleRate(mOutputSampleRate);
+	// A short fifo, filled before the stream starts
+	mDecoder.setFifoDurationMs(mFifoSizeMs > 0 ? mFifoSizeMs : (lowLatency ? kLowLatencyFifoMs : 0));
+	// Set before prepare, the duration scan starts during it
+	mDecoder.setDurationCallback(this);
+	quiesceOutput();
 	mDecoder.prepare();
 	mDecoder.setCompletionCallback(this);
 	mDecoder.setErrorCallback(this);
+	mDecoder.setSeekCallback(this);
+	mDecoder.setPrebuffering(lowLatency);
 	mState = State::PREPARED;
   } catch(std::runtime_error &e) {
 	const char *exClassName = "java/lang/IllegalArgumentException";
@@ -122,6 +137,33 @@ void MediaPlayer::prepare() {
   notify(MEDIA_PREPARED,0,0);
 }
 
+/**
+ * Wait until no data callback reads the fifo of the decoder, prepare() may replace it.
+ * A stopped stream may still run its callback, the stop is asynchronous.
+ * */
+void MediaPlayer::quiesceOutput() {
+  if (mAttached) {
+	// The mixer checks that the decoder plays before reading it
+	SharedOutput::getInstance().waitForCallback();
+  }
+
+  std::shared_ptr<oboe::AudioStream> stream;
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	stream = mStream;
+  }
+  if (stream) {
+	// Blocking, the callback is not running anymore once it returns
+	stream->stop();
+  }
+
+  // A previous player may be stopped with this one spliced in its stream
+  std::lock_guard<std::mutex> lock(mPlayersLock);
+  if (mPreviousPlayer != nullptr) {
+	mPreviousPlayer->unlinkGaplessNext();
+  }
+}
+
 /**
  * Start/Resume the playback.
  * */
@@ -134,11 +176,21 @@ void MediaPlayer::start() {
   }
 
   if(mState == State::PLAYBACKCOMPLETED) {
-	seekTo(0); // Restart from the beginning
+	// Restart from the beginning, the decode thread that ended with the file is launched again
+	seekTo(0);
+  }
+
+  // The stream was handed over to the next player, open a new one
+  if (!mStream && openOboeStream() != oboe::Result::OK) {
+	notify(MEDIA_ERROR,MEDIA_ERROR_UNKNOWN,0);
+	mState = State::ERROR;
+	return;
   }
 
   mState = State::STARTED;
-  mStream->requestStart();
+  if (mStream) {
+	mStream->requestStart();
+  }
   mDecoder.start();
   notify(MEDIA_STARTED,0,0);
 }
@@ -156,7 +208,9 @@ void MediaPlayer::stop() {
   }
 
   mState = State::STOPPED;
-  mStream->requestStop();
+  if (mStream) {
+	mStream->requestStop();
+  }
   mDecoder.pause();
   notify(MEDIA_STOPPED,0,0);
 }
@@ -173,29 +227,46 @@ void MediaPlayer::pause() {
   }
 
   mState = State::PAUSED;
-  mStream->requestPause();
+  if (mStream) {
+	mStream->requestPause();
+  }
   mDecoder.pause();
   notify(MEDIA_PAUSED,0,0);
 }
 
 void MediaPlayer::setOutputDevice(int device) {
+  if (device == mOutputDevice) {
+	return;
+  }
   mOutputDevice = device;
-  restartOboeStream();
+  if (swapOboeStream()) {
+	notify(MEDIA_AUDIO_ROUTING_CHANGED, 0, 0);
+  }
 }
 
 int MediaPlayer::getRoutedDeviceI() {
-  return mStream->getDeviceId();
+  // The stream may have been handed over to the next player
+  if (mAttached) {
+	return SharedOutput::getInstance().getDeviceId();
+  }
+  return mStream ? mStream->getDeviceId() : mOutputDevice;
 }
 
 void MediaPlayer::setLooping(bool loop) {
   mIsLooping = loop;
+  // Looping is done by the decode thread, the completion is never reported
+  mDecoder.setLooping(loop);
+}
+
+void MediaPlayer::setLoopRegion(int64_t startUs, int64_t endUs) {
+  mDecoder.setLoopRegion(startUs, endUs);
 }
 
 /**
  * Get if the player is looping.
  * */
 bool MediaPlayer::isLooping() {
-  return false;
+  return mIsLooping;
 }
 
 /**
@@ -209,11 +280,15 @@ bool MediaPlayer::isPlaying() {
  * Seek in the file.
  *
  * @param msecs in milliseconds
+ * @param mode where to land relative to msecs
  *
  * */
-void MediaPlayer::seekTo(int msecs) {
-  mDecoder.seekTo(msecs);
-  notify(MEDIA_SEEK_COMPLETE,0,0);
+void MediaPlayer::seekTo(int64_t msecs, SeekMode mode) {
+  // Doesn't block, MEDIA_SEEK_COMPLETE is sent by onSeekComplete(),
+  // or at once when the target is in the decoded audio
+  if (mDecoder.seekTo(msecs, mode)) {
+	notify(MEDIA_SEEK_COMPLETE,static_cast<int>(mDecoder.getCurrentPosition()),0);
+  }
 }
 
 /**
@@ -235,12 +310,353 @@ int MediaPlayer::getDuration() {
 }
 
 /**
- * Set the next media player
+ * Set the next media player. If both players are prepared at the same output
+ * sample rate, the next one pre-buffers its first frames and is spliced without
+ * gap into the stream of this one.
  *
  * @param nextPlayer the player to set to
  * */
 void MediaPlayer::setNextMediaPlayer(MediaPlayer *nextPlayer) {
+  std::lock_guard<std::mutex> lock(mPlayersLock);
+  MediaPlayer *previous = unlinkGaplessNext();
+  if (previous != nullptr && previous != nextPlayer) {
+	previous->mDecoder.setPrebuffering(previous->mPerformanceProfile == PerformanceProfile::LowLatency);
+	previous->mFadeInPosition.store(-1, std::memory_order_relaxed);
+  }
+  mFadeOutPosition.store(-1, std::memory_order_relaxed);
+  if (mNextPlayer != nullptr) {
+	mNextPlayer->mPreviousPlayer = nullptr;
+  }
+  // A player is the next one of a single player
+  if (nextPlayer != nullptr && nextPlayer->mPreviousPlayer != nullptr && nextPlayer->mPreviousPlayer != this) {
+	nextPlayer->mPreviousPlayer->unlinkGaplessNext();
+	nextPlayer->mPreviousPlayer->mNextPlayer = nullptr;
+  }
   mNextPlayer = nextPlayer;
+  if (nextPlayer != nullptr) {
+	nextPlayer->mPreviousPlayer = this;
+  }
+
+  // The shared output has no router, the next player is started on completion
+  if (nextPlayer != nullptr && nextPlayer != this && !mSharedOutput
+	  && nextPlayer->mState == State::PREPARED
+	  && nextPlayer->mOutputSampleRate == mOutputSampleRate) {
+	nextPlayer->mDecoder.setPrebuffering(true);
+	mGaplessNext.store(nextPlayer);
+  }
+}
+
+/**
+ * Stop splicing the next player in the stream. Once it returns, the data callback
+ * doesn't run into the next player anymore. Called with mPlayersLock held.
+ *
+ * @return the player that was spliced, nullptr if there was none
+ * */
+MediaPlayer *MediaPlayer::unlinkGaplessNext() {
+  // Sequentially consistent with the callback, which sets mInCallback of the router before loading it
+  MediaPlayer *next = mGaplessNext.exchange(nullptr);
+  if (next == nullptr) {
+	return nullptr;
+  }
+
+  std::shared_ptr<StreamRouter> router;
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	router = mRouter;
+  }
+  if (router != nullptr) {
+	router->waitForCallback();
+	// The file ended, the data callback already switched to the next player
+	if (router->getDataTarget() == next) {
+	  router->setTarget(this, this);
+	  router->waitForCallback();
+	}
+  }
+  return next;
+}
+
+/**
+ * Remove this player from the chain of players, before it is reset or destroyed.
+ * */
+void MediaPlayer::unlinkPlayers() {
+  std::lock_guard<std::mutex> lock(mPlayersLock);
+  unlinkGaplessNext();
+  if (mNextPlayer != nullptr) {
+	mNextPlayer->mPreviousPlayer = nullptr;
+	mNextPlayer = nullptr;
+  }
+  if (mPreviousPlayer != nullptr) {
+	mPreviousPlayer->unlinkGaplessNext();
+	mPreviousPlayer->mNextPlayer = nullptr;
+	mPreviousPlayer = nullptr;
+  }
+}
+
+/**
+ * Overlap the end of this player with the start of the next one. The next player
+ * is pre-buffered by setNextMediaPlayer() and mixed in the data callback of this one.
+ *
+ * @param durationMs crossfade duration in milliseconds, 0 to disable
+ * @param curve gain curve
+ * */
+void MediaPlayer::setCrossfade(int32_t durationMs, CrossfadeCurve curve) {
+  mCrossfadeCurve.store(curve, std::memory_order_relaxed);
+  mCrossfadeMs.store(std::max(durationMs, 0), std::memory_order_relaxed);
+}
+
+/**
+ * Check that the player isn't prepared, the settings applied by prepare() can be changed.
+ * Throws an IllegalStateException otherwise.
+ *
+ * @param method name of the calling method, for the exception message
+ * @return true if the player is in the IDLE, INITIALIZED or STOPPED state
+ * */
+bool MediaPlayer::checkIdleOrInitialized(const char *method) {
+  if((mState != State::IDLE) && (mState != State::INITIALIZED) && (mState != State::STOPPED)) {
+	ScopedEnv env;
+	std::string message = std::string(method) + " called while MediaPlayer is not in IDLE, INITIALIZED or STOPPED state";
+	NewJavaException(env.get(),"java/lang/IllegalStateException",message.c_str());
+	return false;
+  }
+  return true;
+}
+
+/**
+ * Mix the player in the shared output stream instead of opening its own stream.
+ * Must call before prepare().
+ *
+ * @param enabled true to use the shared output
+ * */
+void MediaPlayer::setSharedOutputEnabled(bool enabled) {
+  if (!checkIdleOrInitialized("setSharedOutputEnabled")) {
+	return;
+  }
+  if (enabled != mSharedOutput) {
+	closeOboeStream();
+	mSharedOutput = enabled;
+  }
+}
+
+/**
+ * Read the file on a separate thread. Must call before prepare().
+ *
+ * @param enabled true to use a demux thread
+ * */
+void MediaPlayer::setDemuxThreadEnabled(bool enabled) {
+  if (!checkIdleOrInitialized("setDemuxThreadEnabled")) {
+	return;
+  }
+  mDecoder.setDemuxThreadEnabled(enabled);
+}
+
+/**
+ * Set the compressed read-ahead budget, enables the demux thread. Must call before prepare().
+ *
+ * @param durationMs maximum duration of read-ahead in milliseconds, 0 for no limit
+ * @param bytes maximum size of read-ahead in bytes, 0 for no limit
+ * */
+void MediaPlayer::setReadAheadBudget(int64_t durationMs, int64_t bytes) {
+  if (!checkIdleOrInitialized("setReadAheadBudget")) {
+	return;
+  }
+  mDecoder.setReadAheadBudget(durationMs * 1000, bytes);
+}
+
+/**
+ * Set the buffering profile. Must call before prepare().
+ *
+ * @param latencyMs target latency of the output stream in milliseconds, 0 for the default
+ * @param fifoSizeMs size of the decoded audio buffer in milliseconds, 0 for the default
+ * @param framesPerCallback number of frames per data callback, 0 for the default
+ * */
+void MediaPlayer::setBufferingProfile(int32_t latencyMs, int32_t fifoSizeMs, int32_t framesPerCallback) {
+  if (!checkIdleOrInitialized("setBufferingProfile")) {
+	return;
+  }
+  mLatencyTargetMs = latencyMs;
+  mFramesPerCallback = framesPerCallback;
+  mFifoSizeMs = fifoSizeMs;
+}
+
+/**
+ * Tune the output buffer size from the xrun count. Must call before prepare().
+ *
+ * @param enabled true to start with a small buffer and grow it on xruns
+ * @param shrinkEnabled true to also shrink it after a glitch-free period
+ * */
+void MediaPlayer::setBufferSizeTuning(bool enabled, bool shrinkEnabled) {
+  if (!checkIdleOrInitialized("setBufferSizeTuning")) {
+	return;
+  }
+  // The stream is not running, the tuner is only used by its callback
+  closeOboeStream();
+  mTuner.setEnabled(enabled, shrinkEnabled);
+}
+
+/**
+ * Set the performance profile of the output stream. Must call before prepare().
+ * The low latency profile asks for an exclusive stream, a shared one is used if it
+ * can't be opened. Its fifo is short and filled before the stream starts.
+ *
+ * @param profile performance profile
+ * */
+void MediaPlayer::setPerformanceProfile(PerformanceProfile profile) {
+  if (!checkIdleOrInitialized("setPerformanceProfile")) {
+	return;
+  }
+  if (profile != mPerformanceProfile) {
+	// Opened again by prepare() with the new profile
+	closeOboeStream();
+	mPerformanceProfile = profile;
+  }
+}
+
+/**
+ * Enter or leave the scrub mode. While scrubbing, the stream plays the grains
+ * of the scrubber instead of the playback. Leaving it seeks to the last scrub position.
+ *
+ * @param enabled true to enter the scrub mode
+ * */
+void MediaPlayer::setScrubbing(bool enabled) {
+  if((mState != State::PREPARED) && (mState != State::STARTED)
+	  && (mState != State::PAUSED) && (mState != State::PLAYBACKCOMPLETED)) {
+	ScopedEnv env;
+	NewJavaException(env.get(),"java/lang/IllegalStateException","MediaPlayer is not in PREPARED, STARTED, PAUSED or PLAYBACKCOMPLETED state");
+	return;
+  }
+  if (enabled == mDecoder.isScrubbing()) {
+	return;
+  }
+
+  if (enabled) {
+	mDecoder.startScrubbing();
+	// The grains are heard even if the playback is paused
+	if (mState != State::STARTED && mStream) {
+	  mStream->requestStart();
+	}
+  } else {
+	int64_t position = mDecoder.stopScrubbing();
+	if (mState != State::STARTED && mStream) {
+	  mStream->requestPause();
+	}
+	seekTo(position);
+  }
+}
+
+/**
+ * Play a grain at the scrub position. Doesn't block.
+ *
+ * @param msecs position in milliseconds
+ * */
+void MediaPlayer::scrubTo(int64_t msecs) {
+  if (!mDecoder.isScrubbing()) {
+	ScopedEnv env;
+	NewJavaException(env.get(),"java/lang/IllegalStateException","MediaPlayer is not in scrub mode");
+	return;
+  }
+  mDecoder.scrubTo(msecs);
+}
+
+/**
+ * Set the duration of played audio kept for instant backward seeks. Must call before prepare().
+ *
+ * @param durationMs history duration in milliseconds, 0 to keep no history
+ * */
+void MediaPlayer::setSeekHistoryDuration(int32_t durationMs) {
+  if (!checkIdleOrInitialized("setSeekHistoryDuration")) {
+	return;
+  }
+  mDecoder.setSeekHistoryDurationMs(durationMs);
+}
+
+/**
+ * Set the watermarks of burst decoding. Must call before prepare().
+ *
+ * @param lowWatermarkMs the decoder wakes up when the buffer drops below it
+ * @param highWatermarkMs the decoder fills the buffer up to it, 0 to disable burst decoding
+ * */
+void MediaPlayer::setBurstDecoding(int32_t lowWatermarkMs, int32_t highWatermarkMs) {
+  if (!checkIdleOrInitialized("setBurstDecoding")) {
+	return;
+  }
+  mDecoder.setBurstWatermarks(lowWatermarkMs, highWatermarkMs);
+}
+
+/**
+ * Set the directory where seek indexes are persisted. Must call before prepare().
+ *
+ * @param path cache directory, empty to not persist indexes
+ * */
+void MediaPlayer::setSeekIndexCacheDir(const std::string &path) {
+  if (!checkIdleOrInitialized("setSeekIndexCacheDir")) {
+	return;
+  }
+  mDecoder.setSeekIndexCacheDir(path);
+}
+
+/**
+ * Build the seek index of the whole file on a background thread.
+ * */
+void MediaPlayer::buildSeekIndex() {
+  if((mState != State::PREPARED) && (mState != State::STARTED) && (mState != State::PAUSED)
+	  && (mState != State::PLAYBACKCOMPLETED)) {
+	ScopedEnv env;
+	NewJavaException(env.get(),"java/lang/IllegalStateException","MediaPlayer is not in PREPARED, STARTED, PAUSED or PLAYBACKCOMPLETED state");
+	return;
+  }
+  mDecoder.buildSeekIndex();
+}
+
+/**
+ * Get the player metrics.
+ *
+ * @return metrics value by key
+ * */
+std::map<std::string, int64_t> MediaPlayer::getMetrics() {
+  std::map<std::string, int64_t> metrics;
+  metrics[METRICS_DECODE_BUFFER_ALLOCATIONS] = static_cast<int64_t>(mDecoder.getBufferAllocationCount());
+  metrics[METRICS_DECODE_STEADY_BUFFER_ALLOCATIONS] =
+	  static_cast<int64_t>(mDecoder.getSteadyStateBufferAllocationCount());
+  metrics[METRICS_DECODE_PACKETS] = static_cast<int64_t>(mDecoder.getPacketCount());
+  metrics[METRICS_DECODE_FIFO_WRITES] = static_cast<int64_t>(mDecoder.getFifoWriteCount());
+  metrics[METRICS_DECODE_WAKEUPS] = static_cast<int64_t>(mDecoder.getWakeupCount());
+  metrics[METRICS_DECODE_FUTEX_WAKES] = static_cast<int64_t>(mDecoder.getFutexWakeCount());
+  metrics[METRICS_DECODE_WAKEUP_RATE] = mDecoder.getWakeupRateMilliHz();
+  metrics[METRICS_QUEUED_PACKETS] = static_cast<int64_t>(mDecoder.getQueuedPacketCount());
+  metrics[METRICS_READ_AHEAD_MS] = mDecoder.getReadAheadDurationUs() / 1000;
+  metrics[METRICS_READ_AHEAD_BYTES] = mDecoder.getReadAheadBytes();
+  metrics[METRICS_BUFFERED_MS] = mDecoder.getBufferedDurationUs() / 1000;
+  metrics[METRICS_PASSTHROUGH] = mDecoder.isPassthrough() ? 1 : 0;
+  metrics[METRICS_OUTPUT_SAMPLE_RATE] = mDecoder.getOutputSampleRate();
+  metrics[METRICS_SEEK_LATENCY_US] = mDecoder.getSeekLatencyUs();
+  metrics[METRICS_INSTANT_SEEKS] = static_cast<int64_t>(mDecoder.getInstantSeekCount());
+  metrics[METRICS_SCRUB_CACHE_HITS] = static_cast<int64_t>(mDecoder.getScrubCacheHits());
+  metrics[METRICS_SCRUB_CACHE_MISSES] = static_cast<int64_t>(mDecoder.getScrubCacheMisses());
+  metrics[METRICS_LOOP_COUNT] = static_cast<int64_t>(mDecoder.getLoopCount());
+  metrics[METRICS_GAPLESS_GAP_FRAMES] = mGapFrames.load(std::memory_order_relaxed);
+  metrics[METRICS_OUTPUT_BUFFER_GROWS] = static_cast<int64_t>(mTuner.getGrowCount());
+  metrics[METRICS_OUTPUT_BUFFER_SHRINKS] = static_cast<int64_t>(mTuner.getShrinkCount());
+  metrics[METRICS_WARM_STREAM_REUSES] = mWarmReuses.load(std::memory_order_relaxed);
+  metrics[METRICS_OUTPUT_SWITCHES] = mOutputSwitches.load(std::memory_order_relaxed);
+  metrics[METRICS_SHARED_OUTPUT_SOURCES] = mAttached ? SharedOutput::getInstance().getSourceCount() : 0;
+  metrics[METRICS_CROSSFADE_UNDERRUN_FRAMES] = mCrossfadeUnderrunFrames.load(std::memory_order_relaxed);
+  metrics[METRICS_DURATION_ACCURACY] = static_cast<int64_t>(mDecoder.getDurationAccuracy());
+  metrics[METRICS_SEEK_INDEX_POINTS] = static_cast<int64_t>(mDecoder.getSeekIndexSize());
+  metrics[METRICS_SEEK_INDEX_COMPLETE] = mDecoder.isSeekIndexComplete() ? 1 : 0;
+  metrics[METRICS_FIFO_SIZE_MS] = static_cast<int64_t>(mDecoder.getFifoCapacity()) * 1000 / mDecoder.getOutputSampleRate();
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	if (mStream) {
+	  metrics[METRICS_OUTPUT_BUFFER_MS] = static_cast<int64_t>(mStream->getBufferSizeInFrames()) * 1000 / mStream->getSampleRate();
+	  oboe::ResultWithValue<double> latency = mStream->calculateLatencyMillis();
+	  metrics[METRICS_OUTPUT_LATENCY_MS] = latency ? static_cast<int64_t>(latency.value()) : -1;
+	  metrics[METRICS_OUTPUT_LOW_LATENCY] = mStream->getPerformanceMode() == oboe::PerformanceMode::LowLatency ? 1 : 0;
+	  metrics[METRICS_OUTPUT_EXCLUSIVE] = mStream->getSharingMode() == oboe::SharingMode::Exclusive ? 1 : 0;
+	  oboe::ResultWithValue<int32_t> xRunCount = mStream->getXRunCount();
+	  metrics[METRICS_OUTPUT_XRUNS] = xRunCount ? xRunCount.value() : -1;
+	}
+  }
+  return metrics;
 }
 
 /**
@@ -249,6 +665,8 @@ void MediaPlayer::setNextMediaPlayer(MediaPlayer *nextPlayer) {
 void MediaPlayer::release() {
   // State diagram https://developer.android.com/images/mediaplayer_state_diagram.gif
   mState = State::END;
+  unlinkPlayers();
+  // The parked stream would only match the session of this player
   closeOboeStream();
   mDecoder.release();
 }
@@ -259,16 +677,18 @@ void MediaPlayer::release() {
 void MediaPlayer::reset() {
   // State diagram https://developer.android.com/images/mediaplayer_state_diagram.gif
   mState = State::IDLE;
-  closeOboeStream();  // Close oboe stream
+  unlinkPlayers();
+  parkOboeStream();  // Kept open for the next prepare()
+  mOutputSampleRate = oboe::kUnspecified;
   mDecoder.reset(); // Reset the decoder
 
 }
 
 void MediaPlayer::setAudioStreamType(int streamType) {
 	// Audio stream type can be only set with oboe stream builder
-	// so we have to reopen oboe stream.
+	// so we have to swap the oboe stream.
 	mStreamType = streamType;
-	restartOboeStream();
+	swapOboeStream();
 }
 
 /**
@@ -290,8 +710,8 @@ void MediaPlayer::setVolume(float leftVolume, float rightVolume) {
 void MediaPlayer::setAudioSessionId(int id) {
   mSessionsID = id;
   // Session id can be only set with oboe stream builder
-  // so we have to reopen oboe stream.
-  restartOboeStream();
+  // so we have to swap the oboe stream.
+  swapOboeStream();
 }
 
 /**
@@ -300,11 +720,42 @@ void MediaPlayer::setAudioSessionId(int id) {
  * @return audio session id
  * */
 int MediaPlayer::getAudioSessionId() {
-  return static_cast<int>(mStream->getSessionId());
+  if (mStream) {
+	return static_cast<int>(mStream->getSessionId());
+  }
+  return mSessionsID == oboe::SessionId::Allocate && mAllocatedSessionId != oboe::SessionId::None
+		 ? mAllocatedSessionId : mSessionsID;
+}
+
+/**
+ * Capture what the output stream plays from now on, including after the
+ * stream is handed over to the next player.
+ *
+ * @param frames number of frames to capture, 0 to stop capturing
+ * */
+void MediaPlayer::setOutputCapture(int32_t frames) {
+  std::lock_guard<std::mutex> lock(mLock);
+  mCapture = frames > 0 ? std::make_shared<OutputCapture>(kChannelCount, frames) : nullptr;
+  if (mRouter) {
+	mRouter->setCapture(mCapture);
+  }
+}
+
+/**
+ * Get the frames captured since setOutputCapture().
+ *
+ * @return interleaved stereo frames
+ * */
+std::vector<float> MediaPlayer::getCapturedOutput() {
+  std::lock_guard<std::mutex> lock(mLock);
+  return mCapture ? mCapture->read() : std::vector<float>();
 }
 
 // TODO Add doc on callback
-oboe::DataCallbackResult MediaPlayer::onAudioReady(oboe::AudioStream *oboeStream, void *audioData, int32_t numFrames) {
+oboe::DataCallbackResult MediaPlayer::onRoutedAudioReady(StreamRouter *router, oboe::AudioStream *oboeStream,
+														 void *audioData, int32_t numFrames) {
+
+  mTuner.tune(oboeStream, numFrames);
 
   if (mIsThreadAffinityEnabled && !mIsThreadAffinitySet) {
 	//setThreadAffinity();
@@ -313,13 +764,51 @@ oboe::DataCallbackResult MediaPlayer::onAudioReady(oboe::AudioStream *oboeStream
 
   auto *outputData = static_cast<float *>(audioData);
 
-  // TODO Set volume to each frame/channel
-  // https://github.com/google/oboe/issues/798#issuecomment-596144040
-
+  // The fifo is read in place, the volume is applied during the copy to the stream
   //LOGD("Available write frame %d", mDecoder.getWriteFramesAvailable());
-  mDecoder.getFrame(audioData, numFrames);
-  // TODO Rework notify
-  mDecoder.notify();
+  // Wakes up the decoder itself when the fifo is low
+  int32_t framesRead = readFadedFrames(outputData, numFrames);
+
+  if (mMeasuringGap.load(std::memory_order_relaxed)) {
+	// Spliced after a previous player, count the silence until the first frame
+	if (framesRead > 0) {
+	  mMeasuringGap.store(false, std::memory_order_relaxed);
+	} else {
+	  mGapFrames.fetch_add(numFrames, std::memory_order_relaxed);
+	}
+  }
+
+  // Sequentially consistent with unlinkGaplessNext()
+  MediaPlayer *next = mGaplessNext.load();
+  if (next != nullptr && updateCrossfade(next)) {
+	// Both players are heard, the next one is read through the mix buffer
+	int64_t fadePosition = mFadeOutPosition.load(std::memory_order_relaxed);
+	Crossfade::applyFade(outputData, numFrames, mCrossfadeCurve.load(std::memory_order_relaxed),
+						 fadePosition, mFadeOutLength.load(std::memory_order_relaxed), false);
+	mFadeOutPosition.store(fadePosition + numFrames, std::memory_order_relaxed);
+
+	for (int32_t offset = 0; offset < numFrames; offset += kMixBufferFrames) {
+	  int32_t frames = std::min(kMixBufferFrames, numFrames - offset);
+	  int32_t nextRead = next->readFadedFrames(mMixBuffer.data(), frames);
+	  if (nextRead < frames) {
+		next->mCrossfadeUnderrunFrames.fetch_add(frames - nextRead, std::memory_order_relaxed);
+	  }
+	  Crossfade::mix(outputData + offset * kChannelCount, mMixBuffer.data(), frames);
+	}
+
+	// This player is over, the next one continues its fade-in alone
+	if (framesRead < numFrames && mDecoder.isEndOfStream()) {
+	  router->setTarget(next, next);
+	}
+  } else if (framesRead < numFrames && mDecoder.isEndOfStream()) {
+	// The last frame of the file is played, the rest of the buffer is the start of the next player
+	if (next != nullptr) {
+	  next->mGapFrames.store(0, std::memory_order_relaxed);
+	  next->mMeasuringGap.store(true, std::memory_order_relaxed);
+	  router->setTarget(next, next);
+	  next->onRoutedAudioReady(router, oboeStream, outputData + framesRead * kChannelCount, numFrames - framesRead);
+	}
+  }
 
   // TODO Mutex ?
   if(mState == State::ERROR) {
@@ -331,23 +820,160 @@ oboe::DataCallbackResult MediaPlayer::onAudioReady(oboe::AudioStream *oboeStream
 
 
 void MediaPlayer::onCompletion() {
-  mState= State::PLAYBACKCOMPLETED;
-  notify(MEDIA_PLAYBACK_COMPLETE, 0,0);
-  if(mIsLooping) {
-	mDecoder.seekTo(0);
-    mDecoder.launchDecodeThread();
-	return;
+  LOGD("File completed");
+
+  // The stream already plays the next player, hand it over before
+  // the java side is notified and may release this player
+  std::unique_lock<std::mutex> playersLock(mPlayersLock);
+  MediaPlayer *next = mGaplessNext.exchange(nullptr, std::memory_order_acq_rel);
+  if (next != nullptr) {
+	std::shared_ptr<oboe::AudioStream> stream;
+	std::shared_ptr<StreamRouter> router;
+	{
+	  // Taken from swapOboeStream() and parkOboeStream() too
+	  std::lock_guard<std::mutex> lock(mLock);
+	  stream = std::move(mStream);
+	  router = std::move(mRouter);
+	}
+	if (router != nullptr) {
+	  // The fifo may be drained before the data callback switched to the next player
+	  router->setTarget(next, next);
+	  // The java side may release this player once notified
+	  router->waitForCallback();
+	  mDecoder.pause();
+	  next->startAsNext(std::move(stream), std::move(router), mStreamConfig);
+	  playersLock.unlock();
+	  mState= State::PLAYBACKCOMPLETED;
+	  notify(MEDIA_PLAYBACK_COMPLETE, 0,0);
+	  return;
+	}
   }
+  playersLock.unlock();
 
-  LOGD("File completed");
+  mState= State::PLAYBACKCOMPLETED;
+  notify(MEDIA_PLAYBACK_COMPLETE, 0,0);
   stop();
 
   // Directly start the next player
+  std::lock_guard<std::mutex> lock(mPlayersLock);
   if(mNextPlayer!=nullptr) {
 	mNextPlayer->start();
   }
 }
 
+/**
+ * Read the fifo for the shared output, the volume is the gain of the player in the mix.
+ * Called from the data callback of the shared output.
+ *
+ * @param destination interleaved output
+ * @param numFrames number of frames requested
+ * @return number of frames actually read
+ * */
+int32_t MediaPlayer::readMixFrames(float *destination, int32_t numFrames) {
+  if (!mDecoder.isPlaying() && !mDecoder.isScrubbing()) {
+	return 0;
+  }
+  return mDecoder.readFrames(destination, numFrames, mLeftVolume, mRightVolume);
+}
+
+/**
+ * Read the fifo with the volume and the crossfade fade-in applied.
+ * Called from the data callback.
+ *
+ * @param destination interleaved output
+ * @param numFrames number of frames requested
+ * @return number of frames actually read
+ * */
+int32_t MediaPlayer::readFadedFrames(float *destination, int32_t numFrames) {
+  int32_t framesRead = mDecoder.readFrames(destination, numFrames, mLeftVolume, mRightVolume);
+
+  int64_t position = mFadeInPosition.load(std::memory_order_relaxed);
+  if (position >= 0) {
+	int64_t length = mFadeInLength.load(std::memory_order_relaxed);
+	Crossfade::applyFade(destination, numFrames, mFadeInCurve.load(std::memory_order_relaxed),
+						 position, length, true);
+	mFadeInPosition.store(position + numFrames >= length ? -1 : position + numFrames, std::memory_order_relaxed);
+  }
+  return framesRead;
+}
+
+/**
+ * Start the crossfade once the duration left is below the crossfade duration.
+ * Called from the data callback.
+ *
+ * @param next next player, spliced in the stream
+ * @return true while crossfading
+ * */
+bool MediaPlayer::updateCrossfade(MediaPlayer *next) {
+  if (mFadeOutPosition.load(std::memory_order_relaxed) >= 0) {
+	return true;
+  }
+
+  int32_t crossfadeMs = mCrossfadeMs.load(std::memory_order_relaxed);
+  if (crossfadeMs <= 0 || mIsLooping) {
+	return false;
+  }
+  int64_t remainingUs = mDecoder.getRemainingUs();
+  if (remainingUs < 0 || remainingUs > static_cast<int64_t>(crossfadeMs) * 1000) {
+	return false;
+  }
+
+  // The next player fades in over the whole duration, this one
+  // over what is left, when the crossfade started late
+  CrossfadeCurve curve = mCrossfadeCurve.load(std::memory_order_relaxed);
+  int64_t length = static_cast<int64_t>(crossfadeMs) * mOutputSampleRate / 1000;
+  next->mGapFrames.store(0, std::memory_order_relaxed);
+  next->mFadeInCurve.store(curve, std::memory_order_relaxed);
+  next->mFadeInLength.store(length, std::memory_order_relaxed);
+  next->mFadeInPosition.store(0, std::memory_order_relaxed);
+  mFadeOutLength.store(std::max<int64_t>(std::min(length, remainingUs * mOutputSampleRate / 1000000), 1),
+					   std::memory_order_relaxed);
+  mFadeOutPosition.store(0, std::memory_order_relaxed);
+  return true;
+}
+
+/**
+ * Take over the stream of the previous player, which already plays this one.
+ * The state stays PREPARED until the java side calls start() on MEDIA_INFO_STARTED_AS_NEXT.
+ *
+ * @param stream running stream of the previous player
+ * @param router callback of the stream, its target is already this player
+ * @param config parameters the stream was opened with
+ * */
+void MediaPlayer::startAsNext(std::shared_ptr<oboe::AudioStream> stream, std::shared_ptr<StreamRouter> router,
+							  const StreamConfig &config) {
+  // The stream opened by prepare() was never started, keep it for a later prepare()
+  parkOboeStream();
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	mStream = std::move(stream);
+	mRouter = std::move(router);
+	mStreamConfig = config;
+  }
+  mDecoder.setPrebuffering(mPerformanceProfile == PerformanceProfile::LowLatency);
+  mDecoder.start();
+  notify(MEDIA_INFO,MEDIA_INFO_STARTED_AS_NEXT,0);
+}
+
+/**
+ * Callback when the last requested seek is done, the audio at the target is ready.
+ * Seeks superseded by a newer one are not reported.
+ *
+ * @param positionMs position where the playback landed in milliseconds
+ * */
+void MediaPlayer::onSeekComplete(int64_t positionMs) {
+  notify(MEDIA_SEEK_COMPLETE,static_cast<int>(positionMs),0);
+}
+
+/**
+ * Callback when the exact duration is known, after a background scan.
+ *
+ * @param durationMs duration in milliseconds
+ * */
+void MediaPlayer::onDurationUpdate(int64_t durationMs) {
+  notify(MEDIA_INFO,MEDIA_INFO_DURATION_UPDATE,static_cast<int>(durationMs));
+}
+
 /**
  * Callback when the End of file is reached.
  * */
@@ -461,29 +1087,79 @@ void MediaPlayer::setThreadAffinity() {
 }
 
 /**
- * Build oboe stream.
+ * Get the parameters of the stream to open.
+ *
+ * @return stream parameters
  * */
+StreamConfig MediaPlayer::getStreamConfig() {
+  // Request the device native rate to avoid a second resampling in the mixer,
+  // once the decoder is configured keep its rate and let oboe convert if needed.
+  int32_t sampleRate = mOutputSampleRate;
+  if (sampleRate == oboe::kUnspecified) {
+	sampleRate = oboe::DefaultStreamValues::SampleRate;
+  }
+
+  // Low latency callbacks are one burst, unless set by the buffering profile
+  bool lowLatency = mPerformanceProfile == PerformanceProfile::LowLatency;
+  int32_t framesPerCallback = mFramesPerCallback > 0 ? mFramesPerCallback
+	  : (lowLatency ? oboe::kUnspecified : kFramesPerCallback);
+
+  // Once allocated, keep the session of the player: a parked stream of another player never matches
+  int32_t sessionId = mSessionsID;
+  if (sessionId == oboe::SessionId::Allocate && mAllocatedSessionId != oboe::SessionId::None) {
+	sessionId = mAllocatedSessionId;
+  }
+
+  return StreamConfig{sampleRate, mOutputDevice, sessionId, mStreamType, framesPerCallback, lowLatency};
+}
+
 oboe::Result MediaPlayer::buildOboeStream() {
+  StreamConfig config = getStreamConfig();
+  bool lowLatency = config.lowLatency;
+
+  // A new router per stream, the previous one may be owned by the next player
+  mRouter = std::make_shared<StreamRouter>(static_cast<RoutedDataCallback *>(this),
+										   static_cast<oboe::AudioStreamErrorCallback *>(this));
+
   oboe::AudioStreamBuilder builder;
-  oboe::Result result = builder.setSharingMode(oboe::SharingMode::Shared)
-	  ->setPerformanceMode(oboe::PerformanceMode::PowerSaving)
+  builder.setSharingMode(lowLatency ? oboe::SharingMode::Exclusive : oboe::SharingMode::Shared)
+	  ->setPerformanceMode(lowLatency ? oboe::PerformanceMode::LowLatency : oboe::PerformanceMode::PowerSaving)
 	  ->setFormat(oboe::AudioFormat::Float)
 	  ->setFormatConversionAllowed(true)
 	  ->setChannelCount(kChannelCount)
-	  ->setSampleRate(kSampleRate)
-	  ->setDataCallback(this)
-	  ->setErrorCallback(this)
+	  ->setSampleRate(config.sampleRate)
+	  ->setSampleRateConversionQuality(oboe::SampleRateConversionQuality::Medium)
+	  ->setDataCallback(mRouter.get())
+	  ->setErrorCallback(mRouter.get())
 	  ->setUsage(oboe::Usage::Media)
 	  ->setDeviceId(mOutputDevice)
 	  ->setContentType(static_cast<oboe::ContentType>(mStreamType))
-	  ->setFramesPerDataCallback(700)
-	  ->setSessionId(static_cast<oboe::SessionId>(mSessionsID))
-	  ->openStream(mStream);
-  oboe::ResultWithValue<int32_t> setBufferSizeResult = mStream->setBufferSizeInFrames(mStream->getFramesPerBurst()*5);
-  if(setBufferSizeResult) {
-	LOGD("Set Buffer size to %d", setBufferSizeResult.value());
+	  ->setFramesPerDataCallback(config.framesPerCallback)
+	  ->setSessionId(static_cast<oboe::SessionId>(config.sessionId));
+  oboe::Result result = builder.openStream(mStream);
+  if (result != oboe::Result::OK && lowLatency) {
+	// Exclusive streams are limited by the device, fall back to a shared one
+	LOGW("Exclusive stream unavailable: %s, opening a shared one", oboe::convertToText(result));
+	result = builder.setSharingMode(oboe::SharingMode::Shared)->openStream(mStream);
+  }
+  if (result != oboe::Result::OK) {
+	return result;
+  }
+  // The cache matches on the session the stream actually got
+  int32_t sessionId = static_cast<int32_t>(mStream->getSessionId());
+  if (config.sessionId == oboe::SessionId::Allocate && sessionId != oboe::SessionId::None) {
+	mAllocatedSessionId = sessionId;
+	config.sessionId = sessionId;
+  }
+  mStreamConfig = config;
+  if (lowLatency) {
+	LOGD("Low latency stream, exclusive %d, low latency %d",
+		 mStream->getSharingMode() == oboe::SharingMode::Exclusive,
+		 mStream->getPerformanceMode() == oboe::PerformanceMode::LowLatency);
   }
 
+  applyBufferSize();
+
   if(!mStream->usesAAudio()) {
     LOGW("Oboe stream doest use AAudio");
   }
@@ -491,16 +1167,71 @@ oboe::Result MediaPlayer::buildOboeStream() {
   return result;
 }
 
+/**
+ * Set the buffer size of the stream from the buffering and performance profiles.
+ * */
+void MediaPlayer::applyBufferSize() {
+  // The buffer is a whole number of bursts, at least one
+  int32_t framesPerBurst = mStream->getFramesPerBurst();
+  bool lowLatency = mPerformanceProfile == PerformanceProfile::LowLatency;
+  int32_t bufferSize = framesPerBurst * (lowLatency ? kLowLatencyBufferSizeInBursts : kBufferSizeInBursts);
+  if (mLatencyTargetMs > 0 && framesPerBurst > 0) {
+	int32_t latencyFrames = mLatencyTargetMs * mStream->getSampleRate() / 1000;
+	bufferSize = std::max(1, (latencyFrames + framesPerBurst - 1) / framesPerBurst) * framesPerBurst;
+  }
+  if (mTuner.isEnabled()) {
+	// Start small, the tuner grows the buffer on xruns
+	bufferSize = BufferTuner::getInitialBufferSize(framesPerBurst);
+  }
+  oboe::ResultWithValue<int32_t> setBufferSizeResult = mStream->setBufferSizeInFrames(bufferSize);
+  if(setBufferSizeResult) {
+	LOGD("Set Buffer size to %d", setBufferSizeResult.value());
+  }
+}
+
 /**
  * Open oboe audio stream.
  * */
 oboe::Result MediaPlayer::openOboeStream() {
+  if (mSharedOutput) {
+	// Attaching doesn't open a stream once the shared output runs
+	if (!mAttached) {
+	  oboe::Result result = SharedOutput::getInstance().attach(this);
+	  mAttached = result == oboe::Result::OK;
+	  return result;
+	}
+	return oboe::Result::OK;
+  }
+
   std::lock_guard<std::mutex> lock(mLock);
+  StreamConfig config = getStreamConfig();
+  if (mStream) {
+	// Prepared again after stop(), keep the stream if nothing changed
+	if (mStreamConfig == config) {
+	  return oboe::Result::OK;
+	}
+	mStream->close();
+	mStream.reset();
+  }
+
+  // Reuse the stream parked by reset()
+  if (StreamCache::getInstance().take(config, mStream, mRouter)) {
+	LOGD("Warm stream reused");
+	mRouter->setTarget(static_cast<RoutedDataCallback *>(this), static_cast<oboe::AudioStreamErrorCallback *>(this));
+	// Drop the capture of the player which parked it
+	mRouter->setCapture(mCapture);
+	mStreamConfig = config;
+	mWarmReuses.fetch_add(1, std::memory_order_relaxed);
+	applyBufferSize();
+	return oboe::Result::OK;
+  }
+
   oboe::Result result = buildOboeStream();
   if(result != oboe::Result::OK) {
 	LOGE("Error creating playback stream.");
 	return result;
   }
+  mRouter->setCapture(mCapture);
 
   return result;
 }
@@ -511,35 +1242,104 @@ oboe::Result MediaPlayer::openOboeStream() {
 oboe::Result MediaPlayer::closeOboeStream() {
   oboe::Result result = oboe::Result::OK;
   // Stop, close and delete in case not already closed.
+  if (mAttached) {
+	SharedOutput::getInstance().detach(this);
+	mAttached = false;
+  }
   std::lock_guard<std::mutex> lock(mLock);
   if (mStream) {
 	mStream->close();
 	mStream.reset();
   }
+  if (mRouter) {
+	// The error callback doesn't take the lock
+	mRouter->waitForErrorCallback();
+	mRouter.reset();
+  }
   return result;
 }
 
 /**
- * Free oboe stream and reopen it.
+ * Keep the stream open and paused for the next prepare(), the stream cache closes it
+ * after a timeout. Once it returns, the data callback doesn't run into this player.
  * */
-oboe::Result MediaPlayer::reopenOboeStream() {
-  if (mStream) {
+void MediaPlayer::parkOboeStream() {
+  if (mAttached || !mStream) {
 	closeOboeStream();
-	return openOboeStream();
-  } else {
-	return oboe::Result::OK;
+	return;
+  }
+
+  std::shared_ptr<oboe::AudioStream> stream;
+  std::shared_ptr<StreamRouter> router;
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	stream = std::move(mStream);
+	router = std::move(mRouter);
   }
+
+  // Blocking, the callback is not running anymore once the stream is paused
+  oboe::StreamState state = stream->getState();
+  if ((state == oboe::StreamState::Starting || state == oboe::StreamState::Started)
+	  && stream->pause() != oboe::Result::OK) {
+	stream->close();
+	router->waitForErrorCallback();
+	return;
+  }
+  StreamCache::getInstance().put(mStreamConfig, std::move(stream), std::move(router));
 }
 
 /**
- * Reopen oboe stream and send notify error if needed.
+ * Open a stream with the current device and attributes in place of the running one.
+ * The decoder and its fifo are left as they are, the new stream plays from where
+ * the previous one stopped reading.
+ *
+ * @return true if the stream was replaced
  * */
-void MediaPlayer::restartOboeStream() {
-  stop(); // Stop current playback
-  oboe::Result result = reopenOboeStream();
-  if(result != oboe::Result::OK) {
-	notify(MEDIA_ERROR,MEDIA_ERROR_UNKNOWN,0);
-	mState = State::ERROR;
+bool MediaPlayer::swapOboeStream() {
+  if (mAttached) {
+	// The shared output is opened on the default route with its own attributes
+	return false;
+  }
+
+  std::shared_ptr<oboe::AudioStream> oldStream;
+  std::shared_ptr<StreamRouter> oldRouter;
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	if (!mStream) {
+	  // Not prepared, the next open uses the new parameters
+	  return false;
+	}
+	oldStream = std::move(mStream);
+	oldRouter = std::move(mRouter);
+  }
+
+  oboe::StreamState state = oldStream->getState();
+  bool running = state == oboe::StreamState::Starting || state == oboe::StreamState::Started;
+
+  // Opened at the decoder rate, oboe converts if the new device runs at another one
+  oboe::Result result = openOboeStream();
+  if (result != oboe::Result::OK) {
+	LOGE("Error switching the output stream: %s", oboe::convertToText(result));
+	std::lock_guard<std::mutex> lock(mLock);
+	mStream = std::move(oldStream);
+	mRouter = std::move(oldRouter);
+	return false;
+  }
+
+  // Only one stream reads the fifo, the old one plays silence until it's closed
+  oldRouter->setTarget(&StreamCache::getInstance(), &StreamCache::getInstance());
+  oldRouter->waitForCallback();
+  std::shared_ptr<oboe::AudioStream> stream;
+  {
+	// The new stream may already be handed over to the next player
+	std::lock_guard<std::mutex> lock(mLock);
+	stream = mStream;
+  }
+  if (running && stream) {
+	stream->requestStart();
   }
-  start(); // Restart playback
+  oldStream->close();
+  oldRouter->waitForErrorCallback();
+  mOutputSwitches.fetch_add(1, std::memory_order_relaxed);
+  return true;
 }
\ No newline at end of file
@@ -20,10 +20,16 @@
 #include <jni.h>
 #include <string>
 #include <vector>
+#include <map>
 #include <oboe/AudioStream.h>
 
 #include "callback/FFmpegCallback.h"
 #include "FFmpegDecoder.h"
+#include "output/StreamRouter.h"
+#include "output/Crossfade.h"
+#include "output/SharedOutput.h"
+#include "output/BufferTuner.h"
+#include "output/StreamCache.h"
 
 // TODO constexpr ?
 
@@ -59,14 +65,61 @@ const int MEDIA_DRM_INFO = 210;
 const int MEDIA_TIME_DISCONTINUITY = 211;
 const int MEDIA_AUDIO_ROUTING_CHANGED = 10000;
 
+// Info extra, the exact duration is known
+const int MEDIA_INFO_DURATION_UPDATE = 10001;
+// Info, the player was started by the previous one
+const int MEDIA_INFO_STARTED_AS_NEXT = 2;
+
+// Metrics keys
+// See documentation in MediaPlayer.MetricsConstants class
+const char *const METRICS_DECODE_BUFFER_ALLOCATIONS = "com.github.a2va.media.decoder.bufferAllocations";
+const char *const METRICS_DECODE_STEADY_BUFFER_ALLOCATIONS = "com.github.a2va.media.decoder.steadyBufferAllocations";
+const char *const METRICS_DECODE_PACKETS = "com.github.a2va.media.decoder.packets";
+const char *const METRICS_DECODE_FIFO_WRITES = "com.github.a2va.media.decoder.fifoWrites";
+const char *const METRICS_DECODE_WAKEUPS = "com.github.a2va.media.decoder.wakeups";
+const char *const METRICS_DECODE_FUTEX_WAKES = "com.github.a2va.media.decoder.futexWakes";
+const char *const METRICS_DECODE_WAKEUP_RATE = "com.github.a2va.media.decoder.wakeupRateMilliHz";
+const char *const METRICS_QUEUED_PACKETS = "com.github.a2va.media.demuxer.queuedPackets";
+const char *const METRICS_READ_AHEAD_MS = "com.github.a2va.media.demuxer.readAheadMs";
+const char *const METRICS_READ_AHEAD_BYTES = "com.github.a2va.media.demuxer.readAheadBytes";
+const char *const METRICS_BUFFERED_MS = "com.github.a2va.media.decoder.bufferedMs";
+const char *const METRICS_PASSTHROUGH = "com.github.a2va.media.decoder.passthrough";
+const char *const METRICS_OUTPUT_SAMPLE_RATE = "com.github.a2va.media.output.sampleRate";
+const char *const METRICS_SEEK_LATENCY_US = "com.github.a2va.media.decoder.seekLatencyUs";
+const char *const METRICS_INSTANT_SEEKS = "com.github.a2va.media.decoder.instantSeeks";
+const char *const METRICS_SCRUB_CACHE_HITS = "com.github.a2va.media.scrub.cacheHits";
+const char *const METRICS_SCRUB_CACHE_MISSES = "com.github.a2va.media.scrub.cacheMisses";
+const char *const METRICS_DURATION_ACCURACY = "com.github.a2va.media.decoder.durationAccuracy";
+const char *const METRICS_SEEK_INDEX_POINTS = "com.github.a2va.media.decoder.seekIndexPoints";
+const char *const METRICS_SEEK_INDEX_COMPLETE = "com.github.a2va.media.decoder.seekIndexComplete";
+const char *const METRICS_OUTPUT_BUFFER_MS = "com.github.a2va.media.output.bufferMs";
+const char *const METRICS_FIFO_SIZE_MS = "com.github.a2va.media.decoder.fifoSizeMs";
+const char *const METRICS_LOOP_COUNT = "com.github.a2va.media.decoder.loopCount";
+const char *const METRICS_GAPLESS_GAP_FRAMES = "com.github.a2va.media.output.gaplessGapFrames";
+const char *const METRICS_OUTPUT_LATENCY_MS = "com.github.a2va.media.output.latencyMs";
+const char *const METRICS_OUTPUT_LOW_LATENCY = "com.github.a2va.media.output.lowLatency";
+const char *const METRICS_OUTPUT_EXCLUSIVE = "com.github.a2va.media.output.exclusive";
+const char *const METRICS_OUTPUT_XRUNS = "com.github.a2va.media.output.xruns";
+const char *const METRICS_OUTPUT_BUFFER_GROWS = "com.github.a2va.media.output.bufferGrows";
+const char *const METRICS_OUTPUT_BUFFER_SHRINKS = "com.github.a2va.media.output.bufferShrinks";
+const char *const METRICS_WARM_STREAM_REUSES = "com.github.a2va.media.output.warmStreamReuses";
+const char *const METRICS_OUTPUT_SWITCHES = "com.github.a2va.media.output.switches";
+const char *const METRICS_SHARED_OUTPUT_SOURCES = "com.github.a2va.media.output.sharedOutputSources";
+const char *const METRICS_CROSSFADE_UNDERRUN_FRAMES = "com.github.a2va.media.output.crossfadeUnderrunFrames";
+
 
 // TODO Future idea MediaPlayer have only the state machine, and the rest is for decoder
 // Callaback between producer (decoder one) to consumer (audio and video).
 // TODO Find library like oboe but for handling images.
 
+/**
+ * Performance profile of the output stream.
+ * */
+enum class PerformanceProfile: int32_t { PowerSaving=0, LowLatency };
+
 enum class State: int32_t { IDLE=0, END, ERROR, INITIALIZED, PREPARING, PREPARED, STARTED, STOPPED, PAUSED, PLAYBACKCOMPLETED};
 
-class MediaPlayer : public CompletionCallback, ErrorCallback, oboe::AudioStreamErrorCallback, oboe::AudioStreamDataCallback {
+class MediaPlayer : public CompletionCallback, ErrorCallback, SeekCallback, DurationCallback, oboe::AudioStreamErrorCallback, RoutedDataCallback, MixerSource {
  public:
   MediaPlayer(jobject thiz, jobject weak_thiz);
   	~MediaPlayer();
@@ -127,6 +180,14 @@ class MediaPlayer : public CompletionCallback, ErrorCallback, oboe::AudioStreamE
 	 * */
 	bool isLooping();
 
+	/**
+	 * Set the region played in loop, sample accurate.
+	 *
+	 * @param startUs loop start in microseconds
+	 * @param endUs loop end in microseconds, -1 for the end of file
+	 * */
+	void setLoopRegion(int64_t startUs, int64_t endUs);
+
   	/**
   	 * Get is the player is playing
   	 * */
@@ -136,9 +197,10 @@ class MediaPlayer : public CompletionCallback, ErrorCallback, oboe::AudioStreamE
   	 * Seek in the file.
   	 *
   	 * @param msecs in milliseconds
+  	 * @param mode where to land relative to msecs
   	 *
   	 * */
-  	void seekTo(int msecs);
+  	void seekTo(int64_t msecs, SeekMode mode = SeekMode::Closest);
 
   	/**
   	 * Get position in the file
@@ -155,10 +217,118 @@ class MediaPlayer : public CompletionCallback, ErrorCallback, oboe::AudioStreamE
   	int getDuration();
 
   	/**
-  	 * Set the next player.
+  	 * Set the next player, started when this one completes. If both players are prepared
+  	 * at the same output sample rate, the next one is pre-buffered and spliced without gap
+  	 * into the stream of this one.
+  	 *
+  	 * @param nextPlayer the next player, nullptr for none
   	 * */
   	void setNextMediaPlayer(MediaPlayer *nextPlayer);
 
+  	/**
+  	 * Overlap the end of this player with the start of the next one. Only used when
+  	 * the next player is spliced in the stream, see setNextMediaPlayer().
+  	 *
+  	 * @param durationMs crossfade duration in milliseconds, 0 to disable
+  	 * @param curve gain curve
+  	 * */
+  	void setCrossfade(int32_t durationMs, CrossfadeCurve curve);
+
+    /**
+     * Mix the player in the stream shared by all players, instead of opening its own.
+     * Must call before prepare().
+     *
+     * @param enabled true to use the shared output
+     * */
+    void setSharedOutputEnabled(bool enabled);
+
+    /**
+     * Read the file on a separate thread. Must call before prepare().
+     *
+     * @param enabled true to use a demux thread
+     * */
+    void setDemuxThreadEnabled(bool enabled);
+
+    /**
+     * Set the compressed read-ahead budget, enables the demux thread. Must call before prepare().
+     *
+     * @param durationMs maximum duration of read-ahead in milliseconds, 0 for no limit
+     * @param bytes maximum size of read-ahead in bytes, 0 for no limit
+     * */
+    void setReadAheadBudget(int64_t durationMs, int64_t bytes);
+
+    /**
+     * Set the buffering profile. Must call before prepare().
+     *
+     * @param latencyMs target latency of the output stream in milliseconds, 0 for the default
+     * @param fifoSizeMs size of the decoded audio buffer in milliseconds, 0 for the default
+     * @param framesPerCallback number of frames per data callback, 0 for the default
+     * */
+    void setBufferingProfile(int32_t latencyMs, int32_t fifoSizeMs, int32_t framesPerCallback);
+
+    /**
+     * Set the performance profile of the output stream. Must call before prepare().
+     *
+     * @param profile PowerSaving, or LowLatency with an exclusive stream when available
+     * */
+    void setPerformanceProfile(PerformanceProfile profile);
+
+    /**
+     * Tune the output buffer size from the xrun count. Must call before prepare().
+     *
+     * @param enabled true to start with a small buffer and grow it on xruns
+     * @param shrinkEnabled true to also shrink it after a glitch-free period
+     * */
+    void setBufferSizeTuning(bool enabled, bool shrinkEnabled);
+
+    /**
+     * Enter or leave the scrub mode. Leaving it seeks to the last scrub position.
+     *
+     * @param enabled true to enter the scrub mode
+     * */
+    void setScrubbing(bool enabled);
+
+    /**
+     * Play a grain at the scrub position. Doesn't block.
+     *
+     * @param msecs position in milliseconds
+     * */
+    void scrubTo(int64_t msecs);
+
+    /**
+     * Set the duration of played audio kept for instant backward seeks. Must call before prepare().
+     *
+     * @param durationMs history duration in milliseconds, 0 to keep no history
+     * */
+    void setSeekHistoryDuration(int32_t durationMs);
+
+    /**
+     * Set the watermarks of burst decoding. Must call before prepare().
+     *
+     * @param lowWatermarkMs the decoder wakes up when the buffer drops below it
+     * @param highWatermarkMs the decoder fills the buffer up to it, 0 to disable burst decoding
+     * */
+    void setBurstDecoding(int32_t lowWatermarkMs, int32_t highWatermarkMs);
+
+    /**
+     * Set the directory where seek indexes are persisted. Must call before prepare().
+     *
+     * @param path cache directory, empty to not persist indexes
+     * */
+    void setSeekIndexCacheDir(const std::string &path);
+
+    /**
+     * Build the seek index of the whole file on a background thread.
+     * */
+    void buildSeekIndex();
+
+    /**
+     * Get the player metrics.
+     *
+     * @return metrics value by key
+     * */
+    std::map<std::string, int64_t> getMetrics();
+
     /**
      * Release the decoder.
      * */
@@ -196,9 +366,28 @@ class MediaPlayer : public CompletionCallback, ErrorCallback, oboe::AudioStreamE
   	 * */
     int getAudioSessionId();
 
+    /**
+     * Capture what the output stream plays from now on, including after the
+     * stream is handed over to the next player.
+     *
+     * @param frames number of frames to capture, 0 to stop capturing
+     * */
+    void setOutputCapture(int32_t frames);
+
+    /**
+     * Get the frames captured since setOutputCapture().
+     *
+     * @return interleaved stereo frames
+     * */
+    std::vector<float> getCapturedOutput();
 
-	// Inherited from oboe::AudioStreamDataCallback.
-	oboe::DataCallbackResult onAudioReady(oboe::AudioStream *oboeStream, void *audioData, int32_t numFrames) override;
+
+	// Inherited from RoutedDataCallback, called by the router of the stream.
+	oboe::DataCallbackResult onRoutedAudioReady(StreamRouter *router, oboe::AudioStream *oboeStream,
+												void *audioData, int32_t numFrames) override;
+
+	// Inherited from MixerSource, called by the shared output.
+	int32_t readMixFrames(float *destination, int32_t numFrames) override;
 
 	// Inherited from oboe::AudioStreamErrorCallback.
 	bool onError(oboe::AudioStream* oboeStream, oboe::Result error) override;
@@ -219,15 +408,40 @@ class MediaPlayer : public CompletionCallback, ErrorCallback, oboe::AudioStreamE
 	 * */
 	void onFFmpegError(const char *msg,int code) override;
 
+	/**
+	 * Callback when the last requested seek is done.
+	 *
+	 * @param positionMs position where the playback landed in milliseconds
+	 * */
+	void onSeekComplete(int64_t positionMs) override;
+
+	/**
+	 * Callback when the exact duration is known.
+	 *
+	 * @param durationMs duration in milliseconds
+	 * */
+	void onDurationUpdate(int64_t durationMs) override;
+
 	static void setCpuIds(std::vector<int> cpuIds);
 
    private:
 
+	void startAsNext(std::shared_ptr<oboe::AudioStream> stream, std::shared_ptr<StreamRouter> router,
+					 const StreamConfig &config);
+	bool checkIdleOrInitialized(const char *method);
+	void quiesceOutput();
+	MediaPlayer *unlinkGaplessNext();
+	void unlinkPlayers();
+	bool updateCrossfade(MediaPlayer *next);
+	int32_t readFadedFrames(float *destination, int32_t numFrames);
+
 	oboe::Result buildOboeStream();
-	oboe::Result reopenOboeStream();
 	oboe::Result openOboeStream();
 	oboe::Result closeOboeStream();
-	void restartOboeStream();
+	void parkOboeStream();
+	StreamConfig getStreamConfig();
+	void applyBufferSize();
+	bool swapOboeStream();
 	// TODO Maybe get the value for MEDIA_ERROR in java class
 
 	// Thread affinity stuff
@@ -248,16 +462,57 @@ class MediaPlayer : public CompletionCallback, ErrorCallback, oboe::AudioStreamE
 	float mRightVolume = 1;
 
 	FFmpegDecoder mDecoder;
+	/**
+	 * Links between players chained with setNextMediaPlayer(), guarded by mPlayersLock.
+	 * The data callback only reads mGaplessNext.
+	 * */
+	static std::mutex mPlayersLock;
 	MediaPlayer *mNextPlayer = nullptr;
+	MediaPlayer *mPreviousPlayer = nullptr; // Player whose next player is this one
+	std::atomic<MediaPlayer *> mGaplessNext{nullptr}; // Next player spliced in the stream at the end
+	std::atomic<bool> mMeasuringGap{false};
+	std::atomic<int64_t> mGapFrames{0}; // Silence played between the previous player and this one
+
+	/**
+	 * Crossfade with the next player, disabled when the duration is 0.
+	 * The fade positions are in frames, -1 when not fading.
+	 * */
+	std::atomic<int32_t> mCrossfadeMs{0};
+	std::atomic<CrossfadeCurve> mCrossfadeCurve{CrossfadeCurve::EqualPower};
+	std::atomic<int64_t> mFadeOutPosition{-1};
+	std::atomic<int64_t> mFadeOutLength{0};
+	std::atomic<int64_t> mFadeInPosition{-1};
+	std::atomic<int64_t> mFadeInLength{0};
+	std::atomic<CrossfadeCurve> mFadeInCurve{CrossfadeCurve::EqualPower};
+	std::atomic<int64_t> mCrossfadeUnderrunFrames{0}; // Frames missing from this player while fading in
+	std::vector<float> mMixBuffer = std::vector<float>(kMixBufferFrames * kChannelCount); // The next player is read in it
 
 	bool mIsLooping = false;
+	bool mSharedOutput = false; // Mixed in the SharedOutput stream, mStream is then null
+	bool mAttached = false; // Attached to the SharedOutput
   	State mState = State::IDLE;
 
 	int mSessionsID = oboe::SessionId::Allocate;
+	int mAllocatedSessionId = oboe::SessionId::None; // Session of the first stream opened with mSessionsID on Allocate
 	int mStreamType = oboe::kUnspecified;
 	int mOutputDevice = oboe::kUnspecified;
+	int32_t mOutputSampleRate = oboe::kUnspecified; // Negotiated with the device when the stream is first opened
+
+	/**
+	 * Buffering profile, 0 for the default values.
+	 * */
+	int32_t mLatencyTargetMs = 0;
+	int32_t mFramesPerCallback = 0;
+	int32_t mFifoSizeMs = 0;
+	PerformanceProfile mPerformanceProfile = PerformanceProfile::PowerSaving;
+	BufferTuner mTuner;
 
 	std::shared_ptr<oboe::AudioStream> mStream;
+	std::shared_ptr<StreamRouter> mRouter; // Callback of mStream, handed over with it
+	StreamConfig mStreamConfig{}; // Parameters mStream was opened with
+	std::shared_ptr<OutputCapture> mCapture;
+	std::atomic<int64_t> mWarmReuses{0};
+	std::atomic<int64_t> mOutputSwitches{0};
 	std::mutex mLock;
 
 	jclass mClass;     // Reference to MediaPlayer class
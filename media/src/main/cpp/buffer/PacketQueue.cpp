@@ -0,0 +1,234 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "PacketQueue.h"
+
+PacketQueue::~PacketQueue() {
+  release();
+}
+
+/**
+ * Allocate the packet slots.
+ *
+ * @param capacity number of packets the queue can hold
+ * */
+void PacketQueue::allocate(uint32_t capacity) {
+  release();
+  mPackets.reserve(capacity);
+  for (uint32_t i = 0; i < capacity; i++) {
+	mPackets.push_back(av_packet_alloc());
+  }
+  mDurationsUs.assign(capacity, 0);
+  mSizes.assign(capacity, 0);
+  reset();
+}
+
+/**
+ * Set the read-ahead budget, the queue is full when one of them is reached.
+ *
+ * @param maxDurationUs maximum duration of the queued packets in microseconds, 0 for no limit
+ * @param maxBytes maximum size of the queued packets in bytes, 0 for no limit
+ * */
+void PacketQueue::setBudget(int64_t maxDurationUs, int64_t maxBytes) {
+  mMaxDurationUs = maxDurationUs;
+  mMaxBytes = maxBytes;
+}
+
+/**
+ * Free the packet slots.
+ * */
+void PacketQueue::release() {
+  for (AVPacket *packet : mPackets) {
+	av_packet_free(&packet);
+  }
+  mPackets.clear();
+  mDurationsUs.clear();
+  mSizes.clear();
+}
+
+/**
+ * Wait until a slot is free. Producer side.
+ *
+ * @return packet to fill, nullptr if the queue was aborted
+ * */
+AVPacket *PacketQueue::waitWritable() {
+  auto isWritable = [&] { return mAborted || (!mPauseRequested && mEndOfStream == 0 && !isFull()); };
+
+  if (!isWritable()) {
+	std::unique_lock<std::mutex> lk(mMutex);
+	mProducerWaiting = true;
+	while (!isWritable()) {
+	  // Parked, the consumer in pauseProducer() can use the demuxer
+	  if (mPauseRequested && !mProducerParked) {
+		mProducerParked = true;
+		mCV.notify_all();
+	  }
+	  mCV.wait(lk);
+	}
+	mProducerParked = false;
+	mProducerWaiting = false;
+  }
+
+  if (mAborted) {
+	return nullptr;
+  }
+
+  uint64_t writeCounter = mWriteCounter.load(std::memory_order_relaxed);
+  return mPackets[writeCounter % getCapacity()];
+}
+
+/**
+ * Publish the packet returned by waitWritable(). Producer side.
+ *
+ * @param durationUs duration of the packet in microseconds
+ * */
+void PacketQueue::push(int64_t durationUs) {
+  uint32_t index = mWriteCounter.load(std::memory_order_relaxed) % getCapacity();
+  mDurationsUs[index] = durationUs;
+  mSizes[index] = mPackets[index]->size;
+  mQueuedDurationUs += durationUs;
+  mQueuedBytes += mSizes[index];
+  mWriteCounter.fetch_add(1);
+  wakeUp(mConsumerWaiting);
+}
+
+/**
+ * Wait for a packet and move it into destination. Consumer side.
+ *
+ * @param destination packet receiving the data
+ * @return 0 on success, the end of stream code once the queue is empty,
+ * AVERROR_EXIT if the queue was aborted
+ * */
+int PacketQueue::pop(AVPacket *destination) {
+  auto isReadable = [&] { return mAborted || size() > 0 || mEndOfStream != 0; };
+
+  if (!isReadable()) {
+	std::unique_lock<std::mutex> lk(mMutex);
+	mConsumerWaiting = true;
+	mCV.wait(lk, isReadable);
+	mConsumerWaiting = false;
+  }
+
+  if (mAborted) {
+	return AVERROR_EXIT;
+  }
+
+  if (size() == 0) {
+	return mEndOfStream;
+  }
+
+  uint32_t index = mReadCounter.load(std::memory_order_relaxed) % getCapacity();
+  av_packet_move_ref(destination, mPackets[index]);
+  mQueuedDurationUs -= mDurationsUs[index];
+  mQueuedBytes -= mSizes[index];
+  mReadCounter.fetch_add(1);
+  wakeUp(mProducerWaiting);
+  return 0;
+}
+
+/**
+ * Mark the end of the stream, pop() returns the code when the queue is empty.
+ *
+ * @param code result of av_read_frame (AVERROR_EOF or an error)
+ * */
+void PacketQueue::setEndOfStream(int code) {
+  mEndOfStream = code;
+  wakeUp(mConsumerWaiting);
+}
+
+/**
+ * Wake up and stop both sides.
+ * */
+void PacketQueue::abort() {
+  std::lock_guard<std::mutex> lk(mMutex);
+  mAborted = true;
+  mCV.notify_all();
+}
+
+/**
+ * Wait for the producer to be parked in waitWritable(), it doesn't use the
+ * demuxer until flush() is called. Consumer side.
+ * */
+void PacketQueue::pauseProducer() {
+  std::unique_lock<std::mutex> lk(mMutex);
+  mPauseRequested = true;
+  mCV.notify_all();
+  // The producer ends only when aborted by the consumer, it always comes back to waitWritable()
+  mCV.wait(lk, [&] { return mProducerParked; });
+}
+
+/**
+ * Remove every packet, clear the end of stream and resume the paused producer.
+ * Consumer side, the producer must be paused.
+ * */
+void PacketQueue::flush() {
+  std::lock_guard<std::mutex> lk(mMutex);
+  clear();
+  mPauseRequested = false;
+  mCV.notify_all();
+}
+
+/**
+ * Remove every packet and clear the abort and end of stream flags.
+ * Both sides must be stopped.
+ * */
+void PacketQueue::reset() {
+  clear();
+  mAborted = false;
+  mPauseRequested = false;
+  mProducerParked = false;
+}
+
+/**
+ * Remove every packet and clear the end of stream flag.
+ * */
+void PacketQueue::clear() {
+  for (AVPacket *packet : mPackets) {
+	av_packet_unref(packet);
+  }
+  mWriteCounter = 0;
+  mReadCounter = 0;
+  mQueuedDurationUs = 0;
+  mQueuedBytes = 0;
+  mEndOfStream = 0;
+}
+
+/**
+ * Check if the queue is out of slots or out of budget.
+ *
+ * @return true if the producer has to wait
+ * */
+bool PacketQueue::isFull() const {
+  if (size() >= getCapacity()) {
+	return true;
+  }
+  if (mMaxDurationUs > 0 && mQueuedDurationUs >= mMaxDurationUs) {
+	return true;
+  }
+  return mMaxBytes > 0 && mQueuedBytes >= mMaxBytes;
+}
+
+/**
+ * Wake up the other side, the lock is only taken if it is sleeping.
+ *
+ * @param waiting waiting flag of the other side
+ * */
+void PacketQueue::wakeUp(std::atomic<bool> &waiting) {
+  if (waiting) {
+	std::lock_guard<std::mutex> lk(mMutex);
+	mCV.notify_all();
+  }
+}
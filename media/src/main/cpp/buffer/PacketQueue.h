@@ -0,0 +1,172 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_PACKET_QUEUE
+#define MEDIA_PACKET_QUEUE
+
+#include <atomic>
+#include <vector>
+#include <mutex>
+#include <condition_variable>
+#include <stdint.h>
+
+extern "C" {
+#include <libavcodec/avcodec.h>
+}
+
+/**
+ * Bounded single producer, single consumer queue of compressed packets.
+ *
+ * The packets are allocated once, the producer reads directly into the next
+ * free slot and the consumer moves the reference out of it. Push and pop are
+ * lock-free, the mutex is only used to sleep when the queue is full or empty.
+ *
+ * Besides the number of slots, the queue can be bounded by the duration
+ * and the size of the packets it holds.
+ * */
+class PacketQueue {
+ public:
+  ~PacketQueue();
+
+  /**
+   * Allocate the packet slots.
+   *
+   * @param capacity number of packets the queue can hold
+   * */
+  void allocate(uint32_t capacity);
+
+  /**
+   * Free the packet slots.
+   * */
+  void release();
+
+  /**
+   * Set the read-ahead budget, the queue is full when one of them is reached.
+   *
+   * @param maxDurationUs maximum duration of the queued packets in microseconds, 0 for no limit
+   * @param maxBytes maximum size of the queued packets in bytes, 0 for no limit
+   * */
+  void setBudget(int64_t maxDurationUs, int64_t maxBytes);
+
+  /**
+   * Wait until a slot is free. Producer side.
+   * After the end of stream, it also waits for the queue to be flushed,
+   * and while the producer is paused.
+   *
+   * @return packet to fill, nullptr if the queue was aborted
+   * */
+  AVPacket *waitWritable();
+
+  /**
+   * Publish the packet returned by waitWritable(). Producer side.
+   *
+   * @param durationUs duration of the packet in microseconds
+   * */
+  void push(int64_t durationUs);
+
+  /**
+   * Wait for a packet and move it into destination. Consumer side.
+   *
+   * @param destination packet receiving the data
+   * @return 0 on success, the end of stream code once the queue is empty,
+   * AVERROR_EXIT if the queue was aborted
+   * */
+  int pop(AVPacket *destination);
+
+  /**
+   * Mark the end of the stream, pop() returns the code when the queue is empty.
+   *
+   * @param code result of av_read_frame (AVERROR_EOF or an error)
+   * */
+  void setEndOfStream(int code);
+
+  /**
+   * Wake up and stop both sides.
+   * */
+  void abort();
+
+  /**
+   * Wait for the producer to be parked in waitWritable(), it doesn't use the
+   * demuxer until flush() is called. Consumer side.
+   * */
+  void pauseProducer();
+
+  /**
+   * Remove every packet, clear the end of stream and resume the paused producer.
+   * Consumer side, the producer must be paused.
+   * */
+  void flush();
+
+  /**
+   * Remove every packet and clear the abort and end of stream flags.
+   * Both sides must be stopped.
+   * */
+  void reset();
+
+  uint32_t getCapacity() const { return static_cast<uint32_t>(mPackets.size()); }
+
+  uint32_t size() const {
+	return static_cast<uint32_t>(mWriteCounter.load(std::memory_order_acquire)
+		- mReadCounter.load(std::memory_order_acquire));
+  }
+
+  /**
+   * Get the duration of the queued packets.
+   *
+   * @return duration in microseconds
+   * */
+  int64_t getQueuedDurationUs() const { return mQueuedDurationUs; }
+
+  /**
+   * Get the size of the queued packets.
+   *
+   * @return size in bytes
+   * */
+  int64_t getQueuedBytes() const { return mQueuedBytes; }
+
+ private:
+  void wakeUp(std::atomic<bool> &waiting);
+  void clear();
+  bool isFull() const;
+
+  std::vector<AVPacket *> mPackets;
+  std::vector<int64_t> mDurationsUs; // Duration of the packet in the slot with the same index
+  std::vector<int> mSizes; // Size of the packet in the slot with the same index
+  std::atomic<uint64_t> mWriteCounter{0};
+  std::atomic<uint64_t> mReadCounter{0};
+  std::atomic<bool> mAborted{false};
+  std::atomic<bool> mPauseRequested{false};
+  bool mProducerParked = false; // Guarded by mMutex
+  std::atomic<int> mEndOfStream{0};
+
+  /**
+   * Read-ahead budget.
+   * */
+  int64_t mMaxDurationUs = 0;
+  int64_t mMaxBytes = 0;
+  std::atomic<int64_t> mQueuedDurationUs{0};
+  std::atomic<int64_t> mQueuedBytes{0};
+
+  /**
+   * Concurrency, only used when one side has to sleep.
+   * */
+  std::atomic<bool> mProducerWaiting{false};
+  std::atomic<bool> mConsumerWaiting{false};
+  std::mutex mMutex;
+  std::condition_variable mCV;
+};
+
+#endif //MEDIA_PACKET_QUEUE
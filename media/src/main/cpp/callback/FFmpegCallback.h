@@ -17,6 +17,8 @@
 #ifndef MEDIA_FFMPEG_CALLBACK
 #define MEDIA_FFMPEG_CALLBACK
 
+#include <cstdint>
+
 class CompletionCallback {
  public:
   virtual ~CompletionCallback() = default;
@@ -39,4 +41,26 @@ class ErrorCallback {
   virtual void onFFmpegError(const char *msg,int code) {}
 };
 
+class SeekCallback {
+ public:
+  virtual ~SeekCallback() = default;
+  /**
+   * Callback when the last requested seek is done, superseded seeks are not reported.
+   *
+   * @param positionMs position where the playback landed in milliseconds
+   * */
+  virtual void onSeekComplete(int64_t positionMs) {}
+};
+
+class DurationCallback {
+ public:
+  virtual ~DurationCallback() = default;
+  /**
+   * Callback when the exact duration is known, after a background scan.
+   *
+   * @param durationMs duration in milliseconds
+   * */
+  virtual void onDurationUpdate(int64_t durationMs) {}
+};
+
 #endif //MEDIAPLAYER_FFMPEG_CALLBACK
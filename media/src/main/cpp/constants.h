@@ -24,10 +24,53 @@
 
 #define MEDIA_PACKAGE_PLAYER "com/github/a2va/media/MediaPlayer"
 
+// Output sample rate used when the device native one is unknown
 const int kSampleRate = 48000;
 const uint8_t kChannelCount = 2;
 
 // Buffer size in frame between decoder and oboe
 const int kBufferSize = 16384;
 
+// Default number of frames per oboe data callback
+const int kFramesPerCallback = 700;
+// Default oboe buffer size, in bursts
+const int kBufferSizeInBursts = 5;
+// Oboe buffer size of the low latency profile, in bursts
+const int kLowLatencyBufferSizeInBursts = 2;
+// Default fifo size of the low latency profile, in milliseconds
+const int kLowLatencyFifoMs = 100;
+// Buffer size tuning: smallest buffer in bursts, interval between two xrun checks,
+// and glitch-free time before the buffer is shrunk, in milliseconds
+const int kTunerMinBursts = 1;
+const int kTunerIntervalMs = 100;
+const int kTunerShrinkAfterMs = 30000;
+// Time an unused stream is kept open for the next prepare(), in milliseconds
+const int kWarmStreamTimeoutMs = 10000;
+// Size in frames of the buffer used to mix another player into the data callback
+const int kMixBufferFrames = 1024;
+// Maximum number of players attached to the shared output stream
+const int kMaxSharedOutputSources = 32;
+
+// Number of compressed packets between the demux thread and the decode thread
+const int kPacketQueueSize = 64;
+// Maximum number of compressed packets when a read-ahead budget is set
+const int kMaxPacketQueueSize = 4096;
+
+// Buffer size in frame between decoder and oboe when a read-ahead budget is set,
+// most of the buffering is done on compressed packets
+const int kReadAheadBufferSize = 8192;
+
+// Frame size assumed when the codec doesn't have a fixed one, to estimate the packet duration and the minimum fifo size
+const int kDefaultFrameSize = 4096;
+
+// Minimum distance between two points of the seek index, in milliseconds
+const int kSeekIndexIntervalMs = 1000;
+
+// Duration of a decoded chunk of the scrub cache, in milliseconds
+const int kScrubChunkMs = 40;
+// Number of chunks played by a scrub grain
+const int kScrubGrainChunks = 2;
+// Number of chunks kept in the scrub cache, about 10 seconds of audio
+const int kScrubCacheChunks = 256;
+
 #endif //MEDIAPLAYER_CONSTANTS
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <memory.h>
+
+#if defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
+
+#include "Passthrough.h"
+
+constexpr float kShortToFloat = 1.0f / 32768.0f;
+
+/**
+ * Get the passthrough format for a source.
+ *
+ * @param format source sample format
+ * @param channels source channel count
+ * @param sampleRate source sample rate
+ * @param outputSampleRate output sample rate
+ * @return passthrough format, None if swr is needed
+ * */
+PassthroughFormat Passthrough::getFormat(int format, int channels, int sampleRate, int outputSampleRate) {
+  if (sampleRate != outputSampleRate || channels < 1 || channels > 2) {
+	return PassthroughFormat::None;
+  }
+
+  switch (format) {
+	case AV_SAMPLE_FMT_FLT:
+	  return PassthroughFormat::Float;
+	case AV_SAMPLE_FMT_FLTP:
+	  return PassthroughFormat::FloatPlanar;
+	case AV_SAMPLE_FMT_S16:
+	  return PassthroughFormat::Short;
+	case AV_SAMPLE_FMT_S16P:
+	  return PassthroughFormat::ShortPlanar;
+	default:
+	  return PassthroughFormat::None;
+  }
+}
+
+/**
+ * Convert samples to interleaved stereo float.
+ *
+ * @param format passthrough format returned by getFormat()
+ * @param data source planes
+ * @param channels source channel count, mono is copied on both channels
+ * @param offset index of the first source frame to convert
+ * @param frames number of frames to convert
+ * @param output interleaved stereo destination
+ * */
+void Passthrough::convert(PassthroughFormat format,
+						  const uint8_t *const *data,
+						  int channels,
+						  int32_t offset,
+						  int32_t frames,
+						  float *output) {
+  // With mono source, the single plane is used for both channels
+  int rightPlane = channels == 2 ? 1 : 0;
+
+  switch (format) {
+	case PassthroughFormat::Float:
+	  copy(reinterpret_cast<const float *>(data[0]) + offset * channels, channels, frames, output);
+	  break;
+	case PassthroughFormat::FloatPlanar:
+	  interleave(reinterpret_cast<const float *>(data[0]) + offset,
+				 reinterpret_cast<const float *>(data[rightPlane]) + offset,
+				 frames, output);
+	  break;
+	case PassthroughFormat::Short:
+	  copy(reinterpret_cast<const int16_t *>(data[0]) + offset * channels, channels, frames, output);
+	  break;
+	case PassthroughFormat::ShortPlanar:
+	  interleave(reinterpret_cast<const int16_t *>(data[0]) + offset,
+				 reinterpret_cast<const int16_t *>(data[rightPlane]) + offset,
+				 frames, output);
+	  break;
+	case PassthroughFormat::None:
+	  break;
+  }
+}
+
+/**
+ * Interleave two float planes.
+ * */
+void Passthrough::interleave(const float *left, const float *right, int32_t frames, float *output) {
+  int32_t i = 0;
+#if defined(__ARM_NEON)
+  for (; i + 4 <= frames; i += 4) {
+	float32x4x2_t samples = {{vld1q_f32(left + i), vld1q_f32(right + i)}};
+	vst2q_f32(output + 2 * i, samples);
+  }
+#endif
+  for (; i < frames; i++) {
+	output[2 * i] = left[i];
+	output[2 * i + 1] = right[i];
+  }
+}
+
+/**
+ * Interleave two 16 bits planes and convert them to float.
+ * */
+void Passthrough::interleave(const int16_t *left, const int16_t *right, int32_t frames, float *output) {
+  int32_t i = 0;
+#if defined(__ARM_NEON)
+  for (; i + 4 <= frames; i += 4) {
+	float32x4_t l = vmulq_n_f32(vcvtq_f32_s32(vmovl_s16(vld1_s16(left + i))), kShortToFloat);
+	float32x4_t r = vmulq_n_f32(vcvtq_f32_s32(vmovl_s16(vld1_s16(right + i))), kShortToFloat);
+	float32x4x2_t samples = {{l, r}};
+	vst2q_f32(output + 2 * i, samples);
+  }
+#endif
+  for (; i < frames; i++) {
+	output[2 * i] = left[i] * kShortToFloat;
+	output[2 * i + 1] = right[i] * kShortToFloat;
+  }
+}
+
+/**
+ * Copy interleaved float samples, mono is duplicated.
+ * */
+void Passthrough::copy(const float *input, int channels, int32_t frames, float *output) {
+  if (channels == 2) {
+	memcpy(output, input, static_cast<size_t>(frames) * 2 * sizeof(float));
+	return;
+  }
+  interleave(input, input, frames, output);
+}
+
+/**
+ * Convert interleaved 16 bits samples to float, mono is duplicated.
+ * */
+void Passthrough::copy(const int16_t *input, int channels, int32_t frames, float *output) {
+  if (channels == 1) {
+	interleave(input, input, frames, output);
+	return;
+  }
+
+  int32_t samples = frames * 2;
+  int32_t i = 0;
+#if defined(__ARM_NEON)
+  for (; i + 8 <= samples; i += 8) {
+	int16x8_t input16 = vld1q_s16(input + i);
+	vst1q_f32(output + i, vmulq_n_f32(vcvtq_f32_s32(vmovl_s16(vget_low_s16(input16))), kShortToFloat));
+	vst1q_f32(output + i + 4, vmulq_n_f32(vcvtq_f32_s32(vmovl_s16(vget_high_s16(input16))), kShortToFloat));
+  }
+#endif
+  for (; i < samples; i++) {
+	output[i] = input[i] * kShortToFloat;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_PASSTHROUGH
+#define MEDIA_PASSTHROUGH
+
+#include <stdint.h>
+
+extern "C" {
+#include <libavutil/avutil.h>
+}
+
+/**
+ * Source layouts that can be converted to interleaved stereo float without swr.
+ * */
+enum class PassthroughFormat: int32_t { None=0, Float, FloatPlanar, Short, ShortPlanar };
+
+/**
+ * Fast path used instead of libswresample when the source is already at the
+ * output sample rate, with one or two channels and a float or 16 bits format.
+ * */
+class Passthrough {
+ public:
+  /**
+   * Get the passthrough format for a source.
+   *
+   * @param format source sample format
+   * @param channels source channel count
+   * @param sampleRate source sample rate
+   * @param outputSampleRate output sample rate
+   * @return passthrough format, None if swr is needed
+   * */
+  static PassthroughFormat getFormat(int format, int channels, int sampleRate, int outputSampleRate);
+
+  /**
+   * Convert samples to interleaved stereo float.
+   *
+   * @param format passthrough format returned by getFormat()
+   * @param data source planes
+   * @param channels source channel count, mono is copied on both channels
+   * @param offset index of the first source frame to convert
+   * @param frames number of frames to convert
+   * @param output interleaved stereo destination
+   * */
+  static void convert(PassthroughFormat format,
+					  const uint8_t *const *data,
+					  int channels,
+					  int32_t offset,
+					  int32_t frames,
+					  float *output);
+
+ private:
+  static void interleave(const float *left, const float *right, int32_t frames, float *output);
+  static void interleave(const int16_t *left, const int16_t *right, int32_t frames, float *output);
+  static void copy(const float *input, int channels, int32_t frames, float *output);
+  static void copy(const int16_t *input, int channels, int32_t frames, float *output);
+};
+
+#endif //MEDIA_PASSTHROUGH
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <cstdio>
+
+#include "DurationService.h"
+#include "seek/SeekIndex.h"
+#include "jni/utils.h"
+#include "utils.h"
+
+constexpr uint32_t kDurationCacheMagic = 0x41525544; // "DURA"
+constexpr uint32_t kDurationCacheVersion = 1;
+
+struct DurationCacheEntry {
+  uint32_t magic;
+  uint32_t version;
+  uint64_t key;
+  int64_t durationUs;
+};
+
+std::mutex DurationService::sCacheLock;
+std::unordered_map<uint64_t, int64_t> DurationService::sCache;
+
+DurationService::~DurationService() {
+  stopScan();
+}
+
+void DurationService::resolve(const std::string &url, AVFormatContext *fmtCtx, AVStream *stream) {
+  reset();
+
+  uint64_t key = SeekIndex::getFileKey(url);
+  int64_t durationUs = AV_NOPTS_VALUE;
+  Accuracy accuracy = Accuracy::Unknown;
+
+  if (key != 0 && loadCached(key, durationUs)) {
+	accuracy = Accuracy::Exact;
+  } else if (stream->duration != AV_NOPTS_VALUE) {
+	durationUs = av_rescale_q(stream->duration, stream->time_base, AV_TIME_BASE_Q);
+	accuracy = fmtCtx->duration_estimation_method == AVFMT_DURATION_FROM_BITRATE
+			   ? Accuracy::Estimated : Accuracy::Container;
+  } else if (fmtCtx->duration != AV_NOPTS_VALUE) {
+	durationUs = fmtCtx->duration;
+	accuracy = fmtCtx->duration_estimation_method == AVFMT_DURATION_FROM_BITRATE
+			   ? Accuracy::Estimated : Accuracy::Container;
+  } else {
+	// Raw streams without header, estimate from the size and the bitrate
+	int64_t size = fmtCtx->pb != nullptr ? avio_size(fmtCtx->pb) : -1;
+	int64_t bitRate = fmtCtx->bit_rate > 0 ? fmtCtx->bit_rate : stream->codecpar->bit_rate;
+	if (size > 0 && bitRate > 0) {
+	  durationUs = av_rescale(size, 8 * AV_TIME_BASE, bitRate);
+	  accuracy = Accuracy::Estimated;
+	}
+  }
+
+  mDurationUs.store(durationUs, std::memory_order_release);
+  mAccuracy.store(accuracy, std::memory_order_release);
+
+  // Only local files are scanned, reading a whole network stream is too expensive
+  if (accuracy < Accuracy::Container && key != 0) {
+	mStopScan = false;
+	mScanThread = std::thread(&DurationService::scan, this, url, stream->index, key);
+  }
+}
+
+void DurationService::reset() {
+  stopScan();
+  mDurationUs.store(AV_NOPTS_VALUE, std::memory_order_release);
+  mAccuracy.store(Accuracy::Unknown, std::memory_order_release);
+}
+
+/**
+ * Scan thread, read every packet of the stream to get the exact duration.
+ *
+ * @param url file to scan
+ * @param streamIndex audio stream index
+ * @param key identity of the file
+ * */
+void DurationService::scan(std::string url, int streamIndex, uint64_t key) {
+  LOGD("DURATION SCAN START");
+  AVFormatContext *fmt_ctx = avformat_alloc_context();
+  if (fmt_ctx == nullptr) {
+	return;
+  }
+  fmt_ctx->interrupt_callback.callback = &DurationService::interruptScan;
+  fmt_ctx->interrupt_callback.opaque = this;
+
+  // The context is freed on failure
+  int ret = avformat_open_input(&fmt_ctx, url.c_str(), nullptr, nullptr);
+  if (ret < 0) {
+	LOGE("Duration scan could not open file:%s, %s", url.c_str(), av_err2str(ret));
+	return;
+  }
+
+  AVPacket *packet = av_packet_alloc();
+  int64_t firstPts = AV_NOPTS_VALUE;
+  int64_t endPts = AV_NOPTS_VALUE;
+  AVRational timeBase{0, 1};
+
+  ret = avformat_find_stream_info(fmt_ctx, nullptr);
+  if (ret >= 0 && streamIndex < static_cast<int>(fmt_ctx->nb_streams)) {
+	timeBase = fmt_ctx->streams[streamIndex]->time_base;
+  } else {
+	ret = AVERROR(EINVAL);
+  }
+  while (ret >= 0 && !mStopScan) {
+	ret = av_read_frame(fmt_ctx, packet);
+	if (ret < 0) {
+	  break;
+	}
+	if (packet->stream_index == streamIndex && packet->pts != AV_NOPTS_VALUE) {
+	  if (firstPts == AV_NOPTS_VALUE || packet->pts < firstPts) {
+		firstPts = packet->pts;
+	  }
+	  int64_t end = packet->pts + packet->duration;
+	  if (endPts == AV_NOPTS_VALUE || end > endPts) {
+		endPts = end;
+	  }
+	}
+	av_packet_unref(packet);
+  }
+
+  av_packet_free(&packet);
+  avformat_close_input(&fmt_ctx);
+
+  if (ret == AVERROR_EOF && !mStopScan && firstPts != AV_NOPTS_VALUE) {
+	int64_t durationUs = av_rescale_q(endPts - firstPts, timeBase, AV_TIME_BASE_Q);
+	storeCached(key, durationUs);
+	mDurationUs.store(durationUs, std::memory_order_release);
+	mAccuracy.store(Accuracy::Exact, std::memory_order_release);
+	LOGD("Exact duration %lld ms", static_cast<long long>(durationUs / 1000));
+	if (mCallback != nullptr) {
+	  mCallback->onDurationUpdate(durationUs / 1000);
+	}
+  }
+  LOGD("DURATION SCAN END");
+}
+
+void DurationService::stopScan() {
+  if (mScanThread.joinable()) {
+	mStopScan = true;
+	mScanThread.join();
+  }
+}
+
+/**
+ * Find the exact duration of a file, in memory then in the cache directory.
+ *
+ * @param key identity of the file
+ * @param durationUs receive the duration
+ * @return false if the duration isn't cached
+ * */
+bool DurationService::loadCached(uint64_t key, int64_t &durationUs) {
+  {
+	std::lock_guard<std::mutex> lock(sCacheLock);
+	auto it = sCache.find(key);
+	if (it != sCache.end()) {
+	  durationUs = it->second;
+	  return true;
+	}
+  }
+  if (mCacheDir.empty()) {
+	return false;
+  }
+
+  FILE *file = fopen(getCachePath(key).c_str(), "rb");
+  if (file == nullptr) {
+	return false;
+  }
+  DurationCacheEntry entry{};
+  bool valid = fread(&entry, sizeof(entry), 1, file) == 1
+	  && entry.magic == kDurationCacheMagic
+	  && entry.version == kDurationCacheVersion
+	  && entry.key == key;
+  fclose(file);
+  if (!valid) {
+	return false;
+  }
+
+  std::lock_guard<std::mutex> lock(sCacheLock);
+  sCache[key] = entry.durationUs;
+  durationUs = entry.durationUs;
+  return true;
+}
+
+/**
+ * Keep the exact duration of a file, in memory and in the cache directory.
+ *
+ * @param key identity of the file
+ * @param durationUs exact duration
+ * */
+void DurationService::storeCached(uint64_t key, int64_t durationUs) {
+  {
+	std::lock_guard<std::mutex> lock(sCacheLock);
+	sCache[key] = durationUs;
+  }
+  if (mCacheDir.empty()) {
+	return;
+  }
+
+  std::string path = getCachePath(key);
+  std::string tmpPath = path + ".tmp";
+  FILE *file = fopen(tmpPath.c_str(), "wb");
+  if (file == nullptr) {
+	return;
+  }
+  DurationCacheEntry entry{kDurationCacheMagic, kDurationCacheVersion, key, durationUs};
+  bool written = fwrite(&entry, sizeof(entry), 1, file) == 1;
+  written = (fclose(file) == 0) && written;
+  if (!written || rename(tmpPath.c_str(), path.c_str()) != 0) {
+	remove(tmpPath.c_str());
+  }
+}
+
+/**
+ * Get the cache file of a duration, named after the file identity.
+ *
+ * @param key identity of the file
+ * @return cache file path
+ * */
+std::string DurationService::getCachePath(uint64_t key) {
+  return string_format("%s/%016llx.duration", mCacheDir.c_str(), static_cast<unsigned long long>(key));
+}
+
+/**
+ * Interrupt callback of the scan context, stops blocking reads on reset.
+ *
+ * @param opaque duration service
+ * @return 1 to interrupt
+ * */
+int DurationService::interruptScan(void *opaque) {
+  return static_cast<DurationService *>(opaque)->mStopScan ? 1 : 0;
+}
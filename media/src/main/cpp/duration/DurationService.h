@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_DURATION_SERVICE
+#define MEDIA_DURATION_SERVICE
+
+#include <atomic>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <unordered_map>
+#include <stdint.h>
+
+extern "C" {
+#include <libavformat/avformat.h>
+}
+
+#include "callback/FFmpegCallback.h"
+
+/**
+ * Duration of the played stream, from the most accurate source available.
+ *
+ * In order: a cached exact value of the same file, the stream duration,
+ * the container duration, and an estimate from the file size and bitrate.
+ * When only an estimate is known, the packets of a local file are scanned
+ * on a background thread, the exact value is then reported to the callback
+ * and cached for the next plays, in memory and in the cache directory.
+ * */
+class DurationService {
+ public:
+  enum class Accuracy : int32_t {
+	Unknown = 0,
+	Estimated = 1, // From the bitrate
+	Container = 2, // From the stream or container header
+	Exact = 3, // From the timestamps of every packet
+  };
+
+  ~DurationService();
+
+  /**
+   * Set the callback of the exact duration.
+   *
+   * @param callback callback, called from the scan thread
+   * */
+  void setCallback(DurationCallback *callback) {
+	mCallback = callback;
+  }
+
+  /**
+   * Set the directory where the exact durations are persisted, empty to only keep them in memory.
+   *
+   * @param path cache directory
+   * */
+  void setCacheDir(const std::string &path) {
+	mCacheDir = path;
+  }
+
+  /**
+   * Resolve the duration of an opened stream, start the background scan if it is only estimated.
+   *
+   * @param url file of the stream
+   * @param fmtCtx opened format context, after avformat_find_stream_info()
+   * @param stream audio stream
+   * */
+  void resolve(const std::string &url, AVFormatContext *fmtCtx, AVStream *stream);
+
+  /**
+   * Stop the background scan and forget the duration.
+   * */
+  void reset();
+
+  /**
+   * @return duration in microseconds, AV_NOPTS_VALUE if unknown
+   * */
+  int64_t getDurationUs() const {
+	return mDurationUs.load(std::memory_order_acquire);
+  }
+
+  /**
+   * @return accuracy of getDurationUs()
+   * */
+  Accuracy getAccuracy() const {
+	return mAccuracy.load(std::memory_order_acquire);
+  }
+
+ private:
+  void scan(std::string url, int streamIndex, uint64_t key);
+  void stopScan();
+  bool loadCached(uint64_t key, int64_t &durationUs);
+  void storeCached(uint64_t key, int64_t durationUs);
+  std::string getCachePath(uint64_t key);
+  static int interruptScan(void *opaque);
+
+  // Exact durations of the files played by this process
+  static std::mutex sCacheLock;
+  static std::unordered_map<uint64_t, int64_t> sCache;
+
+  DurationCallback *mCallback = nullptr;
+  std::string mCacheDir;
+  std::atomic<int64_t> mDurationUs{AV_NOPTS_VALUE};
+  std::atomic<Accuracy> mAccuracy{Accuracy::Unknown};
+  std::thread mScanThread;
+  std::atomic<bool> mStopScan{false};
+};
+
+#endif //MEDIA_DURATION_SERVICE
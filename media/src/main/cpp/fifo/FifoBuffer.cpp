@@ -171,6 +171,52 @@ int32_t FifoBuffer::readNow(void *buffer, int32_t numFrames) {
 }
 
 
+int32_t FifoBuffer::getWriteRegions(int32_t offset, FifoRegions &regions) {
+    int32_t framesAvailable = static_cast<int32_t>(mFifo->getEmptyFramesAvailable()) - offset;
+    if (offset < 0 || framesAvailable <= 0) {
+        regions = FifoRegions();
+        return 0;
+    }
+
+    uint32_t capacity = mFifo->getFrameCapacity();
+    uint32_t writeIndex = static_cast<uint32_t>((mFifo->getWriteCounter() + offset) % capacity);
+    regions.data[0] = &mStorage[convertFramesToBytes(writeIndex)];
+    regions.frames[0] = std::min(framesAvailable, static_cast<int32_t>(capacity - writeIndex));
+    // second part, which is at the beginning of mStorage
+    regions.data[1] = &mStorage[0];
+    regions.frames[1] = framesAvailable - regions.frames[0];
+    return framesAvailable;
+}
+
+void FifoBuffer::commitWrite(int32_t numFrames) {
+    if (numFrames > 0) {
+        mFifo->advanceWriteIndex(static_cast<uint32_t>(numFrames));
+    }
+}
+
+int32_t FifoBuffer::getReadRegions(FifoRegions &regions) {
+    int32_t framesAvailable = static_cast<int32_t>(mFifo->getFullFramesAvailable());
+    if (framesAvailable <= 0) {
+        regions = FifoRegions();
+        return 0;
+    }
+
+    uint32_t readIndex = mFifo->getReadIndex();
+    regions.data[0] = &mStorage[convertFramesToBytes(readIndex)];
+    regions.frames[0] = std::min(framesAvailable,
+                                 static_cast<int32_t>(mFifo->getFrameCapacity() - readIndex));
+    // second part, which is at the beginning of mStorage
+    regions.data[1] = &mStorage[0];
+    regions.frames[1] = framesAvailable - regions.frames[0];
+    return framesAvailable;
+}
+
+void FifoBuffer::commitRead(int32_t numFrames) {
+    if (numFrames > 0) {
+        mFifo->advanceReadIndex(static_cast<uint32_t>(numFrames));
+    }
+}
+
 uint32_t FifoBuffer::getBufferCapacityInFrames() const {
     return mFifo->getFrameCapacity();
 }
@@ -26,6 +26,14 @@
 
 namespace oboe {
 
+/**
+ * Up to two contiguous parts of the buffer, the second one is used when the data wraps around.
+ */
+struct FifoRegions {
+    void *data[2] = {nullptr, nullptr};
+    int32_t frames[2] = {0, 0};
+};
+
 class FifoBuffer {
 public:
     FifoBuffer(uint32_t bytesPerFrame, uint32_t capacityInFrames);
@@ -52,6 +60,39 @@ public:
 
     uint32_t getBufferCapacityInFrames() const;
 
+    /**
+     * Get the empty part of the buffer so it can be written in place.
+     * The frames must then be published with commitWrite().
+     *
+     * @param offset number of frames already written in place but not committed
+     * @param regions receive the writable regions
+     * @return number of frames that can be written
+     */
+    int32_t getWriteRegions(int32_t offset, FifoRegions &regions);
+
+    /**
+     * Publish frames written in place.
+     *
+     * @param numFrames number of frames to publish
+     */
+    void commitWrite(int32_t numFrames);
+
+    /**
+     * Get the full part of the buffer so it can be read in place.
+     * The frames must then be released with commitRead().
+     *
+     * @param regions receive the readable regions
+     * @return number of frames that can be read
+     */
+    int32_t getReadRegions(FifoRegions &regions);
+
+    /**
+     * Release frames read in place.
+     *
+     * @param numFrames number of frames to release
+     */
+    void commitRead(int32_t numFrames);
+
     /**
      * Calls read(). If all of the frames cannot be read then the remainder of the buffer
      * is set to zero.
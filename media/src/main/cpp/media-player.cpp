@@ -343,6 +343,249 @@ Java_com_github_a2va_media_MediaPlayer_getVideoHeight(JNIEnv *env, jobject thiz)
   return 0;
 }
 
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Enable or disable the demux thread.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param enabled true to use a demux thread
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer_setDemuxThreadEnabled(JNIEnv *env, jobject thiz, jboolean enabled) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setDemuxThreadEnabled(enabled);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Enable the shared output.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param enabled true to mix the player in the shared output stream
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer_setSharedOutputEnabled(JNIEnv *env, jobject thiz, jboolean enabled) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setSharedOutputEnabled(enabled);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the compressed read-ahead budget.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param duration_ms maximum duration of read-ahead in milliseconds
+ * @param bytes maximum size of read-ahead in bytes
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setReadAheadBudget(JNIEnv *env,
+															jobject thiz,
+															jlong duration_ms,
+															jlong bytes) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setReadAheadBudget(duration_ms, bytes);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the buffering profile.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param latency_ms target latency of the output stream in milliseconds
+ * @param fifo_size_ms size of the decoded audio buffer in milliseconds
+ * @param frames_per_callback number of frames per data callback
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setBufferingProfile(JNIEnv *env,
+															 jobject thiz,
+															 jint latency_ms,
+															 jint fifo_size_ms,
+															 jint frames_per_callback) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setBufferingProfile(latency_ms, fifo_size_ms, frames_per_callback);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Enable the buffer size tuning.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param enabled true to tune the buffer size
+ * @param shrink_enabled true to also shrink the buffer
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer_setBufferSizeTuning(JNIEnv *env, jobject thiz, jboolean enabled, jboolean shrink_enabled) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setBufferSizeTuning(enabled, shrink_enabled);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the performance profile.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param profile performance profile
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setPerformanceProfile(JNIEnv *env, jobject thiz, jint profile) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setPerformanceProfile(static_cast<PerformanceProfile>(profile));
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Enter or leave the scrub mode.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param enabled true to enter the scrub mode
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer_setScrubbing(JNIEnv *env, jobject thiz, jboolean enabled) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setScrubbing(enabled);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Play a grain at the scrub position.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param msec position in milliseconds
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1scrubTo(JNIEnv *env, jobject thiz, jlong msec) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->scrubTo(msec);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the duration of played audio kept for instant backward seeks.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param duration_ms history duration in milliseconds
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setSeekHistoryDuration(JNIEnv *env, jobject thiz, jint duration_ms) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setSeekHistoryDuration(duration_ms);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the watermarks of burst decoding.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param low_watermark_ms low watermark in milliseconds
+ * @param high_watermark_ms high watermark in milliseconds
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setBurstDecoding(JNIEnv *env,
+														  jobject thiz,
+														  jint low_watermark_ms,
+														  jint high_watermark_ms) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->setBurstDecoding(low_watermark_ms, high_watermark_ms);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the directory where seek indexes are persisted.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param path cache directory, null to not persist indexes
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setSeekIndexCacheDir(JNIEnv *env, jobject thiz, jstring path) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  std::string str_path = path != nullptr ? javaStringToString(env, path) : "";
+  player->setSeekIndexCacheDir(str_path);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Build the seek index of the whole file.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer_buildSeekIndex(JNIEnv *env, jobject thiz) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+  player->buildSeekIndex();
+}
+
 /**
  * Native interface with MediaPlayer, see documentation in java class.
  * Get metrics.
@@ -354,8 +597,30 @@ Java_com_github_a2va_media_MediaPlayer_getVideoHeight(JNIEnv *env, jobject thiz)
 extern "C"
 JNIEXPORT jobject JNICALL
 Java_com_github_a2va_media_MediaPlayer_native_1getMetrics(JNIEnv * env, jobject thiz) {
-  // TODO: implement native_getMetrics()
-  return nullptr;
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return nullptr;
+  }
+
+  jclass bundleClass = env->FindClass("android/os/PersistableBundle");
+  jmethodID constructorID = env->GetMethodID(bundleClass, "<init>", "()V");
+  jmethodID putLongID = env->GetMethodID(bundleClass, "putLong", "(Ljava/lang/String;J)V");
+  jobject bundle = env->NewObject(bundleClass, constructorID);
+  if(env->ExceptionCheck() || bundle == nullptr) {
+	LOGE("Unable to create metrics bundle");
+	env->ExceptionDescribe();
+	env->ExceptionClear();
+	return nullptr;
+  }
+
+  for(const auto &metric : player->getMetrics()) {
+	jstring key = env->NewStringUTF(metric.first.c_str());
+	env->CallVoidMethod(bundle, putLongID, key, static_cast<jlong>(metric.second));
+	env->DeleteLocalRef(key);
+  }
+
+  return bundle;
 }
 
 /**
@@ -441,16 +706,17 @@ Java_com_github_a2va_media_MediaPlayer_getSyncParams(JNIEnv *env,jobject thiz) {
  * @param env jni env
  * @param thiz MediaPlayer instance
  * @param msec milliseconds
+ * @param mode seek mode
  * */
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_github_a2va_media_MediaPlayer__1seekTo(JNIEnv *env, jobject thiz, jint msec) {
+Java_com_github_a2va_media_MediaPlayer__1seekTo(JNIEnv *env, jobject thiz, jlong msec, jint mode) {
   MediaPlayer *player = getPlayer(env, thiz);
   if(player == nullptr) {
 	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
 	return;
   }
-  player->seekTo(msec);
+  player->seekTo(msec, static_cast<SeekMode>(mode));
 }
 
 /**
@@ -519,6 +785,27 @@ Java_com_github_a2va_media_MediaPlayer_setNextMediaPlayer(JNIEnv *env,
   return player->setNextMediaPlayer(nextPlayer);
 }
 
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the crossfade with the next player.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param duration_ms crossfade duration in milliseconds
+ * @param curve gain curve
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setCrossfade(JNIEnv *env, jobject thiz, jint duration_ms, jint curve) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+
+  player->setCrossfade(duration_ms, static_cast<CrossfadeCurve>(curve));
+}
+
 /**
  * Native interface with MediaPlayer, see documentation in java class.
  * Release the native object.
@@ -632,7 +919,28 @@ Java_com_github_a2va_media_MediaPlayer_isLooping(JNIEnv *env, jobject thiz) {
 	return false;
   }
 
-  return player->isPlaying();
+  return player->isLooping();
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Set the loop region.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param start_us loop start in microseconds
+ * @param end_us loop end in microseconds, -1 for the end of file
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setLoopRegion(JNIEnv *env, jobject thiz, jlong start_us, jlong end_us) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+
+  player->setLoopRegion(start_us, end_us);
 }
 
 /**
@@ -700,6 +1008,51 @@ Java_com_github_a2va_media_MediaPlayer_getAudioSessionId(JNIEnv *env, jobject th
   return player->getAudioSessionId();
 }
 
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Capture what the output stream plays.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @param frames number of frames to capture, 0 to stop capturing
+ * */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_github_a2va_media_MediaPlayer__1setOutputCapture(JNIEnv *env, jobject thiz, jint frames) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return;
+  }
+
+  player->setOutputCapture(frames);
+}
+
+/**
+ * Native interface with MediaPlayer, see documentation in java class.
+ * Get the captured output.
+ *
+ * @param env jni env
+ * @param thiz MediaPlayer instance
+ * @return interleaved stereo frames
+ * */
+extern "C"
+JNIEXPORT jfloatArray JNICALL
+Java_com_github_a2va_media_MediaPlayer__1getCapturedOutput(JNIEnv *env, jobject thiz) {
+  MediaPlayer *player = getPlayer(env, thiz);
+  if(player == nullptr) {
+	NewJavaException(env,"java/lang/IllegalStateException","Native player can't be retrieve");
+	return nullptr;
+  }
+
+  std::vector<float> samples = player->getCapturedOutput();
+  jfloatArray array = env->NewFloatArray(static_cast<jsize>(samples.size()));
+  if (array != nullptr) {
+	env->SetFloatArrayRegion(array, 0, static_cast<jsize>(samples.size()), samples.data());
+  }
+  return array;
+}
+
 /**
  * Native interface with MediaPlayer, see documentation in java class.
  * Native invoke.
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "BufferTuner.h"
+#include "constants.h"
+
+int32_t BufferTuner::getInitialBufferSize(int32_t framesPerBurst) {
+  return framesPerBurst * kTunerMinBursts;
+}
+
+void BufferTuner::tune(oboe::AudioStream *stream, int32_t numFrames) {
+  if (!mEnabled) {
+	return;
+  }
+
+  int32_t sampleRate = stream->getSampleRate();
+  if (stream != mStream) {
+	oboe::ResultWithValue<int32_t> xRunCount = stream->getXRunCount();
+	mStream = stream;
+	mLastXRunCount = xRunCount ? xRunCount.value() : 0;
+	mFramesSinceCheck = 0;
+	mFramesSinceChange = 0;
+	mShrinkAfterFrames = static_cast<int64_t>(kTunerShrinkAfterMs) * sampleRate / 1000;
+	mShrunk = false;
+	return;
+  }
+
+  mFramesSinceCheck += numFrames;
+  mFramesSinceChange += numFrames;
+  if (mFramesSinceCheck < static_cast<int64_t>(kTunerIntervalMs) * sampleRate / 1000) {
+	return;
+  }
+  mFramesSinceCheck = 0;
+
+  oboe::ResultWithValue<int32_t> xRunCount = stream->getXRunCount();
+  if (!xRunCount) {
+	// Not supported by OpenSL ES
+	return;
+  }
+
+  int32_t framesPerBurst = stream->getFramesPerBurst();
+  int32_t bufferSize = stream->getBufferSizeInFrames();
+  if (xRunCount.value() > mLastXRunCount) {
+	mLastXRunCount = xRunCount.value();
+	if (mShrunk && mFramesSinceChange < mShrinkAfterFrames) {
+	  // The last shrink was too much, wait longer before the next one
+	  mShrinkAfterFrames *= 2;
+	}
+	mShrunk = false;
+	mFramesSinceChange = 0;
+	if (bufferSize + framesPerBurst <= stream->getBufferCapacityInFrames()) {
+	  stream->setBufferSizeInFrames(bufferSize + framesPerBurst);
+	  mGrowCount.fetch_add(1, std::memory_order_relaxed);
+	}
+  } else if (mShrinkEnabled && mFramesSinceChange >= mShrinkAfterFrames
+	  && bufferSize - framesPerBurst >= getInitialBufferSize(framesPerBurst)) {
+	stream->setBufferSizeInFrames(bufferSize - framesPerBurst);
+	mShrinkCount.fetch_add(1, std::memory_order_relaxed);
+	mShrunk = true;
+	mFramesSinceChange = 0;
+  }
+}
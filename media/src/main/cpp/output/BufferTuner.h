@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_BUFFER_TUNER
+#define MEDIA_BUFFER_TUNER
+
+#include <atomic>
+#include <oboe/Oboe.h>
+
+/**
+ * Adjust the buffer size of an output stream to the lowest size that doesn't glitch.
+ * The buffer starts at kTunerMinBursts bursts and grows by one burst each time the
+ * xrun count of the stream increases. Optionally, it shrinks by one burst after
+ * kTunerShrinkAfterMs without xrun, a shrink followed by an xrun doubles that time.
+ *
+ * tune() is called from the data callback, it doesn't block nor allocate.
+ * */
+class BufferTuner {
+ public:
+  /**
+   * Enable the tuning, for the next streams. Must not be called while a stream runs.
+   *
+   * @param enabled true to tune the buffer size
+   * @param shrinkEnabled true to also shrink the buffer after a glitch-free period
+   * */
+  void setEnabled(bool enabled, bool shrinkEnabled) {
+	mEnabled = enabled;
+	mShrinkEnabled = shrinkEnabled;
+  }
+
+  bool isEnabled() const {
+	return mEnabled;
+  }
+
+  /**
+   * Get the buffer size a new stream starts with.
+   *
+   * @param framesPerBurst burst size of the stream
+   * @return buffer size in frames
+   * */
+  static int32_t getInitialBufferSize(int32_t framesPerBurst);
+
+  /**
+   * Check the xrun count and adjust the buffer size. Called from the data callback.
+   *
+   * @param stream stream of the callback
+   * @param numFrames number of frames of the callback
+   * */
+  void tune(oboe::AudioStream *stream, int32_t numFrames);
+
+  /**
+   * @return number of times the buffer grew, and shrank
+   * */
+  uint64_t getGrowCount() const {
+	return mGrowCount.load(std::memory_order_relaxed);
+  }
+  uint64_t getShrinkCount() const {
+	return mShrinkCount.load(std::memory_order_relaxed);
+  }
+
+ private:
+  bool mEnabled = false;
+  bool mShrinkEnabled = false;
+
+  /**
+   * Only used by the data callback. A new stream, opened again or handed
+   * over by the previous player, starts a new measure.
+   * */
+  oboe::AudioStream *mStream = nullptr;
+  int32_t mLastXRunCount = 0;
+  int64_t mFramesSinceCheck = 0;
+  int64_t mFramesSinceChange = 0; // Since the last xrun or shrink
+  int64_t mShrinkAfterFrames = 0;
+  bool mShrunk = false; // The last change was a shrink
+
+  std::atomic<uint64_t> mGrowCount{0};
+  std::atomic<uint64_t> mShrinkCount{0};
+};
+
+#endif //MEDIA_BUFFER_TUNER
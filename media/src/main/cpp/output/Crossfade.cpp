@@ -0,0 +1,59 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <cmath>
+#include <algorithm>
+
+#include "Crossfade.h"
+#include "constants.h"
+
+float Crossfade::getFadeInGain(CrossfadeCurve curve, float progress) {
+  progress = std::min(std::max(progress, 0.0f), 1.0f);
+  switch (curve) {
+	case CrossfadeCurve::EqualPower:
+	  // Constant power when both players are uncorrelated
+	  return sinf(progress * static_cast<float>(M_PI_2));
+	case CrossfadeCurve::SCurve:
+	  return 0.5f - 0.5f * cosf(progress * static_cast<float>(M_PI));
+	case CrossfadeCurve::Linear:
+	default:
+	  return progress;
+  }
+}
+
+void Crossfade::applyFade(float *data, int32_t numFrames, CrossfadeCurve curve,
+						  int64_t position, int64_t length, bool fadeIn) {
+  for (int32_t i = 0; i < numFrames; i++) {
+	int64_t framePosition = position + i;
+	if (framePosition >= length) {
+	  if (!fadeIn) {
+		std::fill(data + i * kChannelCount, data + numFrames * kChannelCount, 0.0f);
+	  }
+	  return;
+	}
+
+	auto progress = static_cast<float>(framePosition) / static_cast<float>(length);
+	float gain = getFadeInGain(curve, fadeIn ? progress : 1.0f - progress);
+	data[i * kChannelCount] *= gain;
+	data[i * kChannelCount + 1] *= gain;
+  }
+}
+
+void Crossfade::mix(float *destination, const float *source, int32_t numFrames) {
+  for (int32_t i = 0; i < numFrames * kChannelCount; i++) {
+	destination[i] += source[i];
+  }
+}
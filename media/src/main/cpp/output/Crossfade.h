@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_CROSSFADE
+#define MEDIA_CROSSFADE
+
+#include <stdint.h>
+
+/**
+ * Gain curves of a crossfade. The fade-out is the fade-in played backward.
+ * */
+enum class CrossfadeCurve: int32_t { Linear=0, EqualPower, SCurve };
+
+/**
+ * Gain ramps of a crossfade between two players, applied in place on interleaved
+ * stereo audio. Stateless and allocation-free, called from the data callback.
+ * */
+class Crossfade {
+ public:
+  /**
+   * Get the gain of a fade-in.
+   *
+   * @param curve gain curve
+   * @param progress position in the fade, from 0 to 1
+   * @return gain from 0 to 1
+   * */
+  static float getFadeInGain(CrossfadeCurve curve, float progress);
+
+  /**
+   * Apply a fade on frames. The frames after the end of the fade are left
+   * unchanged by a fade-in and muted by a fade-out.
+   *
+   * @param data interleaved stereo audio
+   * @param numFrames number of frames
+   * @param curve gain curve
+   * @param position position of the first frame in the fade
+   * @param length fade length in frames
+   * @param fadeIn true for a fade-in, false for a fade-out
+   * */
+  static void applyFade(float *data, int32_t numFrames, CrossfadeCurve curve,
+						int64_t position, int64_t length, bool fadeIn);
+
+  /**
+   * Add frames to a buffer.
+   *
+   * @param destination interleaved stereo audio
+   * @param source interleaved stereo audio added to destination
+   * @param numFrames number of frames
+   * */
+  static void mix(float *destination, const float *source, int32_t numFrames);
+};
+
+#endif //MEDIA_CROSSFADE
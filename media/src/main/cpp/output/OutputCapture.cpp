@@ -0,0 +1,41 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "OutputCapture.h"
+
+#include <algorithm>
+#include <cstring>
+
+OutputCapture::OutputCapture(int32_t channelCount, int32_t capacityInFrames)
+	: mChannelCount(channelCount), mCapacityInFrames(capacityInFrames),
+	  mData(static_cast<size_t>(channelCount) * capacityInFrames) {}
+
+void OutputCapture::write(const float *audioData, int32_t numFrames) {
+  // Single writer, the data callback of one stream
+  int32_t framesWritten = mFramesWritten.load(std::memory_order_relaxed);
+  int32_t framesToWrite = std::min(numFrames, mCapacityInFrames - framesWritten);
+  if (framesToWrite <= 0) {
+	return;
+  }
+  memcpy(mData.data() + static_cast<size_t>(framesWritten) * mChannelCount, audioData,
+		 static_cast<size_t>(framesToWrite) * mChannelCount * sizeof(float));
+  mFramesWritten.store(framesWritten + framesToWrite, std::memory_order_release);
+}
+
+std::vector<float> OutputCapture::read() const {
+  int32_t framesWritten = mFramesWritten.load(std::memory_order_acquire);
+  return std::vector<float>(mData.begin(), mData.begin() + static_cast<size_t>(framesWritten) * mChannelCount);
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_OUTPUT_CAPTURE
+#define MEDIA_OUTPUT_CAPTURE
+
+#include <atomic>
+#include <cstdint>
+#include <vector>
+
+/**
+ * Copy of the audio written to an output stream, to check what was actually played.
+ *
+ * The storage is allocated once, the data callback appends to it without locking
+ * until it is full.
+ * */
+class OutputCapture {
+ public:
+  /**
+   * @param channelCount number of interleaved channels
+   * @param capacityInFrames number of frames kept, the following ones are dropped
+   * */
+  OutputCapture(int32_t channelCount, int32_t capacityInFrames);
+
+  /**
+   * Append frames, called from the data callback.
+   *
+   * @param audioData interleaved frames
+   * @param numFrames number of frames
+   * */
+  void write(const float *audioData, int32_t numFrames);
+
+  /**
+   * Copy the captured frames.
+   *
+   * @return interleaved frames, in the order they were played
+   * */
+  std::vector<float> read() const;
+
+ private:
+  int32_t mChannelCount;
+  int32_t mCapacityInFrames;
+  std::vector<float> mData;
+  std::atomic<int32_t> mFramesWritten{0};
+};
+
+#endif //MEDIA_OUTPUT_CAPTURE
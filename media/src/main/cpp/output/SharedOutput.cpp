@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <thread>
+#include <oboe/AudioStreamBuilder.h>
+
+#include "SharedOutput.h"
+#include "jni/utils.h"
+
+SharedOutput &SharedOutput::getInstance() {
+  // Never destroyed, a reopening thread may still run at exit
+  static SharedOutput *instance = new SharedOutput();
+  return *instance;
+}
+
+oboe::Result SharedOutput::attach(MixerSource *source) {
+  std::lock_guard<std::mutex> lock(mLock);
+  if (!mStream) {
+	oboe::Result result = openStream();
+	if (result != oboe::Result::OK) {
+	  return result;
+	}
+  }
+
+  for (auto &slot : mSources) {
+	MixerSource *expected = nullptr;
+	if (slot.compare_exchange_strong(expected, source, std::memory_order_acq_rel)) {
+	  mSourceCount.fetch_add(1, std::memory_order_relaxed);
+	  return oboe::Result::OK;
+	}
+  }
+  LOGE("Shared output is full, %d sources", kMaxSharedOutputSources);
+  return oboe::Result::ErrorNoFreeHandles;
+}
+
+void SharedOutput::detach(MixerSource *source) {
+  std::lock_guard<std::mutex> lock(mLock);
+  bool found = false;
+  for (auto &slot : mSources) {
+	MixerSource *expected = source;
+	// Sequentially consistent with the callback, which sets mInCallback before loading the sources
+	if (slot.compare_exchange_strong(expected, nullptr)) {
+	  found = true;
+	  break;
+	}
+  }
+  if (!found) {
+	return;
+  }
+
+  // Wait for the callback that may have loaded the source
+  waitForCallback();
+
+  if (mSourceCount.fetch_sub(1, std::memory_order_relaxed) == 1 && mStream) {
+	mStream->close();
+	mStream.reset();
+	mSampleRate.store(oboe::kUnspecified, std::memory_order_release);
+  }
+}
+
+void SharedOutput::waitForCallback() {
+  uint64_t callbackCount = mCallbackCount.load(std::memory_order_acquire);
+  while (mInCallback.load() && mCallbackCount.load(std::memory_order_acquire) == callbackCount) {
+	std::this_thread::yield();
+  }
+}
+
+int32_t SharedOutput::getDeviceId() {
+  std::lock_guard<std::mutex> lock(mLock);
+  return mStream ? mStream->getDeviceId() : oboe::kUnspecified;
+}
+
+/**
+ * Open and start the stream, at the sample rate of the previous stream if there was one:
+ * the decoders of the attached sources already resample to it.
+ * */
+oboe::Result SharedOutput::openStream() {
+  int32_t sampleRate = mSampleRate.load(std::memory_order_relaxed);
+
+  oboe::AudioStreamBuilder builder;
+  oboe::Result result = builder.setSharingMode(oboe::SharingMode::Shared)
+	  ->setPerformanceMode(oboe::PerformanceMode::PowerSaving)
+	  ->setFormat(oboe::AudioFormat::Float)
+	  ->setFormatConversionAllowed(true)
+	  ->setChannelCount(kChannelCount)
+	  ->setSampleRate(sampleRate)
+	  ->setSampleRateConversionQuality(oboe::SampleRateConversionQuality::Medium)
+	  ->setDataCallback(this)
+	  ->setErrorCallback(this)
+	  ->setUsage(oboe::Usage::Media)
+	  ->setFramesPerDataCallback(kFramesPerCallback)
+	  ->openStream(mStream);
+  if (result != oboe::Result::OK) {
+	LOGE("Error opening the shared output stream.");
+	return result;
+  }
+
+  mStream->setBufferSizeInFrames(mStream->getFramesPerBurst() * kBufferSizeInBursts);
+  mSampleRate.store(mStream->getSampleRate(), std::memory_order_release);
+  return mStream->requestStart();
+}
+
+oboe::DataCallbackResult SharedOutput::onAudioReady(oboe::AudioStream *oboeStream, void *audioData, int32_t numFrames) {
+  mInCallback.store(true);
+  auto *outputData = static_cast<float *>(audioData);
+  std::fill(outputData, outputData + numFrames * kChannelCount, 0.0f);
+
+  for (auto &slot : mSources) {
+	MixerSource *source = slot.load();
+	if (source == nullptr) {
+	  continue;
+	}
+	for (int32_t offset = 0; offset < numFrames; offset += kMixBufferFrames) {
+	  int32_t frames = std::min(kMixBufferFrames, numFrames - offset);
+	  if (source->readMixFrames(mMixBuffer.data(), frames) == 0) {
+		break;
+	  }
+	  float *output = outputData + offset * kChannelCount;
+	  for (int32_t i = 0; i < frames * kChannelCount; i++) {
+		output[i] += mMixBuffer[i];
+	  }
+	}
+  }
+
+  mCallbackCount.fetch_add(1, std::memory_order_release);
+  mInCallback.store(false, std::memory_order_release);
+  return oboe::DataCallbackResult::Continue;
+}
+
+/**
+ * The stream was disconnected, the route changed. Called on a separate thread,
+ * the sources stay attached and the stream is reopened on the new route.
+ *
+ * Opening a stream from its own error callback isn't allowed, the reopening is done
+ * by another thread.
+ * */
+void SharedOutput::onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) {
+  LOGE("Shared output error %s, reopening", oboe::convertToText(error));
+  std::thread(&SharedOutput::reopenStream, this, oboeStream).detach();
+}
+
+/**
+ * Replace the disconnected stream with a new one, if sources are still attached.
+ *
+ * @param oboeStream stream closed after the error
+ * */
+void SharedOutput::reopenStream(oboe::AudioStream *oboeStream) {
+  std::lock_guard<std::mutex> lock(mLock);
+  // Already closed by the last detach(), or reopened since
+  if (mStream.get() != oboeStream || mStream->getState() != oboe::StreamState::Closed) {
+	return;
+  }
+  mStream.reset();
+  mInCallback.store(false, std::memory_order_release);
+  if (mSourceCount.load(std::memory_order_relaxed) > 0 && openStream() != oboe::Result::OK) {
+	LOGE("Error reopening the shared output stream.");
+  }
+}
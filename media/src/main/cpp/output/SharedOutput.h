@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_SHARED_OUTPUT
+#define MEDIA_SHARED_OUTPUT
+
+#include <atomic>
+#include <mutex>
+#include <memory>
+#include <vector>
+#include <oboe/Oboe.h>
+
+#include "constants.h"
+
+/**
+ * Player mixed by the SharedOutput.
+ * */
+class MixerSource {
+ public:
+  virtual ~MixerSource() = default;
+  /**
+   * Read frames with the volume of the source applied. Called from the data callback,
+   * must not block nor allocate.
+   *
+   * @param destination interleaved stereo output, filled with silence when nothing is read
+   * @param numFrames number of frames requested
+   * @return number of frames actually read
+   * */
+  virtual int32_t readMixFrames(float *destination, int32_t numFrames) = 0;
+};
+
+/**
+ * One oboe stream shared by many players. The data callback mixes every
+ * attached source, attaching or detaching a source doesn't touch the stream.
+ *
+ * The stream is opened when the first source is attached and closed once
+ * the last one is detached. It is reopened on the new device after a disconnection,
+ * from a separate thread.
+ * */
+class SharedOutput : public oboe::AudioStreamDataCallback, public oboe::AudioStreamErrorCallback {
+ public:
+  static SharedOutput &getInstance();
+
+  /**
+   * Attach a source, opening and starting the stream if needed.
+   *
+   * @param source source to mix, must be detached before it is destroyed
+   * @return result of opening the stream
+   * */
+  oboe::Result attach(MixerSource *source);
+
+  /**
+   * Detach a source. Once it returns, the data callback doesn't use the source anymore.
+   *
+   * @param source attached source
+   * */
+  void detach(MixerSource *source);
+
+  /**
+   * Wait for the data callback running at that time to return, a single callback at most.
+   * */
+  void waitForCallback();
+
+  /**
+   * @return sample rate of the stream, oboe::kUnspecified if it is closed
+   * */
+  int32_t getSampleRate() const {
+	return mSampleRate.load(std::memory_order_acquire);
+  }
+
+  /**
+   * @return device of the stream, oboe::kUnspecified if it is closed
+   * */
+  int32_t getDeviceId();
+
+  /**
+   * @return number of attached sources
+   * */
+  int32_t getSourceCount() const {
+	return mSourceCount.load(std::memory_order_relaxed);
+  }
+
+  oboe::DataCallbackResult onAudioReady(oboe::AudioStream *oboeStream, void *audioData, int32_t numFrames) override;
+  void onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) override;
+
+ private:
+  SharedOutput() = default;
+
+  oboe::Result openStream();
+  void reopenStream(oboe::AudioStream *oboeStream);
+
+  std::atomic<MixerSource *> mSources[kMaxSharedOutputSources] = {};
+  std::atomic<int32_t> mSourceCount{0};
+  std::atomic<int32_t> mSampleRate{oboe::kUnspecified};
+  std::vector<float> mMixBuffer = std::vector<float>(kMixBufferFrames * kChannelCount);
+
+  /**
+   * A detached source may still be read by the callback running at that time,
+   * detach() waits for the callback count to change.
+   * */
+  std::atomic<bool> mInCallback{false};
+  std::atomic<uint64_t> mCallbackCount{0};
+
+  std::shared_ptr<oboe::AudioStream> mStream;
+  std::mutex mLock; // Guards mStream and the changes of mSources, the data callback only reads mSources
+};
+
+#endif //MEDIA_SHARED_OUTPUT
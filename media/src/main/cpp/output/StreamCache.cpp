@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <thread>
+#include <algorithm>
+
+#include "StreamCache.h"
+#include "jni/utils.h"
+#include "constants.h"
+
+StreamCache &StreamCache::getInstance() {
+  // Never destroyed, the timer thread may still wait on it at exit
+  static auto *instance = new StreamCache();
+  return *instance;
+}
+
+void StreamCache::put(const StreamConfig &config, std::shared_ptr<oboe::AudioStream> stream,
+					  std::shared_ptr<StreamRouter> router) {
+  router->setTarget(this, this);
+
+  std::shared_ptr<oboe::AudioStream> previous;
+  std::shared_ptr<StreamRouter> previousRouter;
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	previous = std::move(mStream);
+	previousRouter = std::move(mRouter);
+	mConfig = config;
+	mStream = std::move(stream);
+	mRouter = std::move(router);
+	mDisconnected = false;
+	mDeadline = std::chrono::steady_clock::now() + std::chrono::milliseconds(kWarmStreamTimeoutMs);
+	if (!mTimerRunning) {
+	  mTimerRunning = true;
+	  std::thread(&StreamCache::closeIdle, this).detach();
+	}
+  }
+  mCondition.notify_all();
+
+  // Closed outside of the lock, closing waits for the stream
+  if (previous) {
+	closeStream(std::move(previous), std::move(previousRouter));
+  }
+}
+
+bool StreamCache::take(const StreamConfig &config, std::shared_ptr<oboe::AudioStream> &stream,
+					   std::shared_ptr<StreamRouter> &router) {
+  std::lock_guard<std::mutex> lock(mLock);
+  if (!mStream || mDisconnected || !(mConfig == config)) {
+	return false;
+  }
+  stream = std::move(mStream);
+  router = std::move(mRouter);
+  mCondition.notify_all();
+  return true;
+}
+
+/**
+ * Timer thread, close the parked stream once its deadline is reached or it was disconnected.
+ * The thread ends when no stream is parked.
+ * */
+void StreamCache::closeIdle() {
+  std::unique_lock<std::mutex> lock(mLock);
+  while (mStream) {
+	mCondition.wait_until(lock, mDeadline);
+	if (mStream && (mDisconnected || std::chrono::steady_clock::now() >= mDeadline)) {
+	  LOGD(mDisconnected ? "Closing the disconnected stream" : "Closing the idle stream");
+	  std::shared_ptr<oboe::AudioStream> stream = std::move(mStream);
+	  std::shared_ptr<StreamRouter> router = std::move(mRouter);
+	  mDisconnected = false;
+	  lock.unlock();
+	  closeStream(std::move(stream), std::move(router));
+	  lock.lock();
+	}
+  }
+  mTimerRunning = false;
+}
+
+/**
+ * Close a stream, then release its router once no callback runs into it anymore.
+ *
+ * @param stream stream to close
+ * @param router callback of the stream
+ * */
+void StreamCache::closeStream(std::shared_ptr<oboe::AudioStream> stream, std::shared_ptr<StreamRouter> router) {
+  stream->stop();
+  stream->close();
+  stream.reset();
+  router->waitForErrorCallback();
+  router.reset();
+}
+
+oboe::DataCallbackResult StreamCache::onRoutedAudioReady(StreamRouter *router, oboe::AudioStream *oboeStream,
+														 void *audioData, int32_t numFrames) {
+  auto *outputData = static_cast<float *>(audioData);
+  std::fill(outputData, outputData + numFrames * oboeStream->getChannelCount(), 0.0f);
+  return oboe::DataCallbackResult::Continue;
+}
+
+/**
+ * The parked stream was disconnected, it can't be reused. Called from the error
+ * callback of its router, the timer thread closes it and releases the router.
+ * */
+void StreamCache::onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) {
+  {
+	std::lock_guard<std::mutex> lock(mLock);
+	if (mStream.get() != oboeStream) {
+	  return;
+	}
+	mDisconnected = true;
+  }
+  mCondition.notify_all();
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_STREAM_CACHE
+#define MEDIA_STREAM_CACHE
+
+#include <memory>
+#include <mutex>
+#include <condition_variable>
+#include <chrono>
+#include <oboe/Oboe.h>
+
+#include "StreamRouter.h"
+
+/**
+ * Parameters a stream was opened with, a stream is only reused with the same ones.
+ * */
+struct StreamConfig {
+  int32_t sampleRate;
+  int32_t deviceId;
+  int32_t sessionId;
+  int32_t contentType;
+  int32_t framesPerCallback;
+  bool lowLatency;
+
+  bool operator==(const StreamConfig &other) const {
+	return sampleRate == other.sampleRate && deviceId == other.deviceId
+		&& sessionId == other.sessionId && contentType == other.contentType
+		&& framesPerCallback == other.framesPerCallback && lowLatency == other.lowLatency;
+  }
+};
+
+/**
+ * Keeps the stream of a reset player open, paused, for its next
+ * prepare() with the same parameters. Opening a stream takes tens of milliseconds
+ * on many devices. The stream is closed if it isn't reused within kWarmStreamTimeoutMs.
+ *
+ * While parked, the router of the stream targets the cache: the stream outputs
+ * silence and an error marks it disconnected, the timer thread then closes it.
+ * A stream is always closed before its router is released.
+ * */
+class StreamCache : public RoutedDataCallback, public oboe::AudioStreamErrorCallback {
+ public:
+  static StreamCache &getInstance();
+
+  /**
+   * Park a stream. Its data callback must not be running into its previous target,
+   * the stream must be paused or stopped. A stream already parked is closed.
+   *
+   * @param config parameters the stream was opened with
+   * @param stream stream to keep
+   * @param router callback of the stream
+   * */
+  void put(const StreamConfig &config, std::shared_ptr<oboe::AudioStream> stream,
+		   std::shared_ptr<StreamRouter> router);
+
+  /**
+   * Take the parked stream if it was opened with the same parameters
+   * and wasn't disconnected. Its router still targets the cache.
+   *
+   * @param config parameters of the stream
+   * @param stream set to the parked stream
+   * @param router set to the callback of the stream
+   * @return true if a stream was taken
+   * */
+  bool take(const StreamConfig &config, std::shared_ptr<oboe::AudioStream> &stream,
+			std::shared_ptr<StreamRouter> &router);
+
+  oboe::DataCallbackResult onRoutedAudioReady(StreamRouter *router, oboe::AudioStream *oboeStream,
+											  void *audioData, int32_t numFrames) override;
+  void onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) override;
+
+ private:
+  StreamCache() = default;
+
+  void closeIdle();
+  static void closeStream(std::shared_ptr<oboe::AudioStream> stream, std::shared_ptr<StreamRouter> router);
+
+  StreamConfig mConfig{};
+  std::shared_ptr<oboe::AudioStream> mStream;
+  std::shared_ptr<StreamRouter> mRouter;
+  bool mDisconnected = false; // The parked stream was closed by an error
+  std::chrono::steady_clock::time_point mDeadline;
+  bool mTimerRunning = false;
+  std::condition_variable mCondition;
+  std::mutex mLock;
+};
+
+#endif //MEDIA_STREAM_CACHE
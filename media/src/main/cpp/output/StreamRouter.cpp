@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "StreamRouter.h"
+
+#include <thread>
+
+void StreamRouter::setTarget(RoutedDataCallback *dataTarget, oboe::AudioStreamErrorCallback *errorTarget) {
+  mErrorTarget.store(errorTarget, std::memory_order_release);
+  // Sequentially consistent with the callback, which sets mInCallback before loading the target
+  mDataTarget.store(dataTarget);
+}
+
+void StreamRouter::waitForCallback() {
+  uint64_t callbackCount = mCallbackCount.load(std::memory_order_acquire);
+  while (mInCallback.load() && mCallbackCount.load(std::memory_order_acquire) == callbackCount) {
+	std::this_thread::yield();
+  }
+}
+
+void StreamRouter::setCapture(std::shared_ptr<OutputCapture> capture) {
+  // Sequentially consistent with the callback, like setTarget()
+  mCapture.store(capture.get());
+  waitForCallback();
+  mCaptureOwner = std::move(capture);
+}
+
+void StreamRouter::waitForErrorCallback() {
+  while (mErrorCallbacks.load(std::memory_order_acquire) > 0) {
+	std::this_thread::yield();
+  }
+}
+
+oboe::DataCallbackResult StreamRouter::onAudioReady(oboe::AudioStream *oboeStream, void *audioData, int32_t numFrames) {
+  mInCallback.store(true);
+  oboe::DataCallbackResult result = mDataTarget.load()->onRoutedAudioReady(this, oboeStream, audioData, numFrames);
+  OutputCapture *capture = mCapture.load();
+  if (capture != nullptr) {
+	capture->write(static_cast<const float *>(audioData), numFrames);
+  }
+  mCallbackCount.fetch_add(1, std::memory_order_release);
+  mInCallback.store(false, std::memory_order_release);
+  return result;
+}
+
+bool StreamRouter::onError(oboe::AudioStream *oboeStream, oboe::Result error) {
+  return mErrorTarget.load(std::memory_order_acquire)->onError(oboeStream, error);
+}
+
+void StreamRouter::onErrorBeforeClose(oboe::AudioStream *oboeStream, oboe::Result error) {
+  mErrorCallbacks.fetch_add(1, std::memory_order_acquire);
+  mErrorTarget.load(std::memory_order_acquire)->onErrorBeforeClose(oboeStream, error);
+  // Last access to the router, it may be released right after
+  mErrorCallbacks.fetch_sub(1, std::memory_order_release);
+}
+
+void StreamRouter::onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) {
+  mErrorCallbacks.fetch_add(1, std::memory_order_acquire);
+  mErrorTarget.load(std::memory_order_acquire)->onErrorAfterClose(oboeStream, error);
+  // Last access to the router, it may be released right after
+  mErrorCallbacks.fetch_sub(1, std::memory_order_release);
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_STREAM_ROUTER
+#define MEDIA_STREAM_ROUTER
+
+#include <atomic>
+#include <memory>
+#include <oboe/Oboe.h>
+
+#include "OutputCapture.h"
+
+class StreamRouter;
+
+/**
+ * Data callback target of a StreamRouter.
+ * */
+class RoutedDataCallback {
+ public:
+  virtual ~RoutedDataCallback() = default;
+  /**
+   * Same as oboe::AudioStreamDataCallback::onAudioReady(), with the router calling it.
+   *
+   * @param router router of the stream, to move the stream to another target
+   * @param oboeStream stream
+   * @param audioData buffer to fill
+   * @param numFrames number of frames to write
+   * @return stop or continue
+   * */
+  virtual oboe::DataCallbackResult onRoutedAudioReady(StreamRouter *router, oboe::AudioStream *oboeStream,
+													  void *audioData, int32_t numFrames) = 0;
+};
+
+/**
+ * Data and error callback of an oboe stream, forwarded to a target that can change
+ * while the stream runs.
+ *
+ * The stream keeps a raw pointer to its callback, so a player handing its stream
+ * over to the next one can't be the callback itself: the router is owned with
+ * the stream and outlives the player that opened it.
+ * */
+class StreamRouter : public oboe::AudioStreamDataCallback, public oboe::AudioStreamErrorCallback {
+ public:
+  /**
+   * @param dataTarget data callback of the first target
+   * @param errorTarget error callback of the first target
+   * */
+  StreamRouter(RoutedDataCallback *dataTarget, oboe::AudioStreamErrorCallback *errorTarget)
+	  : mDataTarget(dataTarget), mErrorTarget(errorTarget) {}
+
+  /**
+   * Change the target. Lock-free, can be called from the data callback.
+   *
+   * @param dataTarget data callback of the new target
+   * @param errorTarget error callback of the new target
+   * */
+  void setTarget(RoutedDataCallback *dataTarget, oboe::AudioStreamErrorCallback *errorTarget);
+
+  /**
+   * Wait for the data callback running during the last setTarget() to return,
+   * the previous target is not called anymore once it does. A single callback at most.
+   * */
+  void waitForCallback();
+
+  /**
+   * Copy what the stream plays into a capture, whichever player is the target.
+   * Not thread-safe with itself, the previous capture is released once the
+   * data callback doesn't use it anymore.
+   *
+   * @param capture capture to fill, nullptr to stop capturing
+   * */
+  void setCapture(std::shared_ptr<OutputCapture> capture);
+
+  /**
+   * Wait for the error callbacks forwarded at that time to return. The router
+   * can be released once it does and its stream is closed.
+   * */
+  void waitForErrorCallback();
+
+  /**
+   * @return data callback of the current target
+   * */
+  RoutedDataCallback *getDataTarget() const {
+	return mDataTarget.load(std::memory_order_acquire);
+  }
+
+  oboe::DataCallbackResult onAudioReady(oboe::AudioStream *oboeStream, void *audioData, int32_t numFrames) override;
+
+  bool onError(oboe::AudioStream *oboeStream, oboe::Result error) override;
+  void onErrorBeforeClose(oboe::AudioStream *oboeStream, oboe::Result error) override;
+  void onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) override;
+
+ private:
+  std::atomic<RoutedDataCallback *> mDataTarget;
+  std::atomic<oboe::AudioStreamErrorCallback *> mErrorTarget;
+  std::atomic<OutputCapture *> mCapture{nullptr};
+  std::shared_ptr<OutputCapture> mCaptureOwner; // Keeps mCapture alive, not used by the callback
+  std::atomic<bool> mInCallback{false};
+  std::atomic<uint64_t> mCallbackCount{0};
+  std::atomic<int32_t> mErrorCallbacks{0};
+};
+
+#endif //MEDIA_STREAM_ROUTER
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "GrainCache.h"
+
+void GrainCache::setCapacity(size_t capacity) {
+  std::lock_guard<std::mutex> lock(mLock);
+  mCapacity = capacity;
+  trim();
+}
+
+std::shared_ptr<const GrainCache::Chunk> GrainCache::get(int64_t index) {
+  std::lock_guard<std::mutex> lock(mLock);
+  auto it = mMap.find(index);
+  if (it == mMap.end()) {
+	return nullptr;
+  }
+  // Move the entry in front, the iterators stay valid
+  mEntries.splice(mEntries.begin(), mEntries, it->second);
+  return it->second->chunk;
+}
+
+bool GrainCache::contains(int64_t index) {
+  std::lock_guard<std::mutex> lock(mLock);
+  return mMap.find(index) != mMap.end();
+}
+
+void GrainCache::put(int64_t index, std::shared_ptr<const Chunk> chunk) {
+  std::lock_guard<std::mutex> lock(mLock);
+  auto it = mMap.find(index);
+  if (it != mMap.end()) {
+	it->second->chunk = std::move(chunk);
+	mEntries.splice(mEntries.begin(), mEntries, it->second);
+	return;
+  }
+  mEntries.push_front(Entry{index, std::move(chunk)});
+  mMap[index] = mEntries.begin();
+  trim();
+}
+
+void GrainCache::clear() {
+  std::lock_guard<std::mutex> lock(mLock);
+  mEntries.clear();
+  mMap.clear();
+}
+
+size_t GrainCache::size() {
+  std::lock_guard<std::mutex> lock(mLock);
+  return mEntries.size();
+}
+
+/**
+ * Drop the least recently used chunks over the capacity, lock must be held.
+ * */
+void GrainCache::trim() {
+  while (mEntries.size() > mCapacity) {
+	mMap.erase(mEntries.back().index);
+	mEntries.pop_back();
+  }
+}
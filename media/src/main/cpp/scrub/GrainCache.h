@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_GRAIN_CACHE
+#define MEDIA_GRAIN_CACHE
+
+#include <list>
+#include <memory>
+#include <mutex>
+#include <unordered_map>
+#include <vector>
+#include <stdint.h>
+
+/**
+ * Least recently used cache of decoded chunks, keyed by their index on a
+ * fixed time grid. A chunk holds interleaved float frames at the output
+ * sample rate, it is shared so that a lookup never copies audio.
+ * */
+class GrainCache {
+ public:
+  using Chunk = std::vector<float>;
+
+  /**
+   * Set the maximum number of chunks kept, the least recently used ones are dropped.
+   *
+   * @param capacity number of chunks
+   * */
+  void setCapacity(size_t capacity);
+
+  /**
+   * Find a chunk and mark it as the most recently used.
+   *
+   * @param index chunk index on the time grid
+   * @return the chunk, or nullptr if it is not cached
+   * */
+  std::shared_ptr<const Chunk> get(int64_t index);
+
+  /**
+   * Check if a chunk is cached, without changing its use order.
+   *
+   * @param index chunk index on the time grid
+   * @return true if the chunk is cached
+   * */
+  bool contains(int64_t index);
+
+  /**
+   * Add a chunk as the most recently used, replacing the one with the same index.
+   *
+   * @param index chunk index on the time grid
+   * @param chunk decoded frames
+   * */
+  void put(int64_t index, std::shared_ptr<const Chunk> chunk);
+
+  /**
+   * Remove every chunk.
+   * */
+  void clear();
+
+  /**
+   * Get the number of chunks cached.
+   *
+   * @return chunk count
+   * */
+  size_t size();
+
+ private:
+  struct Entry {
+	int64_t index;
+	std::shared_ptr<const Chunk> chunk;
+  };
+
+  void trim();
+
+  std::mutex mLock;
+  size_t mCapacity = 0;
+  std::list<Entry> mEntries; // Most recently used first
+  std::unordered_map<int64_t, std::list<Entry>::iterator> mMap;
+};
+
+#endif //MEDIA_GRAIN_CACHE
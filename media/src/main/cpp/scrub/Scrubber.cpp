@@ -0,0 +1,429 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <algorithm>
+#include <cmath>
+#include <cstring>
+
+extern "C" {
+#include <libavutil/opt.h>
+}
+
+#include "Scrubber.h"
+#include "jni/utils.h"
+#include "constants.h"
+
+Scrubber::~Scrubber() {
+  stop();
+}
+
+void Scrubber::start(const std::string &url, int streamIndex, int32_t outputSampleRate, int64_t positionUs) {
+  stop();
+
+  // The chunks are only valid for one file and one output rate
+  if (url != mCacheUrl || outputSampleRate != mOutputSampleRate) {
+	mCache.clear();
+	mCacheUrl = url;
+  }
+  mCache.setCapacity(kScrubCacheChunks);
+  mOutputSampleRate = outputSampleRate;
+  mChunkFrames = static_cast<int32_t>(av_rescale(kScrubChunkMs, outputSampleRate, 1000));
+  mGrainFrames = mChunkFrames * kScrubGrainChunks;
+
+  // Hann window, a grain fades in and out so that overlapping grains don't click
+  mWindow.resize(mGrainFrames);
+  for (int32_t i = 0; i < mGrainFrames; i++) {
+	mWindow[i] = 0.5f * (1.0f - cosf(2.0f * static_cast<float>(M_PI) * i / (mGrainFrames - 1)));
+  }
+  for (auto &grain : mGrains) {
+	grain.assign(mGrainFrames * kChannelCount, 0.0f);
+  }
+  mPublished.store(-1, std::memory_order_relaxed);
+  mHeldBuffers.store(0, std::memory_order_relaxed);
+  for (auto &voice : mVoices) {
+	voice = Voice();
+  }
+
+  mTargetUs.store(positionUs, std::memory_order_release);
+  mStop = false;
+  mThread = std::thread(&Scrubber::scrubLoop, this, url, streamIndex);
+  mActive.store(true, std::memory_order_release);
+}
+
+void Scrubber::stop() {
+  mActive.store(false, std::memory_order_release);
+  if (mThread.joinable()) {
+	mStop = true;
+	mWakeup.signal();
+	mThread.join();
+  }
+}
+
+void Scrubber::scrubTo(int64_t positionUs) {
+  mTargetUs.store(std::max<int64_t>(positionUs, 0), std::memory_order_release);
+  mWakeup.signal();
+}
+
+int32_t Scrubber::readFrames(float *destination, int32_t numFrames, float leftVolume, float rightVolume) {
+  memset(destination, 0, numFrames * kChannelCount * sizeof(float));
+
+  // A new grain starts, the one being played keeps fading out on the second voice
+  int next = mPublished.exchange(-1, std::memory_order_acq_rel);
+  if (next >= 0) {
+	if (mVoices[1].buffer >= 0) {
+	  releaseBuffer(mVoices[1].buffer);
+	}
+	mVoices[1] = mVoices[0];
+	mVoices[0].buffer = next;
+	mVoices[0].position = 0;
+  }
+
+  for (auto &voice : mVoices) {
+	if (voice.buffer < 0) {
+	  continue;
+	}
+	const float *grain = mGrains[voice.buffer].data() + voice.position * kChannelCount;
+	int32_t frames = std::min(numFrames, mGrainFrames - voice.position);
+	for (int32_t i = 0; i < frames; i++) {
+	  destination[i * 2] += grain[i * 2] * leftVolume;
+	  destination[i * 2 + 1] += grain[i * 2 + 1] * rightVolume;
+	}
+	voice.position += frames;
+	if (voice.position >= mGrainFrames) {
+	  releaseBuffer(voice.buffer);
+	  voice = Voice();
+	}
+  }
+  return numFrames;
+}
+
+/**
+ * Give a grain buffer back to the scrub thread.
+ *
+ * @param buffer grain buffer index
+ * */
+void Scrubber::releaseBuffer(int buffer) {
+  mHeldBuffers.fetch_and(~(1u << buffer), std::memory_order_release);
+}
+
+/**
+ * Scrub thread, decodes the chunks under the cursor and publishes the grains.
+ *
+ * @param url file to decode
+ * @param streamIndex audio stream index
+ * */
+void Scrubber::scrubLoop(std::string url, int streamIndex) {
+  LOGD("SCRUB START");
+  if (!open(url, streamIndex)) {
+	close();
+	return;
+  }
+
+  int64_t lastIndex = -1;
+  int64_t lastTargetUs = mTargetUs.load(std::memory_order_acquire);
+  bool reverse = false;
+  while (!mStop) {
+	int64_t targetUs = mTargetUs.load(std::memory_order_acquire);
+	int64_t index = getChunkIndex(targetUs);
+	if (index == lastIndex) {
+	  mWakeup.wait();
+	  continue;
+	}
+
+	// The grain is played backward while the cursor goes backward
+	if (targetUs != lastTargetUs) {
+	  reverse = targetUs < lastTargetUs;
+	}
+	lastTargetUs = targetUs;
+
+	if (mCache.contains(index) && mCache.contains(index + 1)) {
+	  mCacheHits.fetch_add(1, std::memory_order_relaxed);
+	} else {
+	  mCacheMisses.fetch_add(1, std::memory_order_relaxed);
+	  decodeChunks(index);
+	}
+
+	// Only play the grain if the cursor is still on it
+	if (mCache.contains(index) && getChunkIndex(mTargetUs.load(std::memory_order_acquire)) == index) {
+	  publishGrain(index, reverse);
+	}
+	lastIndex = index;
+  }
+
+  close();
+  LOGD("SCRUB END");
+}
+
+/**
+ * Open the demuxer, decoder and resampler of the scrub thread.
+ *
+ * @param url file to decode
+ * @param streamIndex audio stream index
+ * @return false on error
+ * */
+bool Scrubber::open(const std::string &url, int streamIndex) {
+  mFmt_ctx = avformat_alloc_context();
+  if (mFmt_ctx == nullptr) {
+	return false;
+  }
+  mFmt_ctx->interrupt_callback.callback = &Scrubber::interrupt;
+  mFmt_ctx->interrupt_callback.opaque = this;
+
+  // The context is freed on failure
+  int ret = avformat_open_input(&mFmt_ctx, url.c_str(), nullptr, nullptr);
+  if (ret < 0) {
+	LOGE("Scrubber could not open file:%s, %s", url.c_str(), av_err2str(ret));
+	return false;
+  }
+  ret = avformat_find_stream_info(mFmt_ctx, nullptr);
+  if (ret < 0 || streamIndex >= static_cast<int>(mFmt_ctx->nb_streams)) {
+	LOGE("Scrubber could not find the stream");
+	return false;
+  }
+  mStream = mFmt_ctx->streams[streamIndex];
+
+  mCodec_ctx = avcodec_alloc_context3(nullptr);
+  if (mCodec_ctx == nullptr) {
+	return false;
+  }
+  ret = avcodec_parameters_to_context(mCodec_ctx, mStream->codecpar);
+  if (ret >= 0) {
+	ret = avcodec_open2(mCodec_ctx, avcodec_find_decoder(mCodec_ctx->codec_id), nullptr);
+  }
+  if (ret < 0) {
+	LOGE("Scrubber could not open codec");
+	return false;
+  }
+
+  mSwr = swr_alloc();
+  if (mSwr == nullptr) {
+	return false;
+  }
+  uint64_t channelLayout = mCodec_ctx->channel_layout != 0
+						   ? mCodec_ctx->channel_layout
+						   : av_get_default_channel_layout(mCodec_ctx->channels);
+  av_opt_set_int(mSwr, "in_channel_count", mCodec_ctx->channels, 0);
+  av_opt_set_int(mSwr, "out_channel_count", kChannelCount, 0);
+  av_opt_set_int(mSwr, "in_channel_layout", channelLayout, 0);
+  av_opt_set_int(mSwr, "out_channel_layout", AV_CH_LAYOUT_STEREO, 0);
+  av_opt_set_int(mSwr, "in_sample_rate", mCodec_ctx->sample_rate, 0);
+  av_opt_set_int(mSwr, "out_sample_rate", mOutputSampleRate, 0);
+  av_opt_set_int(mSwr, "in_sample_fmt", mCodec_ctx->sample_fmt, 0);
+  av_opt_set_sample_fmt(mSwr, "out_sample_fmt", AV_SAMPLE_FMT_FLT, 0);
+  ret = swr_init(mSwr);
+  if (ret < 0) {
+	LOGE("Scrubber error init SwrContext");
+	return false;
+  }
+  return true;
+}
+
+void Scrubber::close() {
+  if (mSwr != nullptr) {
+	swr_free(&mSwr);
+  }
+  if (mCodec_ctx != nullptr) {
+	avcodec_free_context(&mCodec_ctx);
+  }
+  if (mFmt_ctx != nullptr) {
+	avformat_close_input(&mFmt_ctx);
+  }
+  mStream = nullptr;
+  mPending.clear();
+}
+
+/**
+ * Get the chunk under a position.
+ *
+ * @param positionUs position in microseconds
+ * @return chunk index on the time grid
+ * */
+int64_t Scrubber::getChunkIndex(int64_t positionUs) {
+  return av_rescale(positionUs, mOutputSampleRate, AV_TIME_BASE) / mChunkFrames;
+}
+
+/**
+ * Decode from the keyframe before a chunk until the chunks of its grain are cached.
+ * Every chunk decoded on the way is cached too, the next grains of a forward drag are free.
+ * Stops early if the cursor leaves the decoded region.
+ *
+ * @param index first chunk of the grain
+ * */
+void Scrubber::decodeChunks(int64_t index) {
+  int64_t startPts = mStream->start_time != AV_NOPTS_VALUE ? mStream->start_time : 0;
+  int64_t target = av_rescale_q(av_rescale(index * mChunkFrames, AV_TIME_BASE, mOutputSampleRate),
+								AV_TIME_BASE_Q, mStream->time_base) + startPts;
+  int ret = avformat_seek_file(mFmt_ctx, mStream->index, INT64_MIN, target, target, 0);
+  if (ret < 0) {
+	LOGE("Scrubber seek failed, %s", av_err2str(ret));
+	return;
+  }
+  avcodec_flush_buffers(mCodec_ctx);
+  swr_init(mSwr);
+  mPending.clear();
+  mPendingPosition = AV_NOPTS_VALUE;
+
+  AVPacket *packet = av_packet_alloc();
+  AVFrame *frame = av_frame_alloc();
+  while (!mStop && !(mCache.contains(index) && mCache.contains(index + 1))) {
+	int64_t current = getChunkIndex(mTargetUs.load(std::memory_order_acquire));
+	if (current < index || current > index + kScrubGrainChunks) {
+	  break;
+	}
+
+	ret = av_read_frame(mFmt_ctx, packet);
+	if (ret < 0) {
+	  // End of file, get the last frames of the decoder
+	  avcodec_send_packet(mCodec_ctx, nullptr);
+	} else if (packet->stream_index != mStream->index) {
+	  av_packet_unref(packet);
+	  continue;
+	} else {
+	  avcodec_send_packet(mCodec_ctx, packet);
+	  av_packet_unref(packet);
+	}
+
+	while (avcodec_receive_frame(mCodec_ctx, frame) == 0) {
+	  cacheFrame(frame);
+	  av_frame_unref(frame);
+	}
+
+	if (ret < 0) {
+	  flushPending();
+	  break;
+	}
+  }
+  av_frame_free(&frame);
+  av_packet_free(&packet);
+}
+
+/**
+ * Resample a decoded frame and cache every chunk it completes.
+ *
+ * @param frame decoded frame
+ * */
+void Scrubber::cacheFrame(AVFrame *frame) {
+  // Only the first frame after a seek gives the position, the next ones follow it
+  if (mPendingPosition == AV_NOPTS_VALUE) {
+	int64_t pts = frame->best_effort_timestamp != AV_NOPTS_VALUE ? frame->best_effort_timestamp : frame->pts;
+	if (pts == AV_NOPTS_VALUE) {
+	  return;
+	}
+	int64_t startPts = mStream->start_time != AV_NOPTS_VALUE ? mStream->start_time : 0;
+	mPendingPosition = av_rescale_q(pts - startPts, mStream->time_base, AVRational{1, mOutputSampleRate});
+  }
+
+  int maxFrames = swr_get_out_samples(mSwr, frame->nb_samples);
+  mResampled.resize(std::max(maxFrames, 0) * kChannelCount);
+  auto *output = reinterpret_cast<uint8_t *>(mResampled.data());
+  int frames = swr_convert(mSwr, &output, maxFrames,
+						   const_cast<const uint8_t **>(frame->extended_data), frame->nb_samples);
+  if (frames <= 0) {
+	return;
+  }
+  mPending.insert(mPending.end(), mResampled.begin(), mResampled.begin() + frames * kChannelCount);
+
+  // Drop the frames before the first chunk boundary, their chunk is incomplete
+  int64_t pendingFrames = static_cast<int64_t>(mPending.size() / kChannelCount);
+  int64_t boundary = mPendingPosition <= 0 ? 0 : (mPendingPosition + mChunkFrames - 1) / mChunkFrames * mChunkFrames;
+  int64_t drop = std::min(boundary - mPendingPosition, pendingFrames);
+  if (drop > 0) {
+	mPending.erase(mPending.begin(), mPending.begin() + drop * kChannelCount);
+	mPendingPosition += drop;
+	pendingFrames -= drop;
+  }
+
+  int64_t offset = 0;
+  while (pendingFrames - offset >= mChunkFrames) {
+	int64_t chunkIndex = (mPendingPosition + offset) / mChunkFrames;
+	if (!mCache.contains(chunkIndex)) {
+	  auto begin = mPending.begin() + offset * kChannelCount;
+	  mCache.put(chunkIndex, std::make_shared<const GrainCache::Chunk>(begin, begin + mChunkFrames * kChannelCount));
+	}
+	offset += mChunkFrames;
+  }
+  if (offset > 0) {
+	mPending.erase(mPending.begin(), mPending.begin() + offset * kChannelCount);
+	mPendingPosition += offset;
+  }
+}
+
+/**
+ * Cache the last incomplete chunk at the end of file, padded with silence.
+ * */
+void Scrubber::flushPending() {
+  if (mPending.empty() || mPendingPosition < 0 || mPendingPosition % mChunkFrames != 0) {
+	return;
+  }
+  auto chunk = std::make_shared<GrainCache::Chunk>(mPending);
+  chunk->resize(mChunkFrames * kChannelCount, 0.0f);
+  mCache.put(mPendingPosition / mChunkFrames, chunk);
+  mPending.clear();
+}
+
+/**
+ * Build a grain from cached chunks and hand it to the audio callback.
+ *
+ * @param index first chunk of the grain
+ * @param reverse true to play the grain backward
+ * */
+void Scrubber::publishGrain(int64_t index, bool reverse) {
+  // There is always a free buffer: at most one is published and two are played
+  uint32_t held = mHeldBuffers.load(std::memory_order_acquire);
+  int buffer = 0;
+  while (held & (1u << buffer)) {
+	buffer++;
+  }
+
+  float *grain = mGrains[buffer].data();
+  for (int32_t i = 0; i < kScrubGrainChunks; i++) {
+	float *dest = grain + i * mChunkFrames * kChannelCount;
+	auto chunk = mCache.get(index + i);
+	if (chunk != nullptr) {
+	  memcpy(dest, chunk->data(), mChunkFrames * kChannelCount * sizeof(float));
+	} else {
+	  // Past the end of file
+	  memset(dest, 0, mChunkFrames * kChannelCount * sizeof(float));
+	}
+  }
+  if (reverse) {
+	for (int32_t i = 0, j = mGrainFrames - 1; i < j; i++, j--) {
+	  std::swap(grain[i * 2], grain[j * 2]);
+	  std::swap(grain[i * 2 + 1], grain[j * 2 + 1]);
+	}
+  }
+  for (int32_t i = 0; i < mGrainFrames; i++) {
+	grain[i * 2] *= mWindow[i];
+	grain[i * 2 + 1] *= mWindow[i];
+  }
+
+  mHeldBuffers.fetch_or(1u << buffer, std::memory_order_acq_rel);
+  // A grain the reader didn't take yet is replaced
+  int previous = mPublished.exchange(buffer, std::memory_order_acq_rel);
+  if (previous >= 0) {
+	releaseBuffer(previous);
+  }
+}
+
+/**
+ * Interrupt callback of the scrub context, stops blocking reads on stop.
+ *
+ * @param opaque scrubber
+ * @return 1 to interrupt
+ * */
+int Scrubber::interrupt(void *opaque) {
+  return static_cast<Scrubber *>(opaque)->mStop ? 1 : 0;
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_SCRUBBER
+#define MEDIA_SCRUBBER
+
+#include <atomic>
+#include <string>
+#include <thread>
+#include <vector>
+#include <stdint.h>
+
+extern "C" {
+#include <libavformat/avformat.h>
+#include <libavcodec/avcodec.h>
+#include <libswresample/swresample.h>
+}
+
+#include "scrub/GrainCache.h"
+#include "sync/WakeupSignal.h"
+
+/**
+ * Audible scrubbing: plays a short windowed grain of audio at each position
+ * of the cursor, forward or backward following the drag direction.
+ *
+ * Chunks are decoded on a thread with its own demuxer and decoder, so the
+ * playback state is left untouched, and kept in an LRU cache. Dragging back
+ * and forth over the same region is served from the cache without decoding.
+ * The grains are handed to the audio callback without lock.
+ * */
+class Scrubber {
+ public:
+  ~Scrubber();
+
+  /**
+   * Start the scrub thread on a file.
+   *
+   * @param url file to decode
+   * @param streamIndex audio stream index
+   * @param outputSampleRate sample rate of the grains
+   * @param positionUs initial cursor position in microseconds
+   * */
+  void start(const std::string &url, int streamIndex, int32_t outputSampleRate, int64_t positionUs);
+
+  /**
+   * Stop the scrub thread, the cache is kept for the next start on the same file.
+   * */
+  void stop();
+
+  /**
+   * @return true while started
+   * */
+  bool isActive() const {
+	return mActive.load(std::memory_order_acquire);
+  }
+
+  /**
+   * Move the cursor, a grain is played when it enters a new chunk. Doesn't block.
+   *
+   * @param positionUs cursor position in microseconds
+   * */
+  void scrubTo(int64_t positionUs);
+
+  /**
+   * @return last cursor position in microseconds
+   * */
+  int64_t getPositionUs() const {
+	return mTargetUs.load(std::memory_order_acquire);
+  }
+
+  /**
+   * Mix the grains being played. Lock-free, called from the audio callback.
+   *
+   * @param destination interleaved output frames
+   * @param numFrames number of frames to write
+   * @param leftVolume left volume
+   * @param rightVolume right volume
+   * @return number of frames written
+   * */
+  int32_t readFrames(float *destination, int32_t numFrames, float leftVolume, float rightVolume);
+
+  /**
+   * @return number of grains served from the cache
+   * */
+  uint64_t getCacheHits() const {
+	return mCacheHits.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * @return number of grains that needed decoding
+   * */
+  uint64_t getCacheMisses() const {
+	return mCacheMisses.load(std::memory_order_relaxed);
+  }
+
+ private:
+  // Grain buffers: one published, two played by the reader, one written
+  static constexpr int kGrainBuffers = 4;
+  static constexpr int kVoices = 2;
+
+  struct Voice {
+	int buffer = -1;
+	int32_t position = 0;
+  };
+
+  void scrubLoop(std::string url, int streamIndex);
+  bool open(const std::string &url, int streamIndex);
+  void close();
+  int64_t getChunkIndex(int64_t positionUs);
+  void decodeChunks(int64_t index);
+  void cacheFrame(AVFrame *frame);
+  void flushPending();
+  void publishGrain(int64_t index, bool reverse);
+  void releaseBuffer(int buffer);
+  static int interrupt(void *opaque);
+
+  std::thread mThread;
+  std::atomic<bool> mActive{false};
+  std::atomic<bool> mStop{false};
+  std::atomic<int64_t> mTargetUs{0};
+  WakeupSignal mWakeup;
+
+  // Scrub thread
+  AVFormatContext *mFmt_ctx = nullptr;
+  AVCodecContext *mCodec_ctx = nullptr;
+  SwrContext *mSwr = nullptr;
+  AVStream *mStream = nullptr;
+  int32_t mOutputSampleRate = 0;
+  int32_t mChunkFrames = 0;
+  std::vector<float> mPending; // Decoded frames not yet cut into chunks
+  int64_t mPendingPosition = AV_NOPTS_VALUE; // Position of the first pending frame, in output frames
+  std::vector<float> mResampled;
+  std::vector<float> mWindow;
+
+  GrainCache mCache;
+  std::string mCacheUrl;
+  std::atomic<uint64_t> mCacheHits{0};
+  std::atomic<uint64_t> mCacheMisses{0};
+
+  // Shared with the audio callback
+  std::vector<float> mGrains[kGrainBuffers];
+  int32_t mGrainFrames = 0;
+  std::atomic<int> mPublished{-1};
+  std::atomic<uint32_t> mHeldBuffers{0}; // Bit set for the published and played buffers
+
+  // Audio callback
+  Voice mVoices[kVoices];
+};
+
+#endif //MEDIA_SCRUBBER
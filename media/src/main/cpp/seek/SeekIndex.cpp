@@ -0,0 +1,230 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <algorithm>
+#include <cstdio>
+#include <sys/stat.h>
+
+#include "SeekIndex.h"
+
+// Sidecar file layout, native endianness:
+// magic, version, key, entry count, complete flag, then the entries
+constexpr uint32_t kSeekIndexMagic = 0x58444953; // "SIDX"
+constexpr uint32_t kSeekIndexVersion = 1;
+
+struct SeekIndexHeader {
+  uint32_t magic;
+  uint32_t version;
+  uint64_t key;
+  uint32_t count;
+  uint32_t complete;
+};
+
+/**
+ * Set the minimum distance between two entries.
+ *
+ * @param interval distance in stream time base
+ * */
+void SeekIndex::setInterval(int64_t interval) {
+  std::lock_guard<std::mutex> lock(mMutex);
+  mInterval = interval;
+}
+
+/**
+ * Remove every entry.
+ * */
+void SeekIndex::clear() {
+  std::lock_guard<std::mutex> lock(mMutex);
+  mEntries.clear();
+  mNextPts.store(INT64_MIN, std::memory_order_relaxed);
+  mComplete = false;
+  mDirty = false;
+}
+
+/**
+ * Add a keyframe point, ignored if it is closer than the interval to the last entry.
+ * Lock-free when the point is ignored.
+ *
+ * @param pts presentation timestamp of the keyframe
+ * @param pos byte offset of the keyframe
+ * */
+void SeekIndex::record(int64_t pts, int64_t pos) {
+  if (pts < mNextPts.load(std::memory_order_relaxed)) {
+	return;
+  }
+
+  std::lock_guard<std::mutex> lock(mMutex);
+  if (mComplete || (!mEntries.empty() && pts <= mEntries.back().pts)) {
+	return;
+  }
+  mEntries.push_back({pts, pos});
+  mNextPts.store(pts + mInterval, std::memory_order_relaxed);
+  mDirty = true;
+}
+
+/**
+ * Replace the entries by the ones of another index, which is then empty.
+ *
+ * @param other index to take the entries from
+ * */
+void SeekIndex::replace(SeekIndex &other) {
+  std::scoped_lock lock(mMutex, other.mMutex);
+  mEntries = std::move(other.mEntries);
+  mComplete = other.mComplete;
+  mNextPts.store(mEntries.empty() ? INT64_MIN : mEntries.back().pts + mInterval, std::memory_order_relaxed);
+  mDirty = true;
+
+  other.mEntries.clear();
+  other.mNextPts.store(INT64_MIN, std::memory_order_relaxed);
+  other.mComplete = false;
+  other.mDirty = false;
+}
+
+/**
+ * Find the last keyframe point at or before pts.
+ *
+ * @param pts presentation timestamp
+ * @param entry receive the point
+ * @return false if there is no point before pts
+ * */
+bool SeekIndex::lookup(int64_t pts, Entry &entry) {
+  std::lock_guard<std::mutex> lock(mMutex);
+  auto it = std::upper_bound(mEntries.begin(), mEntries.end(), pts,
+							 [](int64_t value, const Entry &e) { return value < e.pts; });
+  if (it == mEntries.begin()) {
+	return false;
+  }
+  entry = *(it - 1);
+  return true;
+}
+
+void SeekIndex::setComplete(bool complete) {
+  std::lock_guard<std::mutex> lock(mMutex);
+  mComplete = complete;
+}
+
+bool SeekIndex::isComplete() {
+  std::lock_guard<std::mutex> lock(mMutex);
+  return mComplete;
+}
+
+size_t SeekIndex::size() {
+  std::lock_guard<std::mutex> lock(mMutex);
+  return mEntries.size();
+}
+
+/**
+ * Load the index from a sidecar file.
+ *
+ * @param path sidecar file path
+ * @param key identity of the indexed file, see getFileKey()
+ * @return false if the file doesn't exist or belongs to another file
+ * */
+bool SeekIndex::load(const std::string &path, uint64_t key) {
+  FILE *file = fopen(path.c_str(), "rb");
+  if (file == nullptr) {
+	return false;
+  }
+
+  SeekIndexHeader header{};
+  bool valid = fread(&header, sizeof(header), 1, file) == 1
+	  && header.magic == kSeekIndexMagic
+	  && header.version == kSeekIndexVersion
+	  && header.key == key;
+
+  std::vector<Entry> entries;
+  if (valid) {
+	entries.resize(header.count);
+	valid = fread(entries.data(), sizeof(Entry), header.count, file) == header.count;
+  }
+  fclose(file);
+
+  if (!valid) {
+	return false;
+  }
+
+  std::lock_guard<std::mutex> lock(mMutex);
+  mEntries = std::move(entries);
+  mComplete = header.complete != 0;
+  mNextPts.store(mEntries.empty() ? INT64_MIN : mEntries.back().pts + mInterval, std::memory_order_relaxed);
+  mDirty = false;
+  return true;
+}
+
+/**
+ * Save the index to a sidecar file, if it changed since it was loaded.
+ * The file is written next to the sidecar then renamed, a reader never sees a partial index.
+ *
+ * @param path sidecar file path
+ * @param key identity of the indexed file, see getFileKey()
+ * @return false on error
+ * */
+bool SeekIndex::save(const std::string &path, uint64_t key) {
+  std::lock_guard<std::mutex> lock(mMutex);
+  if (!mDirty || mEntries.empty()) {
+	return true;
+  }
+
+  std::string tmpPath = path + ".tmp";
+  FILE *file = fopen(tmpPath.c_str(), "wb");
+  if (file == nullptr) {
+	return false;
+  }
+
+  SeekIndexHeader header{kSeekIndexMagic,
+						 kSeekIndexVersion,
+						 key,
+						 static_cast<uint32_t>(mEntries.size()),
+						 mComplete ? 1u : 0u};
+  bool written = fwrite(&header, sizeof(header), 1, file) == 1
+	  && fwrite(mEntries.data(), sizeof(Entry), mEntries.size(), file) == mEntries.size();
+  written = (fclose(file) == 0) && written;
+
+  if (!written || rename(tmpPath.c_str(), path.c_str()) != 0) {
+	remove(tmpPath.c_str());
+	return false;
+  }
+  mDirty = false;
+  return true;
+}
+
+/**
+ * Get the identity of a local file from its path, size and modification time.
+ * It is a FNV-1a hash, stable between runs.
+ *
+ * @param path file path
+ * @return identity, 0 if it isn't a local file
+ * */
+uint64_t SeekIndex::getFileKey(const std::string &path) {
+  struct stat info{};
+  if (path.empty() || stat(path.c_str(), &info) != 0 || !S_ISREG(info.st_mode)) {
+	return 0;
+  }
+
+  uint64_t hash = 0xcbf29ce484222325ULL;
+  auto update = [&hash](const void *data, size_t size) {
+	auto *bytes = static_cast<const uint8_t *>(data);
+	for (size_t i = 0; i < size; i++) {
+	  hash = (hash ^ bytes[i]) * 0x100000001b3ULL;
+	}
+  };
+  int64_t size = info.st_size;
+  int64_t modified = info.st_mtime;
+  update(path.data(), path.size());
+  update(&size, sizeof(size));
+  update(&modified, sizeof(modified));
+  return hash != 0 ? hash : 1;
+}
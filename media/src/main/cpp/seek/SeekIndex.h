@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_SEEK_INDEX
+#define MEDIA_SEEK_INDEX
+
+#include <atomic>
+#include <mutex>
+#include <string>
+#include <vector>
+#include <stdint.h>
+
+/**
+ * Sorted table of (pts, byte offset) keyframe points of one stream.
+ *
+ * It is filled during playback, or at once by a background scan, and
+ * persisted to a sidecar file so that later plays of the same file can seek
+ * by byte offset in O(log n), without scanning formats that have no index.
+ * */
+class SeekIndex {
+ public:
+  struct Entry {
+	int64_t pts; // In stream time base
+	int64_t pos; // Byte offset in the file
+  };
+
+  /**
+   * Set the minimum distance between two entries.
+   *
+   * @param interval distance in stream time base
+   * */
+  void setInterval(int64_t interval);
+
+  /**
+   * Remove every entry.
+   * */
+  void clear();
+
+  /**
+   * Add a keyframe point, ignored if it is closer than the interval to the last entry.
+   * Lock-free when the point is ignored.
+   *
+   * @param pts presentation timestamp of the keyframe
+   * @param pos byte offset of the keyframe
+   * */
+  void record(int64_t pts, int64_t pos);
+
+  /**
+   * Replace the entries by the ones of another index, which is then empty.
+   *
+   * @param other index to take the entries from
+   * */
+  void replace(SeekIndex &other);
+
+  /**
+   * Find the last keyframe point at or before pts.
+   *
+   * @param pts presentation timestamp
+   * @param entry receive the point
+   * @return false if there is no point before pts
+   * */
+  bool lookup(int64_t pts, Entry &entry);
+
+  /**
+   * Mark the index as covering the whole file.
+   *
+   * @param complete true if the whole file was scanned
+   * */
+  void setComplete(bool complete);
+
+  bool isComplete();
+
+  size_t size();
+
+  /**
+   * Load the index from a sidecar file.
+   *
+   * @param path sidecar file path
+   * @param key identity of the indexed file, see getFileKey()
+   * @return false if the file doesn't exist or belongs to another file
+   * */
+  bool load(const std::string &path, uint64_t key);
+
+  /**
+   * Save the index to a sidecar file, if it changed since it was loaded.
+   *
+   * @param path sidecar file path
+   * @param key identity of the indexed file, see getFileKey()
+   * @return false on error
+   * */
+  bool save(const std::string &path, uint64_t key);
+
+  /**
+   * Get the identity of a local file from its path, size and modification time.
+   *
+   * @param path file path
+   * @return identity, 0 if it isn't a local file
+   * */
+  static uint64_t getFileKey(const std::string &path);
+
+ private:
+  std::mutex mMutex;
+  std::vector<Entry> mEntries;
+  int64_t mInterval = 0;
+  std::atomic<int64_t> mNextPts{INT64_MIN}; // Next pts accepted by record()
+  bool mComplete = false;
+  bool mDirty = false;
+};
+
+#endif //MEDIA_SEEK_INDEX
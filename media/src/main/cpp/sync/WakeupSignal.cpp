@@ -0,0 +1,58 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <linux/futex.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+
+#include "WakeupSignal.h"
+
+static_assert(sizeof(std::atomic<int32_t>) == sizeof(int32_t), "futex word must be a plain int");
+
+static long futex(std::atomic<int32_t> *address, int op, int32_t value) {
+  return syscall(SYS_futex, reinterpret_cast<int32_t *>(address), op, value, nullptr, nullptr, 0);
+}
+
+/**
+ * Sleep until signal() is called, return at once if it was already called
+ * since the last wait. Waiter side.
+ * */
+void WakeupSignal::wait() {
+  if (mState.exchange(kWaiting, std::memory_order_acq_rel) == kSignaled) {
+	mState.store(kIdle, std::memory_order_release);
+	return;
+  }
+
+  // Returns immediately if signal() changed the state in the meantime
+  long ret = futex(&mState, FUTEX_WAIT_PRIVATE, kWaiting);
+  if (ret == 0) {
+	mWakeupCount.fetch_add(1, std::memory_order_relaxed);
+  }
+  mState.store(kIdle, std::memory_order_release);
+}
+
+/**
+ * Wake up the waiter. Lock-free, it only does a syscall if the waiter sleeps.
+ * */
+void WakeupSignal::signal() {
+  if (mState.load(std::memory_order_relaxed) == kSignaled) {
+	return;
+  }
+  if (mState.exchange(kSignaled, std::memory_order_acq_rel) == kWaiting) {
+	futex(&mState, FUTEX_WAKE_PRIVATE, 1);
+	mFutexWakeCount.fetch_add(1, std::memory_order_relaxed);
+  }
+}
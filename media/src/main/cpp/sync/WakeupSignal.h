@@ -0,0 +1,71 @@
+/*
+ * Copyright 2022 A2va
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_WAKEUP_SIGNAL
+#define MEDIA_WAKEUP_SIGNAL
+
+#include <atomic>
+#include <stdint.h>
+
+/**
+ * One waiter, one signaler wakeup without lock.
+ *
+ * The state is a single futex word. signal() only enters the kernel when the
+ * waiter is actually sleeping, so it can be called from the audio callback.
+ * Like a condition variable, the waiter must check its condition in a loop.
+ * */
+class WakeupSignal {
+ public:
+  /**
+   * Sleep until signal() is called, return at once if it was already called
+   * since the last wait. Waiter side.
+   * */
+  void wait();
+
+  /**
+   * Wake up the waiter. Lock-free, it only does a syscall if the waiter sleeps.
+   * */
+  void signal();
+
+  /**
+   * Get the number of times the waiter was woken up by the kernel.
+   *
+   * @return wakeup count
+   * */
+  uint64_t getWakeupCount() const {
+	return mWakeupCount.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * Get the number of futex wake syscalls done by signal().
+   *
+   * @return syscall count
+   * */
+  uint64_t getFutexWakeCount() const {
+	return mFutexWakeCount.load(std::memory_order_relaxed);
+  }
+
+ private:
+  static constexpr int32_t kIdle = 0;
+  static constexpr int32_t kSignaled = 1;
+  static constexpr int32_t kWaiting = 2;
+
+  std::atomic<int32_t> mState{kIdle};
+  std::atomic<uint64_t> mWakeupCount{0};
+  std::atomic<uint64_t> mFutexWakeCount{0};
+};
+
+#endif //MEDIA_WAKEUP_SIGNAL
@@ -63,6 +63,7 @@ import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.HttpCookie;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
@@ -1186,6 +1187,236 @@ public class MediaPlayer implements IMediaPlayer
      * @throws IllegalStateException if it is called in an invalid state
      */
     public native void prepareAsync() throws IllegalStateException;
+    /**
+     * Reads the data source on a dedicated thread. The compressed packets are
+     * passed to the decode thread through a bounded queue, so a slow read from
+     * the storage or the network doesn't stall the decoding.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param enabled true to read the data source on a dedicated thread
+     * @throws IllegalStateException if it is called after the player is prepared
+     */
+    public native void setDemuxThreadEnabled(boolean enabled) throws IllegalStateException;
+    /**
+     * Mixes this player into one audio stream shared by every player with the shared
+     * output enabled, instead of opening its own stream. Apps playing many sounds at
+     * once, like a game UI, then use a single stream, callback thread and buffer.
+     * The stream is opened by the first player attached to it and closed when the
+     * last one is reset or released; players joining or leaving don't reopen it.
+     * <p>
+     * The volume set with {@link #setVolume(float, float)} is the gain of the player
+     * in the mix. With the shared output, {@link #setPreferredDevice},
+     * {@link #setAudioSessionId(int)} and {@link #setAudioStreamType(int)} have no
+     * effect, and the next player set with {@link #setNextMediaPlayer(MediaPlayer)}
+     * is started on completion without a gapless transition.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param enabled true to mix the player into the shared output stream
+     * @throws IllegalStateException if it is called after the player is prepared
+     * @see MetricsConstants#SHARED_OUTPUT_SOURCES
+     */
+    public native void setSharedOutputEnabled(boolean enabled) throws IllegalStateException;
+    /**
+     * Buffers compressed packets ahead of the playback position, up to the
+     * given duration and size, and keeps only a small amount of decoded audio.
+     * This lets network and removable storage sources ride out stalls with far
+     * less memory than buffering decoded audio. Implies
+     * {@link #setDemuxThreadEnabled(boolean)}.
+     *
+     * The buffer levels are reported by {@link #getMetrics()}, see
+     * {@link MetricsConstants#READ_AHEAD_MS}, {@link MetricsConstants#READ_AHEAD_BYTES}
+     * and {@link MetricsConstants#BUFFERED_MS}.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param durationMs maximum duration of read-ahead in milliseconds, 0 for no limit
+     * @param maxBytes maximum size of read-ahead in bytes, 0 for no limit
+     * @throws IllegalArgumentException if a limit is negative
+     * @throws IllegalStateException if it is called after the player is prepared
+     */
+    public void setReadAheadBudget(long durationMs, long maxBytes) throws IllegalStateException {
+        if (durationMs < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Read-ahead budget must not be negative");
+        }
+        _setReadAheadBudget(durationMs, maxBytes);
+    }
+    private native void _setReadAheadBudget(long durationMs, long maxBytes);
+    /**
+     * Sets the buffering profile of the player, to trade memory and power
+     * against latency. A short sound effect player wants a small output
+     * latency and small callbacks, a long-form music player can use a large
+     * decoded audio buffer.
+     *
+     * The resulting sizes are reported by {@link #getMetrics()}, see
+     * {@link MetricsConstants#OUTPUT_BUFFER_MS} and {@link MetricsConstants#FIFO_SIZE_MS}.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param latencyMs target latency of the output stream in milliseconds,
+     * rounded up to a whole number of bursts, 0 for the default
+     * @param fifoSizeMs size of the decoded audio buffer in milliseconds, 0 for the default
+     * @param framesPerCallback number of frames per audio callback, 0 for the default
+     * @throws IllegalArgumentException if a value is negative
+     * @throws IllegalStateException if it is called after the player is prepared
+     */
+    public void setBufferingProfile(int latencyMs, int fifoSizeMs, int framesPerCallback)
+            throws IllegalStateException {
+        if (latencyMs < 0 || fifoSizeMs < 0 || framesPerCallback < 0) {
+            throw new IllegalArgumentException("Buffering profile values must not be negative");
+        }
+        _setBufferingProfile(latencyMs, fifoSizeMs, framesPerCallback);
+    }
+    private native void _setBufferingProfile(int latencyMs, int fifoSizeMs, int framesPerCallback);
+    /**
+     * The output stream is shared with other apps and optimized for power, the default.
+     *
+     * @see #setPerformanceProfile(int)
+     */
+    public static final int PERFORMANCE_PROFILE_POWER_SAVING = 0;
+    /**
+     * The output stream is optimized for latency, for interactive sound.
+     *
+     * @see #setPerformanceProfile(int)
+     */
+    public static final int PERFORMANCE_PROFILE_LOW_LATENCY = 1;
+    /** @hide */
+    @IntDef(
+            value = {
+                    PERFORMANCE_PROFILE_POWER_SAVING,
+                    PERFORMANCE_PROFILE_LOW_LATENCY,
+            })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface PerformanceProfile {}
+    /**
+     * Sets the performance profile of the output stream.
+     * <p>
+     * With {@link #PERFORMANCE_PROFILE_LOW_LATENCY}, the player asks for an exclusive
+     * low latency stream, with callbacks of one burst and a buffer of two bursts.
+     * If the device can't open an exclusive stream, a shared one is used instead.
+     * The decoded audio buffer is short, 100 ms unless set by
+     * {@link #setBufferingProfile(int, int, int)}, and it is filled before the playback
+     * starts so the first callbacks don't glitch.
+     * <p>
+     * The modes actually obtained and the output latency are reported by {@link #getMetrics()},
+     * see {@link MetricsConstants#OUTPUT_LATENCY_MS}, {@link MetricsConstants#OUTPUT_LOW_LATENCY}
+     * and {@link MetricsConstants#OUTPUT_EXCLUSIVE}. The profile is not used with
+     * {@link #setSharedOutputEnabled(boolean)}.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param profile {@link #PERFORMANCE_PROFILE_POWER_SAVING} or {@link #PERFORMANCE_PROFILE_LOW_LATENCY}
+     * @throws IllegalArgumentException if the profile is unknown
+     * @throws IllegalStateException if it is called after the player is prepared
+     */
+    public void setPerformanceProfile(@PerformanceProfile int profile) throws IllegalStateException {
+        if (profile != PERFORMANCE_PROFILE_POWER_SAVING && profile != PERFORMANCE_PROFILE_LOW_LATENCY) {
+            throw new IllegalArgumentException("Illegal performance profile: " + profile);
+        }
+        _setPerformanceProfile(profile);
+    }
+    private native void _setPerformanceProfile(int profile);
+    /**
+     * Tunes the buffer size of the output stream to the lowest one that plays without
+     * glitches on this device. The buffer starts at one burst and grows by one burst each
+     * time the stream reports an underrun. When shrinking is enabled, the buffer is also
+     * reduced by one burst after 30 seconds without underrun; if the smaller buffer
+     * glitches, the next attempt waits twice as long.
+     * <p>
+     * The initial size replaces the latency set with {@link #setBufferingProfile(int, int, int)}.
+     * The tuning needs AAudio, the underruns are not reported by OpenSL ES. The current size,
+     * the underruns and the tuning steps are reported by {@link #getMetrics()}, see
+     * {@link MetricsConstants#OUTPUT_BUFFER_MS}, {@link MetricsConstants#OUTPUT_XRUNS},
+     * {@link MetricsConstants#OUTPUT_BUFFER_GROWS} and {@link MetricsConstants#OUTPUT_BUFFER_SHRINKS}.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param enabled true to tune the buffer size
+     * @param shrinkEnabled true to also shrink the buffer after a glitch-free period
+     * @throws IllegalStateException if it is called after the player is prepared
+     */
+    public native void setBufferSizeTuning(boolean enabled, boolean shrinkEnabled) throws IllegalStateException;
+    /**
+     * Keeps the given duration of played audio in memory, so that short backward
+     * skips, like the "rewind" button of a podcast or audiobook player, are
+     * served at once without reading the data source again. Forward skips inside
+     * the audio already decoded ahead of the playback are always served this way.
+     * {@link OnSeekCompleteListener} is called as for any other seek.
+     *
+     * The memory used is about 8 bytes per frame at the output sample rate,
+     * around 11 MB for 30 seconds at 48 kHz.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param durationMs duration of played audio to keep in milliseconds, 0 to keep none
+     * @throws IllegalArgumentException if the duration is negative
+     * @throws IllegalStateException if it is called after the player is prepared
+     * @see MetricsConstants#INSTANT_SEEKS
+     */
+    public void setSeekHistoryDuration(int durationMs) throws IllegalStateException {
+        if (durationMs < 0) {
+            throw new IllegalArgumentException("Seek history duration must not be negative");
+        }
+        _setSeekHistoryDuration(durationMs);
+    }
+    private native void _setSeekHistoryDuration(int durationMs);
+    /**
+     * Sets the directory where seek indexes are kept. Seeking in VBR MP3 files
+     * without a table of contents, raw AAC or long Ogg files is slow or
+     * inaccurate, the player records the position of keyframes while playing
+     * and saves them next to other indexes in this directory. Later plays of
+     * the same local file then seek directly to the right byte offset.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param dir cache directory, typically {@link android.content.Context#getCacheDir()},
+     * null to not persist indexes
+     * @throws IllegalStateException if it is called after the player is prepared
+     * @see #buildSeekIndex()
+     */
+    public void setSeekIndexCacheDir(@Nullable File dir) throws IllegalStateException {
+        _setSeekIndexCacheDir(dir != null ? dir.getAbsolutePath() : null);
+    }
+    private native void _setSeekIndexCacheDir(String path);
+    /**
+     * Scans the whole data source on a background thread to build its seek
+     * index at once, instead of waiting for the playback to go through the file.
+     * The index is saved in the directory set with {@link #setSeekIndexCacheDir(File)}.
+     *
+     * The progress is reported by {@link MetricsConstants#SEEK_INDEX_POINTS} and
+     * {@link MetricsConstants#SEEK_INDEX_COMPLETE}.
+     *
+     * @throws IllegalStateException if it is called before the player is prepared
+     */
+    public native void buildSeekIndex() throws IllegalStateException;
+    /**
+     * Decodes in bursts to let the CPU idle between them, for long background
+     * playback. The decoder fills its buffer up to the high watermark at once,
+     * then sleeps until the buffer drops below the low watermark. The decoded
+     * audio buffer is enlarged to hold the high watermark.
+     *
+     * The effect can be checked with {@link MetricsConstants#DECODE_WAKEUP_RATE}.
+     *
+     * Must be called before {@link #prepare()}.
+     *
+     * @param lowWatermarkMs the decoder wakes up when the buffer drops below it, in milliseconds
+     * @param highWatermarkMs the decoder fills the buffer up to it, in milliseconds,
+     * 0 to disable burst decoding
+     * @throws IllegalArgumentException if a watermark is negative or the low watermark
+     * is above the high one
+     * @throws IllegalStateException if it is called after the player is prepared
+     */
+    public void setBurstDecoding(int lowWatermarkMs, int highWatermarkMs) throws IllegalStateException {
+        if (lowWatermarkMs < 0 || highWatermarkMs < 0) {
+            throw new IllegalArgumentException("Watermarks must not be negative");
+        }
+        if (highWatermarkMs > 0 && lowWatermarkMs >= highWatermarkMs) {
+            throw new IllegalArgumentException("Low watermark must be below the high watermark");
+        }
+        _setBurstDecoding(lowWatermarkMs, highWatermarkMs);
+    }
+    private native void _setBurstDecoding(int lowWatermarkMs, int highWatermarkMs);
     /**
      * Starts or resumes playback. If playback had previously been paused,
      * playback will continue from where it was paused. If playback had
@@ -1245,6 +1476,8 @@ public class MediaPlayer implements IMediaPlayer
      * the output from this MediaPlayer.
      * @param deviceInfo The {@link AudioDeviceInfo} specifying the audio sink or source.
      *  If deviceInfo is null, default routing is restored.
+     * The device can be changed during playback: only the audio stream is reopened on the
+     * new device, playback continues from the audio already decoded.
      * @return true if succesful, false if the specified {@link AudioDeviceInfo} is non-null and
      * does not correspond to a valid audio device.
      */
@@ -1410,6 +1643,33 @@ public class MediaPlayer implements IMediaPlayer
         return bundle;
     }
     private native PersistableBundle native_getMetrics();
+    /**
+     * Capture the audio written to the output stream from now on, including
+     * after the stream is handed over to the next player set with
+     * {@link #setNextMediaPlayer(MediaPlayer)}. Meant for tests.
+     *
+     * @param frames number of stereo frames to capture, 0 to stop capturing
+     * @throws IllegalArgumentException if frames is negative
+     * {@hide}
+     */
+    public void setOutputCapture(int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("Capture size must not be negative");
+        }
+        _setOutputCapture(frames);
+    }
+    private native void _setOutputCapture(int frames);
+    /**
+     * Returns the audio captured since {@link #setOutputCapture(int)}, at the
+     * output sample rate, see {@link MetricsConstants#OUTPUT_SAMPLE_RATE}.
+     *
+     * @return interleaved stereo samples
+     * {@hide}
+     */
+    public float[] getCapturedOutput() {
+        return _getCapturedOutput();
+    }
+    private native float[] _getCapturedOutput();
     /**
      * Checks whether the MediaPlayer is playing.
      *
@@ -1602,6 +1862,12 @@ public class MediaPlayer implements IMediaPlayer
      * is kept. When current seekTo is completed, the queued request will be processed if
      * that request is different from just-finished seekTo operation, i.e., the requested
      * position or mode is different.
+     * <p>
+     * This call doesn't block, the seek is done by the decoding thread. A burst of
+     * requests, like the ones of a seek bar being dragged, is coalesced: a new request
+     * interrupts the seek in progress and only the last one is reported to
+     * {@link OnSeekCompleteListener}. The completion is reported in every state,
+     * including when prepared, paused or after the playback completed.
      *
      * @param msec the offset in milliseconds from the start to seek to.
      * When seeking to the given time position, there is no guarantee that the data source
@@ -1619,6 +1885,11 @@ public class MediaPlayer implements IMediaPlayer
      * or may not be a sync frame but is closest to or the same as msec.
      * {@link #SEEK_CLOSEST} often has larger performance overhead compared
      * to the other options if there is no sync frame located at msec.
+     * With the sync modes the playback starts at the sync point found by the
+     * demuxer, the samples up to msec are not decoded and dropped, which makes
+     * them the cheaper choice for scrubbing. For most audio formats every packet
+     * is a sync point, the playback then lands at most one packet away from msec.
+     * A target inside the audio already decoded is always reached exactly.
      * @throws IllegalStateException if the internal player engine has not been
      * initialized
      * @throws IllegalArgumentException if the mode is invalid.
@@ -1628,13 +1899,8 @@ public class MediaPlayer implements IMediaPlayer
             final String msg = "Illegal seek mode: " + mode;
             throw new IllegalArgumentException(msg);
         }
-        // TODO: pass long to native, instead of truncating here.
-        if (msec > Integer.MAX_VALUE) {
-            Log.w(TAG, "seekTo offset " + msec + " is too large, cap to " + Integer.MAX_VALUE);
-            msec = Integer.MAX_VALUE;
-        } else if (msec < Integer.MIN_VALUE) {
-            Log.w(TAG, "seekTo offset " + msec + " is too small, cap to " + Integer.MIN_VALUE);
-            msec = Integer.MIN_VALUE;
+        if (msec < 0) {
+            msec = 0;
         }
         _seekTo(msec, mode);
     }
@@ -1649,6 +1915,72 @@ public class MediaPlayer implements IMediaPlayer
     public void seekTo(int msec) throws IllegalStateException {
         seekTo(msec, SEEK_PREVIOUS_SYNC /* mode */);
     }
+    /**
+     * Moves the media to specified time position like {@link #seekTo(long, int)},
+     * and calls the given listener with the position where the playback landed.
+     * <p>
+     * This call returns immediately. The listener runs on the same thread as
+     * {@link OnSeekCompleteListener}, once the first audio at the target is
+     * decoded, so a seek bar can be updated without ever blocking the main thread.
+     * When seeks are coalesced, the listeners of the superseded seeks are called
+     * with the position of the last one. The listeners still pending are dropped
+     * by {@link #reset()} and {@link #release()}.
+     *
+     * @param msec the offset in milliseconds from the start to seek to
+     * @param mode the mode indicating where exactly to seek to
+     * @param listener the callback called when the seek is done
+     * @throws IllegalStateException if the internal player engine has not been
+     * initialized
+     * @throws IllegalArgumentException if the mode is invalid.
+     */
+    public void seekTo(long msec, @SeekMode int mode, @NonNull OnSeekResultListener listener) {
+        Preconditions.checkNotNull(listener);
+        synchronized (mPendingSeekListeners) {
+            mPendingSeekListeners.add(listener);
+        }
+        try {
+            seekTo(msec, mode);
+        } catch (RuntimeException e) {
+            synchronized (mPendingSeekListeners) {
+                mPendingSeekListeners.remove(listener);
+            }
+            throw e;
+        }
+    }
+    /**
+     * Enters or leaves the scrub mode, for audible scrubbing in editor-like screens.
+     * <p>
+     * In scrub mode, the playback is suspended and each {@link #scrubTo(long)} call plays
+     * a short grain of audio at the cursor, forward or backward following the drag
+     * direction, even if the player is paused. The audio is decoded on a separate
+     * thread and cached by chunks, dragging back and forth over the same region
+     * costs almost no decoding. {@link #getCurrentPosition()} returns the cursor position.
+     * <p>
+     * Leaving the scrub mode seeks to the last cursor position, with the usual
+     * {@link OnSeekCompleteListener} notification, and resumes the playback if the
+     * player was started.
+     *
+     * @param enabled true to enter the scrub mode, false to leave it
+     * @throws IllegalStateException if the player is not prepared
+     * @see MetricsConstants#SCRUB_CACHE_HITS
+     */
+    public native void setScrubbing(boolean enabled) throws IllegalStateException;
+    /**
+     * Moves the scrub cursor and plays the audio under it. This call doesn't block,
+     * it can be called for every move event of a drag.
+     *
+     * @param msec the cursor position in milliseconds from the start,
+     * negative values are clamped to zero
+     * @throws IllegalStateException if the player is not in scrub mode
+     * @see #setScrubbing(boolean)
+     */
+    public void scrubTo(long msec) throws IllegalStateException {
+        if (msec < 0) {
+            msec = 0;
+        }
+        _scrubTo(msec);
+    }
+    private native void _scrubTo(long msec);
     /**
      * Get current playback position as a {@link MediaTimestamp}.
      * <p>
@@ -1687,8 +2019,13 @@ public class MediaPlayer implements IMediaPlayer
     public native int getCurrentPosition();
     /**
      * Gets the duration of the file.
+     * <p>
+     * When the file has no duration header, the first value is estimated from its
+     * bitrate and {@link #MEDIA_INFO_DURATION_UPDATE} is sent once the exact duration
+     * is computed in the background. Exact durations are cached for the next plays
+     * of the same file, on disk too if {@link #setSeekIndexCacheDir(File)} is set.
      *
-     * @return the duration in milliseconds
+     * @return the duration in milliseconds, -1 if it is unknown
      */
     public native int getDuration();
     /**
@@ -1749,11 +2086,76 @@ public class MediaPlayer implements IMediaPlayer
      * next player should be started at the end of playback.
      * If the current player is looping, it will keep looping and the next
      * player will not be started.
+     * <p>
+     * When both players are prepared when this method is called and play at the
+     * same output sample rate, the transition is gapless: the next player decodes
+     * its first frames ahead of time, and they are played in the audio stream of
+     * this player right after its last frame. The encoder delay and padding of
+     * both files are trimmed. The next player then owns the stream and is
+     * notified with {@link #MEDIA_INFO_STARTED_AS_NEXT}. Otherwise the next player
+     * is started on its own stream once this one completes.
      *
      * @param next the player to start after this one completes playback.
+     * @see MetricsConstants#GAPLESS_GAP_FRAMES
+     * @see #setCrossfade(int, int)
      *
      */
     public native void setNextMediaPlayer(MediaPlayer next);
+    /**
+     * The gain of both players changes linearly during the crossfade.
+     *
+     * @see #setCrossfade(int, int)
+     */
+    public static final int CROSSFADE_CURVE_LINEAR = 0;
+    /**
+     * The total power of both players stays constant during the crossfade,
+     * the usual choice for music.
+     *
+     * @see #setCrossfade(int, int)
+     */
+    public static final int CROSSFADE_CURVE_EQUAL_POWER = 1;
+    /**
+     * The gains change slowly at both ends of the crossfade and quickly in the middle.
+     *
+     * @see #setCrossfade(int, int)
+     */
+    public static final int CROSSFADE_CURVE_S_CURVE = 2;
+    /** @hide */
+    @IntDef(
+            value = {
+                    CROSSFADE_CURVE_LINEAR,
+                    CROSSFADE_CURVE_EQUAL_POWER,
+                    CROSSFADE_CURVE_S_CURVE,
+            })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface CrossfadeCurve {}
+    /**
+     * Overlaps the end of this player with the start of the next player set with
+     * {@link #setNextMediaPlayer(MediaPlayer)}. The end of this player fades out while
+     * the next player fades in, both are mixed in the audio stream of this player.
+     * <p>
+     * The crossfade is only done for a gapless transition, see
+     * {@link #setNextMediaPlayer(MediaPlayer)}. It starts when the time left to play
+     * is below the crossfade duration, using {@link #getDuration()} until the end of
+     * the file is decoded. It is not done while looping.
+     *
+     * @param durationMs the crossfade duration in milliseconds, 0 to disable the crossfade
+     * @param curve the gain curve, one of {@link #CROSSFADE_CURVE_LINEAR},
+     * {@link #CROSSFADE_CURVE_EQUAL_POWER} or {@link #CROSSFADE_CURVE_S_CURVE}
+     * @throws IllegalArgumentException if the duration is negative or the curve is unknown
+     * @throws IllegalStateException if the internal player engine has not been initialized
+     * @see MetricsConstants#CROSSFADE_UNDERRUN_FRAMES
+     */
+    public void setCrossfade(int durationMs, @CrossfadeCurve int curve) {
+        if (durationMs < 0) {
+            throw new IllegalArgumentException("Negative crossfade duration: " + durationMs);
+        }
+        if (curve < CROSSFADE_CURVE_LINEAR || curve > CROSSFADE_CURVE_S_CURVE) {
+            throw new IllegalArgumentException("Illegal crossfade curve: " + curve);
+        }
+        _setCrossfade(durationMs, curve);
+    }
+    private native void _setCrossfade(int durationMs, int curve);
     /**
      * Releases resources associated with this MediaPlayer object.
      * It is considered good practice to call this method when you're
@@ -1779,6 +2181,9 @@ public class MediaPlayer implements IMediaPlayer
         mOnBufferingUpdateListener = null;
         mOnCompletionListener = null;
         mOnSeekCompleteListener = null;
+        synchronized (mPendingSeekListeners) {
+            mPendingSeekListeners.clear();
+        }
         mOnErrorListener = null;
         mOnInfoListener = null;
         mOnVideoSizeChangedListener = null;
@@ -1814,6 +2219,9 @@ public class MediaPlayer implements IMediaPlayer
         if (mEventHandler != null) {
             mEventHandler.removeCallbacksAndMessages(null);
         }
+        synchronized (mPendingSeekListeners) {
+            mPendingSeekListeners.clear();
+        }
     }
     private native void _reset();
     /**
@@ -1830,9 +2238,8 @@ public class MediaPlayer implements IMediaPlayer
     private native void _notifyAt(long mediaTimeUs);
     /**
      * Sets the audio stream type for this MediaPlayer. See {@link AudioManager}
-     * for a list of stream types. Must call this method before prepare() or
-     * prepareAsync() in order for the target stream type to become effective
-     * thereafter.
+     * for a list of stream types. Can be called in any state, once prepared the
+     * audio stream is reopened with the new type without interrupting playback.
      *
      * @param streamtype the audio stream type
      * @deprecated use {@link #setAudioAttributes(AudioAttributes)}
@@ -1874,8 +2281,13 @@ public class MediaPlayer implements IMediaPlayer
     }
     /**
      * Sets the player to be looping or non-looping.
+     * <p>
+     * The loop is sample accurate: the start of the file, or of the loop region set with
+     * {@link #setLoopRegion(long, long)}, is played right after its end without any gap.
+     * No completion is reported while looping.
      *
      * @param looping whether to loop or not
+     * @see MetricsConstants#LOOP_COUNT
      */
     public native void setLooping(boolean looping);
     /**
@@ -1884,6 +2296,32 @@ public class MediaPlayer implements IMediaPlayer
      * @return true if the MediaPlayer is currently looping, false otherwise
      */
     public native boolean isLooping();
+    /**
+     * Sets the region played when looping, for example a bar of music to practice.
+     * The playback continues up to the loop end, then goes back to the loop start.
+     * Both ends are sample accurate. A new region takes effect on the next loop.
+     * The region is only used when looping is enabled with {@link #setLooping(boolean)}.
+     *
+     * @param startUs the loop start in microseconds from the start of the file
+     * @param endUs the loop end in microseconds, or -1 for the end of the file
+     * @throws IllegalArgumentException if startUs is negative, or endUs is not after startUs
+     * @throws IllegalStateException if the internal player engine has not been initialized
+     */
+    public void setLoopRegion(long startUs, long endUs) {
+        if (startUs < 0 || (endUs != -1 && endUs <= startUs)) {
+            throw new IllegalArgumentException("Invalid loop region: " + startUs + " to " + endUs);
+        }
+        _setLoopRegion(startUs, endUs);
+    }
+    /**
+     * Clears the loop region, the whole file is looped again.
+     *
+     * @throws IllegalStateException if the internal player engine has not been initialized
+     */
+    public void clearLoopRegion() {
+        _setLoopRegion(0, -1);
+    }
+    private native void _setLoopRegion(long startUs, long endUs);
     /**
      * Sets the volume on this player.
      * This API is recommended for balancing the output of audio streams
@@ -1925,7 +2363,7 @@ public class MediaPlayer implements IMediaPlayer
      * When created, a MediaPlayer instance automatically generates its own audio session ID.
      * However, it is possible to force this player to be part of an already existing audio session
      * by calling this method.
-     * This method must be called before one of the overloaded <code> setDataSource </code> methods.
+     * Once prepared, the audio stream is reopened in the new session without interrupting playback.
      * @throws IllegalStateException if it is called in an invalid state
      */
     public native void setAudioSessionId(int sessionId)  throws IllegalArgumentException, IllegalStateException;
@@ -2391,6 +2829,15 @@ public class MediaPlayer implements IMediaPlayer
                     if (onSeekCompleteListener != null) {
                         onSeekCompleteListener.onSeekComplete(mMediaPlayer);
                     }
+                    // arg1 is the position where the playback landed
+                    OnSeekResultListener[] seekResultListeners;
+                    synchronized (mPendingSeekListeners) {
+                        seekResultListeners = mPendingSeekListeners.toArray(new OnSeekResultListener[0]);
+                        mPendingSeekListeners.clear();
+                    }
+                    for (OnSeekResultListener seekResultListener : seekResultListeners) {
+                        seekResultListener.onSeekResult(mMediaPlayer, msg.arg1);
+                    }
                     // fall through
                 case MEDIA_SKIPPED:
                 {
@@ -2690,6 +3137,22 @@ public class MediaPlayer implements IMediaPlayer
         mOnSeekCompleteListener = listener;
     }
     private OnSeekCompleteListener mOnSeekCompleteListener;
+    /**
+     * Interface definition of a callback to be invoked once the audio at the
+     * target of a {@link #seekTo(long, int, OnSeekResultListener)} call is ready.
+     */
+    public interface OnSeekResultListener
+    {
+        /**
+         * Called when the first audio at the seek target is decoded and ready
+         * to be played.
+         *
+         * @param mp the MediaPlayer that issued the seek operation
+         * @param positionMs the position where the playback landed, in milliseconds
+         */
+        void onSeekResult(MediaPlayer mp, long positionMs);
+    }
+    private final List<OnSeekResultListener> mPendingSeekListeners = new ArrayList<>();
     /**
      * Interface definition of a callback to be invoked when the
      * video size is first known or updated
@@ -2985,6 +3448,13 @@ public class MediaPlayer implements IMediaPlayer
      * @see android.media.MediaPlayer.OnInfoListener
      */
     public static final int MEDIA_INFO_SUBTITLE_TIMED_OUT = 902;
+    /** The exact duration of the media is known, {@link #getDuration()} returns it.
+     * The first duration may only be estimated from the bitrate, for raw streams
+     * or files without duration header, the exact one is then computed in the
+     * background. The extra code is the duration in milliseconds.
+     * @see MetricsConstants#DURATION_ACCURACY
+     */
+    public static final int MEDIA_INFO_DURATION_UPDATE = 10001;
     /**
      * Interface definition of a callback to be invoked to communicate some
      * info and/or warning about the media or its playback.
@@ -3005,6 +3475,7 @@ public class MediaPlayer implements IMediaPlayer
          * <li>{@link #MEDIA_INFO_BAD_INTERLEAVING}
          * <li>{@link #MEDIA_INFO_NOT_SEEKABLE}
          * <li>{@link #MEDIA_INFO_METADATA_UPDATE}
+         * <li>{@link #MEDIA_INFO_DURATION_UPDATE}
          * </ul>
          * @param extra an extra code, specific to the info. Typically
          * implementation dependent.
@@ -3460,5 +3931,235 @@ public class MediaPlayer implements IMediaPlayer
          * The value is an integer.
          */
         public static final String ERROR_CODE = "android.media.mediaplayer.errcode";
+        /**
+         * Key to extract the count of buffers allocated by the decoder
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The decoded audio buffer, the read-ahead packets and the packet and
+         * frame of each decode thread are counted. The allocations done inside
+         * FFmpeg, for the packet data, the frame references or the resampler, are not.
+         * The value is a long.
+         */
+        public static final String DECODE_BUFFER_ALLOCATIONS = "com.github.a2va.media.decoder.bufferAllocations";
+        /**
+         * Key to extract the count of buffers allocated by the decoder
+         * after the first decoded frame
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The allocations done inside FFmpeg are not counted, zero doesn't mean
+         * that the playback doesn't allocate.
+         * The value is a long.
+         */
+        public static final String DECODE_STEADY_BUFFER_ALLOCATIONS = "com.github.a2va.media.decoder.steadyBufferAllocations";
+        /**
+         * Key to extract the count of packets sent to the codec
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String DECODE_PACKETS = "com.github.a2va.media.decoder.packets";
+        /**
+         * Key to extract the count of writes to the decoded audio buffer
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * All the frames decoded from one packet are written at once.
+         * The value is a long.
+         */
+        public static final String DECODE_FIFO_WRITES = "com.github.a2va.media.decoder.fifoWrites";
+        /**
+         * Key to extract the count of times the decode thread was woken up after sleeping
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String DECODE_WAKEUPS = "com.github.a2va.media.decoder.wakeups";
+        /**
+         * Key to extract the count of futex wake syscalls made from the audio callback
+         * to wake up the decode thread
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String DECODE_FUTEX_WAKES = "com.github.a2va.media.decoder.futexWakes";
+        /**
+         * Key to extract the average wakeup rate of the decode thread while playing,
+         * in wakeups per second multiplied by 1000,
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String DECODE_WAKEUP_RATE = "com.github.a2va.media.decoder.wakeupRateMilliHz";
+        /**
+         * Key to extract the count of compressed packets waiting for the decoder
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * Only used with {@link MediaPlayer#setDemuxThreadEnabled}.
+         * The value is a long.
+         */
+        public static final String QUEUED_PACKETS = "com.github.a2va.media.demuxer.queuedPackets";
+        /**
+         * Key to extract the duration (in milliseconds) of compressed packets
+         * buffered ahead of the decoder
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String READ_AHEAD_MS = "com.github.a2va.media.demuxer.readAheadMs";
+        /**
+         * Key to extract the size (in bytes) of compressed packets
+         * buffered ahead of the decoder
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String READ_AHEAD_BYTES = "com.github.a2va.media.demuxer.readAheadBytes";
+        /**
+         * Key to extract the duration (in milliseconds) of decoded audio
+         * waiting to be played
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String BUFFERED_MS = "com.github.a2va.media.decoder.bufferedMs";
+        /**
+         * Key to extract whether the decoded audio is copied to the output
+         * without resampling, because it already has the output sample rate
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long, 1 if the resampler is skipped, 0 otherwise.
+         */
+        public static final String PASSTHROUGH = "com.github.a2va.media.decoder.passthrough";
+        /**
+         * Key to extract the sample rate (in Hz) of the audio output, negotiated
+         * with the device when the player is prepared
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String OUTPUT_SAMPLE_RATE = "com.github.a2va.media.output.sampleRate";
+        /**
+         * Key to extract the latency of the last seek, from the request to the
+         * first decoded audio at the target, in microseconds,
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String SEEK_LATENCY_US = "com.github.a2va.media.decoder.seekLatencyUs";
+        /**
+         * Key to extract the count of seeks served from the audio already decoded,
+         * without reading the data source again,
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String INSTANT_SEEKS = "com.github.a2va.media.decoder.instantSeeks";
+        /**
+         * Key to extract the count of scrub grains served from the scrub cache
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String SCRUB_CACHE_HITS = "com.github.a2va.media.scrub.cacheHits";
+        /**
+         * Key to extract the count of scrub grains that needed decoding
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String SCRUB_CACHE_MISSES = "com.github.a2va.media.scrub.cacheMisses";
+        /**
+         * Key to extract how the duration was obtained
+         * from the {@link MediaPlayer#getMetrics} return value:
+         * 0 unknown, 1 estimated from the bitrate, 2 read from the stream or container header,
+         * 3 exact, from the timestamps of every packet.
+         * The value is a long.
+         */
+        public static final String DURATION_ACCURACY = "com.github.a2va.media.decoder.durationAccuracy";
+        /**
+         * Key to extract the number of silent frames played between the last frame of the
+         * previous player and the first frame of this one, after a gapless transition set with
+         * {@link MediaPlayer#setNextMediaPlayer}, from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long, 0 for a gapless transition.
+         */
+        public static final String GAPLESS_GAP_FRAMES = "com.github.a2va.media.output.gaplessGapFrames";
+        /**
+         * Key to extract the number of times the playback went back to the loop start
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String LOOP_COUNT = "com.github.a2va.media.decoder.loopCount";
+        /**
+         * Key to extract the number of frames missing from this player while it faded in
+         * during a crossfade set with {@link MediaPlayer#setCrossfade}, because its decoder
+         * was late, from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long, 0 when the crossfade was played without underrun.
+         */
+        public static final String CROSSFADE_UNDERRUN_FRAMES = "com.github.a2va.media.output.crossfadeUnderrunFrames";
+        /**
+         * Key to extract the number of players mixed into the shared output stream,
+         * 0 if this player doesn't use it, see {@link MediaPlayer#setSharedOutputEnabled},
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String SHARED_OUTPUT_SOURCES = "com.github.a2va.media.output.sharedOutputSources";
+        /**
+         * Key to extract the number of times this player reused the audio stream it kept open
+         * on {@link MediaPlayer#reset}, instead of opening one,
+         * from the {@link MediaPlayer#getMetrics} return value. A stream is kept for
+         * 10 seconds and reused by the next {@link MediaPlayer#prepare} of the same player
+         * with the same device, audio session, stream type and performance profile.
+         * The value is a long.
+         */
+        public static final String WARM_STREAM_REUSES = "com.github.a2va.media.output.warmStreamReuses";
+        /**
+         * Key to extract the number of times the audio stream was reopened on another device,
+         * stream type or audio session during playback, from the {@link MediaPlayer#getMetrics}
+         * return value.
+         * The value is a long.
+         */
+        public static final String OUTPUT_SWITCHES = "com.github.a2va.media.output.switches";
+        /**
+         * Key to extract the output latency in milliseconds, the time for a frame written
+         * by the player to be heard, from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long, -1 if the device doesn't report it.
+         */
+        public static final String OUTPUT_LATENCY_MS = "com.github.a2va.media.output.latencyMs";
+        /**
+         * Key to extract if the output stream obtained the low latency mode, see
+         * {@link MediaPlayer#setPerformanceProfile}, from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long, 1 for low latency, 0 otherwise.
+         */
+        public static final String OUTPUT_LOW_LATENCY = "com.github.a2va.media.output.lowLatency";
+        /**
+         * Key to extract if the output stream is exclusive, see
+         * {@link MediaPlayer#setPerformanceProfile}, from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long, 1 for an exclusive stream, 0 for a shared one.
+         */
+        public static final String OUTPUT_EXCLUSIVE = "com.github.a2va.media.output.exclusive";
+        /**
+         * Key to extract the number of underruns of the output stream
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long, -1 if the stream doesn't report them.
+         */
+        public static final String OUTPUT_XRUNS = "com.github.a2va.media.output.xruns";
+        /**
+         * Key to extract the number of times the output buffer grew after an underrun, see
+         * {@link MediaPlayer#setBufferSizeTuning}, from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String OUTPUT_BUFFER_GROWS = "com.github.a2va.media.output.bufferGrows";
+        /**
+         * Key to extract the number of times the output buffer shrank after a glitch-free period,
+         * see {@link MediaPlayer#setBufferSizeTuning}, from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String OUTPUT_BUFFER_SHRINKS = "com.github.a2va.media.output.bufferShrinks";
+        /**
+         * Key to extract the number of points in the seek index
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String SEEK_INDEX_POINTS = "com.github.a2va.media.decoder.seekIndexPoints";
+        /**
+         * Key to extract whether the seek index covers the whole data source, 1 if it does,
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String SEEK_INDEX_COMPLETE = "com.github.a2va.media.decoder.seekIndexComplete";
+        /**
+         * Key to extract the size of the output stream buffer in milliseconds
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String OUTPUT_BUFFER_MS = "com.github.a2va.media.output.bufferMs";
+        /**
+         * Key to extract the size of the decoded audio buffer in milliseconds
+         * from the {@link MediaPlayer#getMetrics} return value.
+         * The value is a long.
+         */
+        public static final String FIFO_SIZE_MS = "com.github.a2va.media.decoder.fifoSizeMs";
     }
 }
\ No newline at end of file